@@ -22,6 +22,7 @@
 #include "MNN/expr/ExecutorScope.hpp"
 
 using MNN::Transformer::Llm;
+using MNN::Transformer::Embedding;
 using mls::DiffusionSession;
 
 class MNN_PUBLIC LlmStreamBuffer : public std::streambuf {
@@ -42,12 +43,22 @@ private:
 };
 
 using PromptItem = std::pair<std::string, std::string>;
-static std::vector<PromptItem> history{};
-static bool stop_requested = false;
-static bool is_r1 = false;
-static bool s_is_diffusion = false;
-static std::string prompt_string_for_debug{};
-static std::string response_string_for_debug{};
+
+// native state of one non diffusion ChatSession, its jlong handle points here
+struct LlmSession {
+    std::unique_ptr<Llm> llm;
+    std::vector<PromptItem> history;
+    bool is_r1 = false;
+    std::string prompt_string_for_debug;
+    std::string response_string_for_debug;
+    // prompt tokens whose kv is still held by the llm, used to share common prefixes between stateless submits
+    std::vector<int> shared_prefix_tokens;
+};
+
+static Llm* getLlm(jlong sessionPtr) {
+    auto* session = reinterpret_cast<LlmSession*>(sessionPtr);
+    return session ? session->llm.get() : nullptr;
+}
 
 std::string trimLeadingWhitespace(const std::string& str) {
     auto it = std::find_if(str.begin(), str.end(), [](unsigned char ch) {
@@ -93,9 +104,9 @@ private:
 };
 
 //for_history true for insert to history, false for submit prompt
-const char* getUserString(const char* user_content, bool for_history) {
+std::string getUserString(const char* user_content, bool for_history, bool is_r1) {
     if (is_r1) {
-        return ("<|User|>" + std::string(user_content) + "<|Assistant|>" + (for_history ? "" : "<think>\n")).c_str();
+        return "<|User|>" + std::string(user_content) + "<|Assistant|>" + (for_history ? "" : "<think>\n");
     } else {
         return user_content;
     }
@@ -109,6 +120,116 @@ const std::string getR1AssistantString(std::string assistant_content) {
     return trimLeadingWhitespace(assistant_content) + "<|end_of_sentence|>";
 }
 
+// holds back text that may be the start of a stop sequence, so a matched stop string is never emitted
+class StopSequenceMatcher {
+public:
+    explicit StopSequenceMatcher(std::vector<std::string> stops) : stops_(std::move(stops)) {}
+
+    // appends text and returns the part that is safe to emit, matched is set once a stop sequence is found
+    std::string feed(const std::string& text, bool& matched) {
+        matched = false;
+        if (stops_.empty()) {
+            return text;
+        }
+        pending_ += text;
+        size_t match_pos = std::string::npos;
+        for (const auto& stop : stops_) {
+            match_pos = std::min(match_pos, pending_.find(stop));
+        }
+        if (match_pos != std::string::npos) {
+            matched = true;
+            std::string out = pending_.substr(0, match_pos);
+            pending_.clear();
+            return out;
+        }
+        size_t keep = 0;
+        for (const auto& stop : stops_) {
+            for (size_t len = std::min(stop.size() - 1, pending_.size()); len > keep; len--) {
+                if (pending_.compare(pending_.size() - len, len, stop, 0, len) == 0) {
+                    keep = len;
+                    break;
+                }
+            }
+        }
+        std::string out = pending_.substr(0, pending_.size() - keep);
+        pending_.erase(0, pending_.size() - keep);
+        return out;
+    }
+
+    std::string flush() {
+        std::string out;
+        out.swap(pending_);
+        return out;
+    }
+
+private:
+    std::vector<std::string> stops_;
+    std::string pending_;
+};
+
+static std::vector<std::string> toStringVector(JNIEnv* env, jobjectArray array) {
+    std::vector<std::string> result;
+    if (array == nullptr) {
+        return result;
+    }
+    jsize count = env->GetArrayLength(array);
+    for (jsize i = 0; i < count; i++) {
+        auto item = (jstring)env->GetObjectArrayElement(array, i);
+        const char* chars = env->GetStringUTFChars(item, nullptr);
+        if (chars[0] != '\0') {
+            result.emplace_back(chars);
+        }
+        env->ReleaseStringUTFChars(item, chars);
+        env->DeleteLocalRef(item);
+    }
+    return result;
+}
+
+static std::string toStdString(JNIEnv* env, jstring str) {
+    if (str == nullptr) {
+        return "";
+    }
+    const char* chars = env->GetStringUTFChars(str, nullptr);
+    std::string result(chars);
+    env->ReleaseStringUTFChars(str, chars);
+    return result;
+}
+
+// tokens already streamed to the caller, the last sampled token is only emitted by the next generate(1)
+static int emittedTokens(Llm* llm) {
+    return llm->getContext()->gen_seq_len - 1;
+}
+
+static void putLong(JNIEnv* env, jobject hashMap, jmethodID putMethod, const char* key, int64_t value) {
+    jclass longClass = env->FindClass("java/lang/Long");
+    jobject boxed = env->NewObject(longClass, env->GetMethodID(longClass, "<init>", "(J)V"), value);
+    jstring jkey = env->NewStringUTF(key);
+    env->CallObjectMethod(hashMap, putMethod, jkey, boxed);
+    env->DeleteLocalRef(jkey);
+    env->DeleteLocalRef(boxed);
+    env->DeleteLocalRef(longClass);
+}
+
+static jobject buildMetricsMap(JNIEnv* env, Llm* llm, int64_t cached_len, bool length_limited) {
+    auto context = llm->getContext();
+    jclass hashMapClass = env->FindClass("java/util/HashMap");
+    jmethodID hashMapInit = env->GetMethodID(hashMapClass, "<init>", "()V");
+    jmethodID putMethod = env->GetMethodID(hashMapClass, "put", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+    jobject hashMap = env->NewObject(hashMapClass, hashMapInit);
+    putLong(env, hashMap, putMethod, "prompt_len", context->prompt_len);
+    putLong(env, hashMap, putMethod, "decode_len", context->gen_seq_len);
+    putLong(env, hashMap, putMethod, "vision_time", context->vision_us);
+    putLong(env, hashMap, putMethod, "vision_cache_hits", context->vision_cache_hits);
+    putLong(env, hashMap, putMethod, "audio_time", context->audio_us);
+    putLong(env, hashMap, putMethod, "prefill_time", context->prefill_us);
+    putLong(env, hashMap, putMethod, "decode_time", context->decode_us);
+    // prompt tokens served from the kv of a shared prefix, not counted in prompt_len
+    putLong(env, hashMap, putMethod, "cached_len", cached_len);
+    // 1 when generation stopped because max_new_tokens was reached
+    putLong(env, hashMap, putMethod, "length_limited", length_limited ? 1 : 0);
+    return hashMap;
+}
+
 extern "C" {
 
 JNIEXPORT jint JNI_OnLoad(JavaVM* vm, void* reserved) {
@@ -125,13 +246,13 @@ JNIEXPORT jlong JNICALL Java_com_alibaba_mnnllm_android_ChatSession_initNative(J
                                                                                     jstring modelId,
                                                                                     jstring modelDir,
                                                                                     jboolean use_tmp_path,
-                                                                                    jobject chat_history,
+                                                                                    jobjectArray history_roles,
+                                                                                    jobjectArray history_contents,
                                                                                     jboolean is_diffusion,
                                                                                     jboolean r1,
                                                                                     jboolean backend,
                                                                                     jstring sampler) {
-    s_is_diffusion = is_diffusion;
-    is_r1 = r1;
+    bool is_r1 = r1;
     bool use_opencl = backend;
     std::string sp = std::string(env->GetStringUTFChars(sampler, 0));
     const char* root_cache_dir = env->GetStringUTFChars(rootCacheDir, 0);
@@ -172,48 +293,107 @@ JNIEXPORT jlong JNICALL Java_com_alibaba_mnnllm_android_ChatSession_initNative(J
     llm->set_config(extra_config);
     MNN_DEBUG("dumped config: %s", llm->dump_config().c_str());
 
-    history.clear();
+    auto* session = new LlmSession();
+    session->llm.reset(llm);
+    session->is_r1 = is_r1;
+    auto& history = session->history;
     history.emplace_back("system", is_r1 ? "<|begin_of_sentence|>You are a helpful assistant." : "You are a helpful assistant.");
-    if (chat_history != nullptr) {
-        jclass listClass = env->GetObjectClass(chat_history);
-        jmethodID sizeMethod = env->GetMethodID(listClass, "size", "()I");
-        jmethodID getMethod = env->GetMethodID(listClass, "get", "(I)Ljava/lang/Object;");
-        jint listSize = env->CallIntMethod(chat_history, sizeMethod);
-        for (jint i = 0; i < listSize; i++) {
-            jobject element = env->CallObjectMethod(chat_history, getMethod, i);
-            const char *elementCStr = env->GetStringUTFChars((jstring)element, nullptr);
+    if (history_roles != nullptr && history_contents != nullptr) {
+        // roles come with the messages, a history may hold two messages of the same role in a row
+        jsize count = env->GetArrayLength(history_roles);
+        for (jsize i = 0; i < count; i++) {
+            auto role_str = (jstring)env->GetObjectArrayElement(history_roles, i);
+            auto content_str = (jstring)env->GetObjectArrayElement(history_contents, i);
+            std::string role = toStdString(env, role_str);
+            std::string content = toStdString(env, content_str);
+            env->DeleteLocalRef(role_str);
+            env->DeleteLocalRef(content_str);
             if (is_r1) {
-                if (i % 2 == 0) {
-                    history.emplace_back("user",getUserString(elementCStr, true));
-                } else {
-                    history.emplace_back("assistant", getR1AssistantString(elementCStr));
-                }
+                history.emplace_back(role, role == "user" ? getUserString(content.c_str(), true, is_r1)
+                                                          : getR1AssistantString(content.c_str()));
             } else {
-                history.emplace_back(i % 2 == 0 ? "user" : "assistant",elementCStr);
+                history.emplace_back(role, content);
             }
-            env->ReleaseStringUTFChars((jstring)element, elementCStr);
-            env->DeleteLocalRef(element);
         }
     }
+    MNN_DEBUG("createLLM EndInit %ld ", reinterpret_cast<jlong>(llm));
+    return reinterpret_cast<jlong>(session);
+}
+
+JNIEXPORT jboolean JNICALL Java_com_alibaba_mnnllm_android_ChatSession_loadNative(JNIEnv* env, jobject thiz,
+                                                                                   jlong objectPtr,
+                                                                                   jboolean isDiffusion,
+                                                                                   jobject stepListener) {
+    if (isDiffusion) {
+        // diffusion pipeline is fully loaded when created
+        return JNI_TRUE;
+    }
+    Llm* llm = getLlm(objectPtr);
+    if (!llm) {
+        return JNI_FALSE;
+    }
+    jclass listenerClass = env->GetObjectClass(stepListener);
+    jmethodID onLoadStepMethod = env->GetMethodID(listenerClass, "onLoadStep", "(Ljava/lang/String;F)Z");
+    // tokenizer, weights mapping and backend init all happen in Llm::load, which reports each step
+    llm->set_load_callback([env, stepListener, onLoadStepMethod](const std::string& step, float progress) {
+        jstring javaStep = env->NewStringUTF(step.c_str());
+        jboolean keep_loading = env->CallBooleanMethod(stepListener, onLoadStepMethod, javaStep, progress);
+        env->DeleteLocalRef(javaStep);
+        return keep_loading == JNI_TRUE;
+    });
     llm->load();
-    MNN_DEBUG("createLLM EndLoad %ld ", reinterpret_cast<jlong>(llm));
-    return reinterpret_cast<jlong>(llm);
+    llm->set_load_callback(nullptr);
+    MNN_DEBUG("createLLM EndLoad %ld cancelled %d", reinterpret_cast<jlong>(llm), llm->load_cancelled());
+    return llm->load_cancelled() ? JNI_FALSE : JNI_TRUE;
+}
+
+JNIEXPORT void JNICALL Java_com_alibaba_mnnllm_android_ChatSession_warmUpNative(JNIEnv* env, jobject thiz,
+                                                                                 jlong objectPtr,
+                                                                                 jboolean isDiffusion) {
+    if (isDiffusion) {
+        return;
+    }
+    Llm* llm = getLlm(objectPtr);
+    if (!llm) {
+        return;
+    }
+    // run a single token through prefill so the first user request does not pay for lazy backend setup
+    auto input_ids = llm->tokenizer_encode("hi");
+    if (input_ids.size() > 1) {
+        input_ids.resize(1);
+    }
+    llm->response(input_ids, nullptr, nullptr, 1);
+    llm->reset();
+    MNN_DEBUG("createLLM WarmUp done");
 }
 
 
 JNIEXPORT jobject JNICALL Java_com_alibaba_mnnllm_android_ChatSession_submitNative(JNIEnv* env, jobject thiz,
                                                                                    jlong llmPtr, jstring inputStr,jboolean keepHistory,
+                                                                                   jstring samplerConfig,
+                                                                                   jint maxNewTokens,
+                                                                                   jobjectArray stopSequences,
                                                                                    jobject progressListener) {
-    Llm* llm = reinterpret_cast<Llm*>(llmPtr);
+    auto* session = reinterpret_cast<LlmSession*>(llmPtr);
+    Llm* llm = getLlm(llmPtr);
     if (!llm) {
         return env->NewStringUTF("Failed, Chat is not ready!");
     }
-    prompt_string_for_debug.clear();
-    response_string_for_debug.clear();
-    stop_requested = false;
+    auto& history = session->history;
+    bool is_r1 = session->is_r1;
+    session->prompt_string_for_debug.clear();
+    session->response_string_for_debug.clear();
+    bool stop_requested = false;
+    session->shared_prefix_tokens.clear();
     if (!keepHistory) {
         history.resize(1);
     }
+    // per request sampler settings, restored after this submit
+    std::string sampler_config = toStdString(env, samplerConfig);
+    if (!sampler_config.empty()) {
+        llm->set_sampler_config(sampler_config);
+    }
+    StopSequenceMatcher stop_matcher(toStringVector(env, stopSequences));
     const char* input_str = env->GetStringUTFChars(inputStr, nullptr);
     std::stringstream response_buffer;
     jclass progressListenerClass = env->GetObjectClass(progressListener);
@@ -221,90 +401,248 @@ JNIEXPORT jobject JNICALL Java_com_alibaba_mnnllm_android_ChatSession_submitNati
     if (!onProgressMethod) {
         MNN_DEBUG("ProgressListener onProgress method not found.");
     }
-    Utf8StreamProcessor processor([&response_buffer, env, progressListener, onProgressMethod](const std::string& utf8Char) {
-        bool is_eop = utf8Char.find("<eop>") != std::string::npos;
-        if (!is_eop) {
-            response_buffer << utf8Char;
-        } else {
-            std::string response_result =  response_buffer.str();
-            MNN_DEBUG("submitNative Result %s", response_result.c_str());
-            response_string_for_debug = response_result;
-            if (is_r1) {
-                auto& last_message = history.at(history.size() - 1);
-                std::size_t user_think_pos = last_message.second.find("<think>\n");
-                if (user_think_pos != std::string::npos) {
-                    last_message.second.erase(user_think_pos, std::string("<think>\n").length());
-                }
-                response_result = getR1AssistantString(response_result);
+    bool finished = false;
+    auto emit_text = [&response_buffer, env, progressListener, onProgressMethod](const std::string& text) -> bool {
+        if (text.empty()) {
+            return false;
+        }
+        response_buffer << text;
+        if (!progressListener || !onProgressMethod) {
+            return false;
+        }
+        jstring javaString = env->NewStringUTF(text.c_str());
+        jboolean user_stop_requested = env->CallBooleanMethod(progressListener, onProgressMethod, javaString);
+        env->DeleteLocalRef(javaString);
+        return user_stop_requested;
+    };
+    // end of the answer (eos, stop sequence or max tokens): record it in history and notify with null
+    auto finish = [&finished, &stop_requested, &response_buffer, &history, session, is_r1, env, progressListener, onProgressMethod]() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        stop_requested = true;
+        std::string response_result = response_buffer.str();
+        MNN_DEBUG("submitNative Result %s", response_result.c_str());
+        session->response_string_for_debug = response_result;
+        if (is_r1) {
+            auto& last_message = history.at(history.size() - 1);
+            std::size_t user_think_pos = last_message.second.find("<think>\n");
+            if (user_think_pos != std::string::npos) {
+                last_message.second.erase(user_think_pos, std::string("<think>\n").length());
             }
-            history.emplace_back("assistant", response_result);
+            response_result = getR1AssistantString(response_result);
         }
+        history.emplace_back("assistant", response_result);
         if (progressListener && onProgressMethod) {
-            jstring javaString = is_eop ? nullptr : env->NewStringUTF(utf8Char.c_str());
-            jboolean user_stop_requested = env->CallBooleanMethod(progressListener, onProgressMethod,  javaString);
-            stop_requested = is_eop || user_stop_requested;
-            env->DeleteLocalRef(javaString);
+            env->CallBooleanMethod(progressListener, onProgressMethod, nullptr);
+        }
+    };
+    Utf8StreamProcessor processor([&finished, &stop_requested, &stop_matcher, &emit_text, &finish](const std::string& utf8Char) {
+        if (finished) {
+            return;
+        }
+        if (utf8Char.find("<eop>") != std::string::npos) {
+            emit_text(stop_matcher.flush());
+            finish();
+            return;
+        }
+        bool matched = false;
+        bool user_stop = emit_text(stop_matcher.feed(utf8Char, matched));
+        if (matched) {
+            finish();
+        } else if (user_stop) {
+            stop_requested = true;
         }
     });
     LlmStreamBuffer stream_buffer{[&processor](const char* str, size_t len){
         processor.processStream(str, len);
     }};
     std::ostream output_ostream(&stream_buffer);
-    history.emplace_back("user", getUserString(input_str, false));
+    history.emplace_back("user", getUserString(input_str, false, is_r1));
     MNN_DEBUG("submitNative history count %zu", history.size());
     for (auto iter= history.begin(); iter != history.end(); ++iter) {
-        prompt_string_for_debug += iter->second;
+        session->prompt_string_for_debug += iter->second;
     }
-    MNN_DEBUG("submitNative prompt_string_for_debug count %s", prompt_string_for_debug.c_str());
+    MNN_DEBUG("submitNative prompt_string_for_debug count %s", session->prompt_string_for_debug.c_str());
     llm->response(history, &output_ostream, "<eop>", 1);
-    while (!stop_requested) {
+    while (!stop_requested && (maxNewTokens <= 0 || emittedTokens(llm) < maxNewTokens)) {
         llm->generate(1);
     }
-    auto context = llm->getContext();
-    int64_t prompt_len = 0;
-    int64_t decode_len = 0;
-    int64_t vision_time = 0;
-    int64_t audio_time = 0;
-    int64_t prefill_time = 0;
-    int64_t decode_time = 0;
-    prompt_len += context->prompt_len;
-    decode_len += context->gen_seq_len;
-    vision_time += context->vision_us;
-    audio_time += context->audio_us;
-    prefill_time += context->prefill_us;
-    decode_time += context->decode_us;
-    jclass hashMapClass = env->FindClass("java/util/HashMap");
-    jmethodID hashMapInit = env->GetMethodID(hashMapClass, "<init>", "()V");
-    jmethodID putMethod = env->GetMethodID(hashMapClass, "put", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
-    jobject hashMap = env->NewObject(hashMapClass, hashMapInit);
-
-    // Add metrics to the HashMap
-    env->CallObjectMethod(hashMap, putMethod, env->NewStringUTF("prompt_len"), env->NewObject(env->FindClass("java/lang/Long"), env->GetMethodID(env->FindClass("java/lang/Long"), "<init>", "(J)V"), prompt_len));
-    env->CallObjectMethod(hashMap, putMethod, env->NewStringUTF("decode_len"), env->NewObject(env->FindClass("java/lang/Long"), env->GetMethodID(env->FindClass("java/lang/Long"), "<init>", "(J)V"), decode_len));
-    env->CallObjectMethod(hashMap, putMethod, env->NewStringUTF("vision_time"), env->NewObject(env->FindClass("java/lang/Long"), env->GetMethodID(env->FindClass("java/lang/Long"), "<init>", "(J)V"), vision_time));
-    env->CallObjectMethod(hashMap, putMethod, env->NewStringUTF("audio_time"), env->NewObject(env->FindClass("java/lang/Long"), env->GetMethodID(env->FindClass("java/lang/Long"), "<init>", "(J)V"), audio_time));
-    env->CallObjectMethod(hashMap, putMethod, env->NewStringUTF("prefill_time"), env->NewObject(env->FindClass("java/lang/Long"), env->GetMethodID(env->FindClass("java/lang/Long"), "<init>", "(J)V"), prefill_time));
-    env->CallObjectMethod(hashMap, putMethod, env->NewStringUTF("decode_time"), env->NewObject(env->FindClass("java/lang/Long"), env->GetMethodID(env->FindClass("java/lang/Long"), "<init>", "(J)V"), decode_time));
-    return hashMap;
+    bool length_limited = !stop_requested;
+    if (length_limited) {
+        emit_text(stop_matcher.flush());
+        finish();
+    }
+    env->ReleaseStringUTFChars(inputStr, input_str);
+    if (!sampler_config.empty()) {
+        llm->set_sampler_config("");
+    }
+    return buildMetricsMap(env, llm, 0, length_limited);
 }
 
 
-JNIEXPORT void JNICALL Java_com_alibaba_mnnllm_android_ChatSession_resetNative(JNIEnv* env, jobject thiz, jlong llmPtr) {
-    if (s_is_diffusion) {
-        return;
-    }
-    history.resize(1);
-    Llm* llm = reinterpret_cast<Llm*>(llmPtr);
+JNIEXPORT void JNICALL Java_com_alibaba_mnnllm_android_ChatSession_setConfigNative(JNIEnv* env, jobject thiz, jlong llmPtr, jstring config) {
+    Llm* llm = getLlm(llmPtr);
     if (llm) {
+        llm->set_config(toStdString(env, config));
+    }
+}
+
+JNIEXPORT void JNICALL Java_com_alibaba_mnnllm_android_ChatSession_resetNative(JNIEnv* env, jobject thiz, jlong llmPtr) {
+    auto* session = reinterpret_cast<LlmSession*>(llmPtr);
+    if (session) {
         MNN_DEBUG("RESET");
-        llm->reset();
+        session->history.resize(1);
+        session->shared_prefix_tokens.clear();
+        session->llm->reset();
     }
 }
 
+// stateless single turn (system prompt + input) that keeps the kv of the longest token prefix
+// shared with the previous call of this function, only the differing tail is prefilled
+JNIEXPORT jobject JNICALL Java_com_alibaba_mnnllm_android_ChatSession_submitSharedPrefixNative(JNIEnv* env, jobject thiz,
+                                                                                               jlong llmPtr, jstring inputStr,
+                                                                                               jstring samplerConfig,
+                                                                                               jint maxNewTokens,
+                                                                                               jobjectArray stopSequences,
+                                                                                               jobject progressListener) {
+    auto* session = reinterpret_cast<LlmSession*>(llmPtr);
+    Llm* llm = getLlm(llmPtr);
+    if (!llm) {
+        return nullptr;
+    }
+    bool stop_requested = false;
+    // the chat history of the session is left untouched, only its system prompt is used
+    auto& shared_prefix_tokens = session->shared_prefix_tokens;
+    std::vector<PromptItem> turn{session->history[0],
+                                 PromptItem("user", getUserString(toStdString(env, inputStr).c_str(), false, session->is_r1))};
+    auto prompt_ids = llm->tokenizer_encode(llm->apply_chat_template(turn, true));
+    if (prompt_ids.empty()) {
+        return nullptr;
+    }
+    size_t common = 0;
+    while (common < shared_prefix_tokens.size() && common < prompt_ids.size()
+           && shared_prefix_tokens[common] == prompt_ids[common]) {
+        common++;
+    }
+    // at least one new token is needed to produce logits
+    common = std::min(common, prompt_ids.size() - 1);
+    bool reuse = common > 0;
+    if (reuse) {
+        llm->truncateHistory(common);
+        llm->set_reuse_kv(true);
+    }
+    std::string sampler_config = toStdString(env, samplerConfig);
+    if (!sampler_config.empty()) {
+        llm->set_sampler_config(sampler_config);
+    }
+    StopSequenceMatcher stop_matcher(toStringVector(env, stopSequences));
+    jclass progressListenerClass = env->GetObjectClass(progressListener);
+    jmethodID onProgressMethod = env->GetMethodID(progressListenerClass, "onProgress", "(Ljava/lang/String;)Z");
+    auto emit_text = [&stop_requested, env, progressListener, onProgressMethod](const std::string& text) {
+        if (text.empty()) {
+            return;
+        }
+        jstring javaString = env->NewStringUTF(text.c_str());
+        stop_requested = env->CallBooleanMethod(progressListener, onProgressMethod, javaString);
+        env->DeleteLocalRef(javaString);
+    };
+    Utf8StreamProcessor processor([&stop_requested, &stop_matcher, &emit_text](const std::string& utf8Char) {
+        if (utf8Char.find("<eop>") != std::string::npos) {
+            emit_text(stop_matcher.flush());
+            stop_requested = true;
+            return;
+        }
+        bool matched = false;
+        emit_text(stop_matcher.feed(utf8Char, matched));
+        stop_requested = stop_requested || matched;
+    });
+    LlmStreamBuffer stream_buffer{[&processor](const char* str, size_t len){
+        processor.processStream(str, len);
+    }};
+    std::ostream output_ostream(&stream_buffer);
+    std::vector<int> input_ids(prompt_ids.begin() + common, prompt_ids.end());
+    llm->response(input_ids, &output_ostream, "<eop>", 1);
+    if (reuse) {
+        llm->set_reuse_kv(false);
+    }
+    while (!stop_requested && (maxNewTokens <= 0 || emittedTokens(llm) < maxNewTokens)) {
+        llm->generate(1);
+    }
+    bool length_limited = !stop_requested;
+    if (length_limited) {
+        emit_text(stop_matcher.flush());
+    }
+    if (!sampler_config.empty()) {
+        llm->set_sampler_config("");
+    }
+    MNN_DEBUG("submitSharedPrefixNative reused %zu of %zu prompt tokens", common, prompt_ids.size());
+    shared_prefix_tokens = prompt_ids;
+    return buildMetricsMap(env, llm, static_cast<int64_t>(common), length_limited);
+}
+
 extern "C"
 JNIEXPORT jstring JNICALL
 Java_com_alibaba_mnnllm_android_ChatSession_getDebugInfoNative(JNIEnv *env, jobject thiz, jlong objecPtr) {
-    return env->NewStringUTF(("last_prompt:\n" + prompt_string_for_debug + "\nlast_response:\n" + response_string_for_debug).c_str());
+    auto* session = reinterpret_cast<LlmSession*>(objecPtr);
+    if (!session) {
+        return env->NewStringUTF("");
+    }
+    return env->NewStringUTF(("last_prompt:\n" + session->prompt_string_for_debug + "\nlast_response:\n" + session->response_string_for_debug).c_str());
+}
+
+JNIEXPORT jintArray JNICALL
+Java_com_alibaba_mnnllm_android_ChatSession_tokenizeNative(JNIEnv *env, jobject thiz, jlong llmPtr, jstring text) {
+    Llm* llm = getLlm(llmPtr);
+    if (!llm) {
+        return nullptr;
+    }
+    const char* text_str = env->GetStringUTFChars(text, nullptr);
+    auto tokens = llm->tokenizer_encode(text_str);
+    env->ReleaseStringUTFChars(text, text_str);
+    jintArray result = env->NewIntArray(static_cast<jsize>(tokens.size()));
+    env->SetIntArrayRegion(result, 0, static_cast<jsize>(tokens.size()), tokens.data());
+    return result;
+}
+
+JNIEXPORT jintArray JNICALL
+Java_com_alibaba_mnnllm_android_ChatSession_tokenizeChatNative(JNIEnv *env, jobject thiz, jlong llmPtr,
+                                                               jobjectArray roles, jobjectArray contents) {
+    Llm* llm = getLlm(llmPtr);
+    if (!llm) {
+        return nullptr;
+    }
+    // the same template submitNative applies, so the count matches the prompt the model would prefill
+    std::vector<PromptItem> messages;
+    jsize count = env->GetArrayLength(roles);
+    for (jsize i = 0; i < count; i++) {
+        auto role = (jstring)env->GetObjectArrayElement(roles, i);
+        auto content = (jstring)env->GetObjectArrayElement(contents, i);
+        messages.emplace_back(toStdString(env, role), toStdString(env, content));
+        env->DeleteLocalRef(role);
+        env->DeleteLocalRef(content);
+    }
+    auto tokens = llm->tokenizer_encode(llm->apply_chat_template(messages, true));
+    jintArray result = env->NewIntArray(static_cast<jsize>(tokens.size()));
+    env->SetIntArrayRegion(result, 0, static_cast<jsize>(tokens.size()), tokens.data());
+    return result;
+}
+
+JNIEXPORT jstring JNICALL
+Java_com_alibaba_mnnllm_android_ChatSession_detokenizeNative(JNIEnv *env, jobject thiz, jlong llmPtr, jintArray tokens) {
+    Llm* llm = getLlm(llmPtr);
+    if (!llm) {
+        return nullptr;
+    }
+    jsize count = env->GetArrayLength(tokens);
+    std::vector<int> ids(count);
+    env->GetIntArrayRegion(tokens, 0, count, ids.data());
+    std::string text;
+    for (int id : ids) {
+        text += llm->tokenizer_decode(id);
+    }
+    return env->NewStringUTF(text.c_str());
 }
 
 JNIEXPORT void JNICALL Java_com_alibaba_mnnllm_android_ChatSession_releaseNative(JNIEnv* env,
@@ -316,8 +654,8 @@ JNIEXPORT void JNICALL Java_com_alibaba_mnnllm_android_ChatSession_releaseNative
         auto* diffusion = reinterpret_cast<DiffusionSession*>(objecPtr);
         delete diffusion;
     } else {
-        Llm* llm = reinterpret_cast<Llm*>(objecPtr);
-        delete llm;
+        auto* session = reinterpret_cast<LlmSession*>(objecPtr);
+        delete session;
     }
 }
 
@@ -361,4 +699,64 @@ Java_com_alibaba_mnnllm_android_ChatSession_submitDiffusionNative(JNIEnv *env, j
     env->CallObjectMethod(hashMap, putMethod, env->NewStringUTF("total_timeus"), env->NewObject(env->FindClass("java/lang/Long"), env->GetMethodID(env->FindClass("java/lang/Long"), "<init>", "(J)V"), duration));
     return hashMap;
 }
+JNIEXPORT jlong JNICALL
+Java_com_alibaba_mnnllm_android_EmbeddingSession_initEmbeddingNative(JNIEnv *env, jobject thiz, jstring configPath) {
+    const char* config_path = env->GetStringUTFChars(configPath, nullptr);
+    std::string config_path_str(config_path);
+    env->ReleaseStringUTFChars(configPath, config_path);
+    MNN_DEBUG("createEmbedding BeginLoad %s", config_path_str.c_str());
+    MNN::BackendConfig backendConfig;
+    auto executor = MNN::Express::Executor::newExecutor(MNN_FORWARD_CPU, backendConfig, 1);
+    MNN::Express::ExecutorScope s(executor);
+    auto embedding = Embedding::createEmbedding(config_path_str, true);
+    MNN_DEBUG("createEmbedding EndLoad %ld ", reinterpret_cast<jlong>(embedding));
+    return reinterpret_cast<jlong>(embedding);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_alibaba_mnnllm_android_EmbeddingSession_getDimNative(JNIEnv *env, jobject thiz, jlong objectPtr) {
+    auto* embedding = reinterpret_cast<Embedding*>(objectPtr);
+    return embedding ? embedding->dim() : 0;
+}
+
+JNIEXPORT jfloatArray JNICALL
+Java_com_alibaba_mnnllm_android_EmbeddingSession_embedEachNative(JNIEnv *env, jobject thiz, jlong objectPtr,
+                                                                  jobjectArray inputs, jintArray tokenCounts) {
+    auto* embedding = reinterpret_cast<Embedding*>(objectPtr);
+    if (!embedding) {
+        return nullptr;
+    }
+    // the exported embedding graphs take a single sequence, so this is one forward pass per input,
+    // only the jni crossing is shared; results are written into one flat [count, dim] array
+    jsize count = env->GetArrayLength(inputs);
+    int dim = embedding->dim();
+    std::vector<float> result(static_cast<size_t>(count) * dim, 0.0f);
+    std::vector<jint> counts(count, 0);
+    for (jsize i = 0; i < count; i++) {
+        auto input = (jstring)env->GetObjectArrayElement(inputs, i);
+        const char* input_str = env->GetStringUTFChars(input, nullptr);
+        auto ids = embedding->tokenizer_encode(input_str);
+        env->ReleaseStringUTFChars(input, input_str);
+        env->DeleteLocalRef(input);
+        counts[i] = static_cast<jint>(ids.size());
+        auto output = embedding->ids_embedding(ids);
+        auto size = output->getInfo()->size;
+        auto ptr = output->readMap<float>();
+        if (ptr == nullptr || size < dim) {
+            MNN_DEBUG("embedEachNative invalid output for input %d", i);
+            continue;
+        }
+        ::memcpy(result.data() + static_cast<size_t>(i) * dim, ptr, dim * sizeof(float));
+    }
+    env->SetIntArrayRegion(tokenCounts, 0, count, counts.data());
+    jfloatArray output = env->NewFloatArray(static_cast<jsize>(result.size()));
+    env->SetFloatArrayRegion(output, 0, static_cast<jsize>(result.size()), result.data());
+    return output;
+}
+
+JNIEXPORT void JNICALL
+Java_com_alibaba_mnnllm_android_EmbeddingSession_releaseEmbeddingNative(JNIEnv *env, jobject thiz, jlong objectPtr) {
+    auto* embedding = reinterpret_cast<Embedding*>(objectPtr);
+    delete embedding;
+}
 }
\ No newline at end of file
@@ -19,6 +19,7 @@ public class ChatService{
 
     private final Map<String, ChatSession> transformerSessionMap = new HashMap<>();
     private final Map<String, ChatSession> diffusionSessionMap = new HashMap<>();
+    private final Map<String, EmbeddingSession> embeddingSessionMap = new HashMap<>();
 
     private static ChatService instance;
 
@@ -48,6 +49,25 @@ public class ChatService{
         return session;
     }
 
+    public synchronized EmbeddingSession createEmbeddingSession(String modelId,
+                                                                String configPath,
+                                                                String sessionId) {
+        if (TextUtils.isEmpty(sessionId)) {
+            sessionId = String.valueOf(System.currentTimeMillis());
+        }
+        EmbeddingSession session = new EmbeddingSession(modelId, sessionId, configPath);
+        embeddingSessionMap.put(sessionId, session);
+        return session;
+    }
+
+    public synchronized EmbeddingSession getEmbeddingSession(String sessionId) {
+        return embeddingSessionMap.get(sessionId);
+    }
+
+    public synchronized void removeEmbeddingSession(String sessionId) {
+        embeddingSessionMap.remove(sessionId);
+    }
+
     public synchronized ChatSession getSession(String sessionId) {
         if (transformerSessionMap.containsKey(sessionId)) {
             return transformerSessionMap.get(sessionId);
@@ -4,18 +4,22 @@
 package com.alibaba.mnnllm.android;
 
 import android.util.Log;
+import android.util.LruCache;
 
 import com.alibaba.mls.api.ApplicationProvider;
 import com.alibaba.mnnllm.android.chat.ChatDataItem;
+import com.alibaba.mnnllm.android.chat.ChatViewHolders;
 import com.alibaba.mnnllm.android.utils.FileUtils;
 import com.alibaba.mnnllm.android.utils.ModelPreferences;
 import com.alibaba.mnnllm.android.utils.ModelUtils;
 
+import org.json.JSONObject;
+
 import java.io.File;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import ddlx.api.ApiManager;
 
@@ -32,6 +36,11 @@ public class ChatSession implements Serializable {
 
     private volatile boolean mGenerating = false;
     private volatile boolean mReleaseRequeted = false;
+    private volatile boolean mLoadCancelled = false;
+
+    private volatile LoadStage loadStage = LoadStage.IDLE;
+    private volatile float loadProgress = 0f;
+    private LoadProgressListener loadProgressListener;
 
     private List<ChatDataItem> savedHistory;
     private boolean isDiffusion;
@@ -39,6 +48,17 @@ public class ChatSession implements Serializable {
     private boolean useTmpPath;
     private boolean keepHistory;
     private String modelId;
+    private String sampler;
+
+    // token ids of recently seen message fragments, sized by total token count
+    private static final int TOKENIZER_CACHE_TOKENS = 256 * 1024;
+    private final Object tokenizerLock = new Object();
+    private final LruCache<String, int[]> tokenizerCache = new LruCache<String, int[]>(TOKENIZER_CACHE_TOKENS) {
+        @Override
+        protected int sizeOf(String key, int[] value) {
+            return Math.max(1, value.length);
+        }
+    };
 
     public ChatSession(String modelId, String sessionId, String configPath, boolean useTmpPath, List<ChatDataItem> history) {
         this(modelId, sessionId, configPath, useTmpPath, history, false);
@@ -53,12 +73,27 @@ public class ChatSession implements Serializable {
         this.useTmpPath = useTmpPath;
     }
 
-    public void load() {
+    /**
+     * Loads the model in stages (config, weights and backend, optional warm-up) and reports
+     * progress to the load progress listener. Progress within the model stage comes from
+     * the engine, weighted by the bytes of the files each step reads. Returns false if the
+     * load was cancelled through {@link #cancelLoad()} before it completed.
+     */
+    public boolean load() {
         Log.d(TAG, "MNN_DEBUG load begin");
         modelLoading = true;
-        List<String> historyStringList = null;
-        if (this.savedHistory != null && !this.savedHistory.isEmpty()) {
-            historyStringList = this.savedHistory.stream().map(ChatDataItem::getText).collect(Collectors.toList());
+        mLoadCancelled = false;
+        updateLoadStage(LoadStage.CONFIG, 0f);
+        // roles come from the message types, not their position
+        List<String> historyRoles = new ArrayList<>();
+        List<String> historyContents = new ArrayList<>();
+        if (this.savedHistory != null) {
+            for (ChatDataItem item : this.savedHistory) {
+                if (item.getType() == ChatViewHolders.USER || item.getType() == ChatViewHolders.ASSISTANT) {
+                    historyRoles.add(item.getType() == ChatViewHolders.USER ? "user" : "assistant");
+                    historyContents.add(item.getText() != null ? item.getText() : "");
+                }
+            }
         }
         String rootCacheDir = "";
         if (ModelPreferences.useMmap(ApplicationProvider.get(), modelId)) {
@@ -66,8 +101,36 @@ public class ChatSession implements Serializable {
             new File(rootCacheDir).mkdirs();
         }
         boolean use_opencl = ModelPreferences.getBoolean(ApplicationProvider.get(), modelId, ModelPreferences.KEY_BACKEND, false);
-        String sampler = ModelPreferences.getString(ApplicationProvider.get(), modelId, ModelPreferences.KEY_SAMPLER, "greedy");
-        nativePtr = initNative(rootCacheDir, modelId, configPath, useTmpPath, historyStringList, isDiffusion, ModelUtils.isR1Model(modelId), use_opencl, sampler);
+        sampler = ModelPreferences.getString(ApplicationProvider.get(), modelId, ModelPreferences.KEY_SAMPLER, "greedy");
+        nativePtr = initNative(rootCacheDir, modelId, configPath, useTmpPath,
+                historyRoles.toArray(new String[0]), historyContents.toArray(new String[0]), isDiffusion, ModelUtils.isR1Model(modelId), use_opencl, sampler);
+        if (!isDiffusion) {
+            String visionCacheDir = FileUtils.getVisionCacheDir(modelId);
+            new File(visionCacheDir).mkdirs();
+            setConfigNative(nativePtr, "{\"vision_cache_dir\":" + JSONObject.quote(visionCacheDir) + "}");
+        }
+        boolean warmUp = ModelPreferences.getBoolean(ApplicationProvider.get(), modelId, ModelPreferences.KEY_WARM_UP, false);
+        float loadShare = warmUp ? 0.9f : 1f;
+        boolean loaded = false;
+        if (!mLoadCancelled) {
+            updateLoadStage(LoadStage.LOAD_MODEL, 0f);
+            loaded = loadNative(nativePtr, isDiffusion, (step, progress) -> {
+                Log.d(TAG, "MNN_DEBUG load step " + step + " " + progress);
+                updateLoadStage(LoadStage.LOAD_MODEL, progress * loadShare);
+                return !mLoadCancelled;
+            });
+            if (loaded && warmUp && !mLoadCancelled) {
+                updateLoadStage(LoadStage.WARM_UP, loadShare);
+                warmUpNative(nativePtr, isDiffusion);
+            }
+            loaded = loaded && !mLoadCancelled;
+        }
+        if (loaded) {
+            updateLoadStage(LoadStage.READY, 1f);
+        } else {
+            Log.d(TAG, "MNN_DEBUG load cancelled at stage " + loadStage);
+            mReleaseRequeted = true;
+        }
         modelLoading = false;
         if (mReleaseRequeted) {
             release();
@@ -75,9 +138,49 @@ public class ChatSession implements Serializable {
             ApiManager.getInstance().setupWithSession(this);
 
         }
+        return loaded;
+    }
+
+    /**
+     * Requests the in-flight load to stop at its next step, the native
+     * instance is then released by the loading thread.
+     */
+    public void cancelLoad() {
+        if (modelLoading) {
+            mLoadCancelled = true;
+        }
+    }
+
+    public boolean isLoadCancelled() {
+        return mLoadCancelled;
+    }
+
+    public LoadStage getLoadStage() {
+        return loadStage;
+    }
+
+    public float getLoadProgress() {
+        return loadProgress;
+    }
+
+    public void setLoadProgressListener(LoadProgressListener loadProgressListener) {
+        this.loadProgressListener = loadProgressListener;
+    }
+
+    private void updateLoadStage(LoadStage stage, float progress) {
+        this.loadStage = stage;
+        this.loadProgress = progress;
+        ApiManager.getInstance().setLoadProgress(stage, progress);
+        LoadProgressListener listener = this.loadProgressListener;
+        if (listener != null) {
+            listener.onLoadProgress(stage, progress);
+        }
     }
 
     public String getDebugInfo() {
+        if (isDiffusion) {
+            return "\n";
+        }
         return getDebugInfoNative(nativePtr) + "\n";
     }
 
@@ -85,6 +188,13 @@ public class ChatSession implements Serializable {
         return savedHistory;
     }
 
+    /**
+     * Replaces the history the model starts with, takes effect on the next {@link #load()}.
+     */
+    public void setSavedHistory(List<ChatDataItem> history) {
+        this.savedHistory = history;
+    }
+
     public String generateNewSession() {
         this.sessionId = String.valueOf(System.currentTimeMillis());
         return this.sessionId;
@@ -94,11 +204,62 @@ public class ChatSession implements Serializable {
         return sessionId;
     }
 
+    public String getConfigPath() {
+        return configPath;
+    }
+
+    public String getModelId() {
+        return modelId;
+    }
+
+    /**
+     * Sampler type the native instance was created with, null before {@link #load()}.
+     */
+    public String getSampler() {
+        return sampler;
+    }
+
     public HashMap<String, Object> generate(String input, GenerateProgressListener progressListener) {
+        return generate(input, null, progressListener);
+    }
+
+    /**
+     * Generates with per-call sampling settings. The sampler of the loaded model is
+     * restored afterwards; max tokens and stop sequences are enforced natively.
+     * When generation hits the token limit the result has "length_limited" set to 1.
+     */
+    public HashMap<String, Object> generate(String input, SamplingParams params, GenerateProgressListener progressListener) {
         synchronized (this) {
-            Log.d(TAG, "MNN_DEBUG submit" + input);
             mGenerating = true;
-            HashMap<String, Object> result = submitNative(nativePtr, input, keepHistory, progressListener);
+            String samplerConfig = params != null ? params.toSamplerConfig(sampler) : "";
+            int maxTokens = params != null ? params.getMaxTokens() : 0;
+            String[] stop = params != null ? params.getStop() : null;
+            HashMap<String, Object> result = submitNative(nativePtr, input, keepHistory, samplerConfig, maxTokens, stop, progressListener);
+            mGenerating = false;
+            if (mReleaseRequeted) {
+                release();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Runs a stateless turn (system prompt plus input) without touching the chat history,
+     * so API batch items can share the loaded model with the chat. The kv cache is replaced
+     * by the turn, which is safe since a chat turn prefills its whole history again.
+     * The native side keeps the kv cache of the longest token prefix shared with the
+     * previous call, so consecutive inputs with the same system prompt skip most of the
+     * prefill. Any other generate or reset drops the shared prefix.
+     * The result also contains "cached_len", the number of prompt tokens reused.
+     */
+    public HashMap<String, Object> generateSharedPrefix(String input, SamplingParams params, GenerateProgressListener progressListener) {
+        synchronized (this) {
+            if (isDiffusion || nativePtr == 0) {
+                return null;
+            }
+            mGenerating = true;
+            HashMap<String, Object> result = submitSharedPrefixNative(nativePtr, input,
+                    params.toSamplerConfig(sampler), params.getMaxTokens(), params.getStop(), progressListener);
             mGenerating = false;
             if (mReleaseRequeted) {
                 release();
@@ -109,7 +270,6 @@ public class ChatSession implements Serializable {
 
     public HashMap<String, Object> generateDiffusion(String input, String output, int iterNum, int randomSeed, GenerateProgressListener progressListener) {
         synchronized (this) {
-            Log.d(TAG, "MNN_DEBUG submit" + input);
             mGenerating = true;
             HashMap<String, Object> result = submitDiffusionNative(nativePtr, input, output, iterNum, randomSeed, progressListener);
             mGenerating = false;
@@ -122,10 +282,85 @@ public class ChatSession implements Serializable {
 
     public void reset() {
         synchronized (this) {
-            resetNative(nativePtr);
+            if (!isDiffusion) {
+                resetNative(nativePtr);
+            }
+        }
+    }
+
+    /**
+     * Encodes the text with the model tokenizer, results are cached per fragment.
+     * Returns null when the model is not loaded or is a diffusion model.
+     */
+    public int[] encode(String text) {
+        if (text == null) {
+            return null;
+        }
+        int[] cached = tokenizerCache.get(text);
+        if (cached != null) {
+            return cached;
+        }
+        int[] tokens;
+        synchronized (tokenizerLock) {
+            if (nativePtr == 0 || isDiffusion || modelLoading) {
+                return null;
+            }
+            tokens = tokenizeNative(nativePtr, text);
+        }
+        if (tokens != null) {
+            tokenizerCache.put(text, tokens);
+        }
+        return tokens;
+    }
+
+    /**
+     * Encodes a conversation the way the model sees it: the chat template is applied to the
+     * messages (parallel role and content arrays) and the generation prompt is appended.
+     * Not cached, returns null when the model is not loaded or is a diffusion model.
+     */
+    public int[] encodeChat(String[] roles, String[] contents) {
+        synchronized (tokenizerLock) {
+            if (nativePtr == 0 || isDiffusion || modelLoading) {
+                return null;
+            }
+            return tokenizeChatNative(nativePtr, roles, contents);
+        }
+    }
+
+    public List<int[]> encodeBatch(List<String> texts) {
+        List<int[]> result = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            result.add(encode(text));
+        }
+        return result;
+    }
+
+    public String decode(int[] tokens) {
+        synchronized (tokenizerLock) {
+            if (nativePtr == 0 || isDiffusion || modelLoading || tokens == null) {
+                return null;
+            }
+            return detokenizeNative(nativePtr, tokens);
         }
     }
 
+    public int countTokens(String text) {
+        int[] tokens = encode(text);
+        return tokens != null ? tokens.length : -1;
+    }
+
+    public int countTokens(List<String> texts) {
+        int total = 0;
+        for (String text : texts) {
+            int count = countTokens(text);
+            if (count < 0) {
+                return -1;
+            }
+            total += count;
+        }
+        return total;
+    }
+
     public void release() {
         synchronized (this) {
             Log.d(TAG, "MNN_DEBUG release nativePtr: " + nativePtr + " mGenerating: " + mGenerating);
@@ -147,8 +382,11 @@ public class ChatSession implements Serializable {
     }
     private void releaseInner() {
         if (nativePtr != 0) {
-            releaseNative(nativePtr, isDiffusion);
-            nativePtr = 0;
+            synchronized (tokenizerLock) {
+                releaseNative(nativePtr, isDiffusion);
+                nativePtr = 0;
+            }
+            tokenizerCache.evictAll();
             ChatService.provide().removeSession(sessionId);
             notifyAll();
         }
@@ -160,14 +398,32 @@ public class ChatSession implements Serializable {
         release();
     }
 
-    public native long initNative(String rootCacheDir,String modelId, String configPath, boolean useTmpPath, List<String> history, boolean isDiffusion, boolean isR1, boolean backend, String sampler);
-    private native HashMap<String, Object> submitNative(long instanceId, String input, boolean keepHistory, GenerateProgressListener listener);
+    public native long initNative(String rootCacheDir,String modelId, String configPath, boolean useTmpPath, String[] historyRoles, String[] historyContents, boolean isDiffusion, boolean isR1, boolean backend, String sampler);
+    private native boolean loadNative(long instanceId, boolean isDiffusion, LoadStepListener listener);
+
+    private native void setConfigNative(long instanceId, String config);
+
+    private native void warmUpNative(long instanceId, boolean isDiffusion);
+
+    private native HashMap<String, Object> submitNative(long instanceId, String input, boolean keepHistory,
+                                                        String samplerConfig, int maxNewTokens, String[] stop,
+                                                        GenerateProgressListener listener);
 
     private native HashMap<String, Object> submitDiffusionNative(long instanceId, String input, String outputPath, int iterNum, int randomSeed, GenerateProgressListener progressListener);
+    private native HashMap<String, Object> submitSharedPrefixNative(long instanceId, String input,
+                                                                    String samplerConfig, int maxNewTokens, String[] stop,
+                                                                    GenerateProgressListener listener);
+
     private native void resetNative(long instanceId);
 
     private native String getDebugInfoNative(long instanceId);
 
+    private native int[] tokenizeNative(long instanceId, String text);
+
+    private native int[] tokenizeChatNative(long instanceId, String[] roles, String[] contents);
+
+    private native String detokenizeNative(long instanceId, int[] tokens);
+
     private native void releaseNative(long instanceId, boolean isDiffusion);
 
     static {
@@ -186,4 +442,21 @@ public class ChatSession implements Serializable {
     public interface GenerateProgressListener {
         boolean onProgress(String progress);
     }
+
+    public enum LoadStage {
+        IDLE,
+        CONFIG,
+        LOAD_MODEL,
+        WARM_UP,
+        READY
+    }
+
+    public interface LoadProgressListener {
+        void onLoadProgress(LoadStage stage, float progress);
+    }
+
+    // called by the engine before each load step, returning false stops the load
+    private interface LoadStepListener {
+        boolean onLoadStep(String step, float progress);
+    }
 }
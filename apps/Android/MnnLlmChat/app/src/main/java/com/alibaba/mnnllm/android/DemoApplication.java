@@ -6,11 +6,13 @@ package com.alibaba.mnnllm.android;
 import android.app.Application;
 
 import com.alibaba.mls.api.ApplicationProvider;
+import com.alibaba.mnnllm.android.history.StorageCollector;
 
 public class DemoApplication extends Application {
     @Override
     public void onCreate() {
         super.onCreate();
         ApplicationProvider.set(this);
+        StorageCollector.getInstance(this).schedule();
     }
 }
@@ -0,0 +1,126 @@
+// Copyright (c) 2024 Alibaba Group Holding Limited All rights reserved.
+
+package com.alibaba.mnnllm.android;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sentence embedding session for the bge / gte style embedding models.
+ * All inputs of a call cross JNI and take the session lock once, but the
+ * exported graphs take a single sequence, so each input still runs its
+ * own forward pass.
+ */
+public class EmbeddingSession {
+
+    public static final String TAG = "EmbeddingSession";
+
+    private final String modelId;
+    private final String configPath;
+    private final String sessionId;
+    private long nativePtr;
+    private int dim;
+
+    private int totalTokens;
+
+    public EmbeddingSession(String modelId, String sessionId, String configPath) {
+        this.modelId = modelId;
+        this.sessionId = sessionId;
+        this.configPath = configPath;
+    }
+
+    public synchronized boolean load() {
+        Log.d(TAG, "MNN_DEBUG load embedding begin " + configPath);
+        nativePtr = initEmbeddingNative(configPath);
+        if (nativePtr == 0) {
+            return false;
+        }
+        dim = getDimNative(nativePtr);
+        Log.d(TAG, "MNN_DEBUG load embedding end dim: " + dim);
+        return true;
+    }
+
+    public String getModelId() {
+        return modelId;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public int getDim() {
+        return dim;
+    }
+
+    public synchronized boolean isLoaded() {
+        return nativePtr != 0;
+    }
+
+    /**
+     * Embeds all inputs, duplicated inputs are only computed once.
+     * Returns null when the session is not loaded.
+     */
+    public synchronized float[][] embed(List<String> inputs) {
+        if (nativePtr == 0) {
+            return null;
+        }
+        Map<String, Integer> uniqueIndex = new HashMap<>();
+        List<String> uniqueInputs = new ArrayList<>();
+        int[] mapping = new int[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            String input = inputs.get(i);
+            Integer index = uniqueIndex.get(input);
+            if (index == null) {
+                index = uniqueInputs.size();
+                uniqueIndex.put(input, index);
+                uniqueInputs.add(input);
+            }
+            mapping[i] = index;
+        }
+        int[] tokenCounts = new int[uniqueInputs.size()];
+        float[] flat = embedEachNative(nativePtr, uniqueInputs.toArray(new String[0]), tokenCounts);
+        if (flat == null) {
+            return null;
+        }
+        totalTokens = 0;
+        float[][] result = new float[inputs.size()][];
+        for (int i = 0; i < inputs.size(); i++) {
+            float[] vector = new float[dim];
+            System.arraycopy(flat, mapping[i] * dim, vector, 0, dim);
+            result[i] = vector;
+            totalTokens += tokenCounts[mapping[i]];
+        }
+        return result;
+    }
+
+    /**
+     * Token count of the inputs of the last {@link #embed(List)} call.
+     */
+    public synchronized int getLastTotalTokens() {
+        return totalTokens;
+    }
+
+    public synchronized void release() {
+        if (nativePtr != 0) {
+            releaseEmbeddingNative(nativePtr);
+            nativePtr = 0;
+            ChatService.provide().removeEmbeddingSession(sessionId);
+        }
+    }
+
+    private native long initEmbeddingNative(String configPath);
+
+    private native int getDimNative(long instanceId);
+
+    private native float[] embedEachNative(long instanceId, String[] inputs, int[] tokenCounts);
+
+    private native void releaseEmbeddingNative(long instanceId);
+
+    static {
+        System.loadLibrary("llm");
+    }
+}
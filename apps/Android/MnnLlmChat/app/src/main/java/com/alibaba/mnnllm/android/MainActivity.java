@@ -4,6 +4,7 @@
 package com.alibaba.mnnllm.android;
 
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.MenuItem;
@@ -11,6 +12,8 @@ import android.view.View;
 import android.widget.Toast;
 
 import androidx.activity.OnBackPressedCallback;
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.ActionBarDrawerToggle;
 import androidx.appcompat.app.AppCompatActivity;
@@ -23,6 +26,7 @@ import com.alibaba.mls.api.download.ModelDownloadManager;
 import ddlx.api.ApiManager;
 import ddlx.api.ApiSettingsFragment;
 import com.alibaba.mnnllm.android.chat.ChatActivity;
+import com.alibaba.mnnllm.android.chat.ChatArchive;
 import com.alibaba.mnnllm.android.history.ChatHistoryFragment;
 import com.alibaba.mnnllm.android.modelist.ModelListFragment;
 import com.alibaba.mnnllm.android.settings.MainSettings;
@@ -32,6 +36,13 @@ import com.alibaba.mnnllm.android.utils.ModelUtils;
 import com.google.android.material.navigation.NavigationView;
 import com.techiness.progressdialoglibrary.ProgressDialog;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
 import java.util.Objects;
 
 public class MainActivity extends AppCompatActivity {
@@ -43,6 +54,10 @@ public class MainActivity extends AppCompatActivity {
     private ModelListFragment modelListFragment;
     private ChatHistoryFragment chatHistoryFragment;
     private UpdateChecker updateChecker;
+    private final ActivityResultLauncher<String> exportChatsLauncher = registerForActivityResult(
+            new ActivityResultContracts.CreateDocument("application/octet-stream"), this::exportChats);
+    private final ActivityResultLauncher<String[]> importChatsLauncher = registerForActivityResult(
+            new ActivityResultContracts.OpenDocument(), this::importChats);
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -65,6 +80,15 @@ public class MainActivity extends AppCompatActivity {
                         .commit();
                 drawerLayout.closeDrawer(GravityCompat.START);
                 return true;
+            } else if (id == R.id.nav_export_chats) {
+                exportChatsLauncher.launch("mnn_chats_" +
+                        new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + ".mnnchat");
+                drawerLayout.closeDrawer(GravityCompat.START);
+                return true;
+            } else if (id == R.id.nav_import_chats) {
+                importChatsLauncher.launch(new String[]{"*/*"});
+                drawerLayout.closeDrawer(GravityCompat.START);
+                return true;
             }
             return false;
         });
@@ -133,6 +157,11 @@ public class MainActivity extends AppCompatActivity {
         if (destModelDir == null) {
             destModelDir = ModelDownloadManager.getInstance(this).getDownloadedFile(modelId).getAbsolutePath();
         }
+        if (ModelUtils.isEmbeddingModel(modelId)) {
+            progressDialog.dismiss();
+            loadEmbeddingModel(modelId, destModelDir + "/config.json");
+            return;
+        }
         boolean isDiffusion = ModelUtils.isDiffusionModel(modelId);
         String configFilePath = null;
         if (!isDiffusion) {
@@ -158,6 +187,72 @@ public class MainActivity extends AppCompatActivity {
         startActivity(intent);
     }
 
+    private void loadEmbeddingModel(String modelId, String configFilePath) {
+        if (!new File(configFilePath).exists()) {
+            Toast.makeText(this, getString(R.string.config_file_not_found, configFilePath), Toast.LENGTH_LONG).show();
+            return;
+        }
+        Toast.makeText(this, R.string.model_loading, Toast.LENGTH_SHORT).show();
+        new Thread(() -> {
+            EmbeddingSession session = ChatService.provide().createEmbeddingSession(modelId, configFilePath, null);
+            boolean loaded = session.load();
+            if (loaded) {
+                ApiManager.getInstance(getApplicationContext()).setEmbeddingSession(session);
+            }
+            runOnUiThread(() -> Toast.makeText(this,
+                    loaded ? getString(R.string.embedding_model_loaded, ModelUtils.getModelName(modelId))
+                            : getString(R.string.embedding_model_load_failed),
+                    Toast.LENGTH_LONG).show());
+        }).start();
+    }
+
+    private void exportChats(Uri uri) {
+        if (uri == null) {
+            return;
+        }
+        new Thread(() -> {
+            String message;
+            try (OutputStream out = getContentResolver().openOutputStream(uri)) {
+                if (out == null) {
+                    throw new FileNotFoundException(uri.toString());
+                }
+                ChatArchive.Result result = ChatArchive.export(getApplicationContext(), out);
+                message = getString(R.string.chats_exported, result.sessions, result.messages);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "export chats failed", e);
+                message = getString(R.string.chats_export_failed, e.getMessage());
+            }
+            String toast = message;
+            runOnUiThread(() -> Toast.makeText(this, toast, Toast.LENGTH_LONG).show());
+        }).start();
+    }
+
+    private void importChats(Uri uri) {
+        if (uri == null) {
+            return;
+        }
+        new Thread(() -> {
+            String message;
+            try (InputStream in = getContentResolver().openInputStream(uri)) {
+                if (in == null) {
+                    throw new FileNotFoundException(uri.toString());
+                }
+                ChatArchive.Result result = ChatArchive.importFrom(getApplicationContext(), in);
+                message = getString(R.string.chats_imported, result.sessions, result.messages);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "import chats failed", e);
+                message = getString(R.string.chats_import_failed, e.getMessage());
+            }
+            String toast = message;
+            runOnUiThread(() -> {
+                Toast.makeText(this, toast, Toast.LENGTH_LONG).show();
+                if (chatHistoryFragment != null && chatHistoryFragment.isAdded()) {
+                    chatHistoryFragment.onLoad();
+                }
+            });
+        }).start();
+    }
+
     public void onStarProject(View view) {
         GithubUtils.starProject(this);
     }
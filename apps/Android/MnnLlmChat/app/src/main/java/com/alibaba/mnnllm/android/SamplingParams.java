@@ -0,0 +1,119 @@
+// Copyright (c) 2024 Alibaba Group Holding Limited All rights reserved.
+
+package com.alibaba.mnnllm.android;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Per-call sampling settings. Unset fields keep the sampler the model was
+ * loaded with, so a call without overrides does not rebuild the sampler.
+ */
+public class SamplingParams {
+
+    private Float temperature;
+    private Float topP;
+    private Long seed;
+    private int maxTokens = 0;
+    private String[] stop;
+    private String jsonRoot;
+
+    public SamplingParams setTemperature(Float temperature) {
+        this.temperature = temperature;
+        return this;
+    }
+
+    public SamplingParams setTopP(Float topP) {
+        this.topP = topP;
+        return this;
+    }
+
+    public SamplingParams setSeed(Long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Maximum number of generated tokens, 0 means no limit.
+     */
+    public SamplingParams setMaxTokens(int maxTokens) {
+        this.maxTokens = Math.max(0, maxTokens);
+        return this;
+    }
+
+    public SamplingParams setStop(String[] stop) {
+        this.stop = stop;
+        return this;
+    }
+
+    /**
+     * Constrains the output to valid json whose root is "object", "array" or
+     * "any", null turns the constraint off.
+     */
+    public SamplingParams setJsonRoot(String jsonRoot) {
+        this.jsonRoot = jsonRoot;
+        return this;
+    }
+
+    public int getMaxTokens() {
+        return maxTokens;
+    }
+
+    public String[] getStop() {
+        return stop;
+    }
+
+    /**
+     * Whether the output only depends on the prompt: greedy decoding, either
+     * requested with temperature 0 or inherited from the loaded sampler.
+     */
+    public boolean isDeterministic(String baseSampler) {
+        if (temperature != null && temperature == 0f) {
+            return true;
+        }
+        return "greedy".equals(baseSampler) && temperature == null && topP == null;
+    }
+
+    /**
+     * Json merged into the llm config to build the sampler of this call, empty
+     * when nothing is overridden.
+     */
+    public String toSamplerConfig(String baseSampler) {
+        try {
+            JSONObject config = new JSONObject();
+            if (jsonRoot != null) {
+                config.put("response_format", "json");
+                config.put("json_root", jsonRoot);
+            }
+            if (temperature != null && temperature == 0f) {
+                config.put("sampler_type", "greedy");
+                return config.toString();
+            }
+            if (temperature != null) {
+                config.put("temperature", temperature.doubleValue());
+            }
+            if (topP != null) {
+                config.put("topP", topP.doubleValue());
+            }
+            // a greedy sampler ignores temperature and top_p, switch to a sampling one
+            if ("greedy".equals(baseSampler) && (temperature != null || topP != null)) {
+                config.put("sampler_type", topP != null ? "topP" : "temperature");
+            }
+            if (seed != null) {
+                config.put("seed", seed & 0x7fffffffL);
+            }
+            return config.length() == 0 ? "" : config.toString();
+        } catch (JSONException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Identifies the settings that change the output, used in cache keys.
+     */
+    public String cacheKey(String baseSampler) {
+        return toSamplerConfig(baseSampler) + "|" + maxTokens + "|" + (stop == null ? "" : Arrays.toString(stop));
+    }
+}
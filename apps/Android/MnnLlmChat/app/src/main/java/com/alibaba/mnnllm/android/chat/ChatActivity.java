@@ -51,6 +51,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -81,10 +82,17 @@ public class ChatActivity extends AppCompatActivity {
     private String modelName;
     private String modelId;
     private ScheduledExecutorService chatExecutor;
+    // database reads for older pages, kept off the ui thread and apart from generation
+    private final ExecutorService historyExecutor = Executors.newSingleThreadExecutor();
 
     private LinearLayoutManager linearLayoutManager;
 
     private ChatDataManager chatDataManager;
+    private ChatPersistenceQueue persistenceQueue;
+    // the generation thread only marks the response dirty, it is copied and rendered once per frame
+    private FrameUpdateCoalescer responseUpdater;
+    private volatile ChatDataItem streamingResponse;
+    private volatile GenerateResultProcessor streamingProcessor;
 
     private boolean isUserScrolling = false;
 
@@ -100,6 +108,12 @@ public class ChatActivity extends AppCompatActivity {
     private boolean isGenerating = false;
     private boolean isLoading = false;
     private String sessionName;
+    // messages are shown a page at a time, older pages when scrolled to the top; the model gets the whole session
+    private static final int CHAT_PAGE_SIZE = 50;
+    private List<ChatDataItem> firstChatPage;
+    private long oldestLoadedChatId = 0;
+    private boolean hasOlderChatData = false;
+    private boolean loadingOlderChatData = false;
     private boolean stopGenerating = false;
     private TextView toolbarTitle;
 
@@ -121,6 +135,8 @@ public class ChatActivity extends AppCompatActivity {
         toolbarTitle.setText(modelName);
         chatExecutor = Executors.newScheduledThreadPool(1);
         chatDataManager = ChatDataManager.getInstance(this);
+        persistenceQueue = ChatPersistenceQueue.getInstance(this);
+        responseUpdater = new FrameUpdateCoalescer(this::renderStreamingResponse);
         this.setupSession();
         dateFormat = new SimpleDateFormat("hh:mm aa", Locale.getDefault());
         this.setupRecyclerView();
@@ -153,35 +169,44 @@ public class ChatActivity extends AppCompatActivity {
     private void setupSession() {
         ChatService chatService = ChatService.provide();
         chatSessionId = getIntent().getStringExtra("chatSessionId");
-        List<ChatDataItem> chatDataItemList;
+        String savedSessionId = chatSessionId;
         if (!TextUtils.isEmpty(chatSessionId)) {
-            chatDataItemList = chatDataManager.getChatDataBySession(chatSessionId);
-            if (chatDataItemList != null && !chatDataItemList.isEmpty()) {
-                sessionName = chatDataItemList.get(0).getText();
+            firstChatPage = chatDataManager.getChatDataPage(chatSessionId, CHAT_PAGE_SIZE, 0);
+            sessionName = chatDataManager.getSessionName(chatSessionId);
+            if (!firstChatPage.isEmpty()) {
+                oldestLoadedChatId = firstChatPage.get(0).getId();
+                hasOlderChatData = firstChatPage.size() == CHAT_PAGE_SIZE;
+                if (TextUtils.isEmpty(sessionName)) {
+                    sessionName = firstChatPage.get(0).getText();
+                }
             }
-        } else {
-            chatDataItemList = null;
         }
+        // the model history is read in full before loading, on the loading thread
         if (ModelUtils.isDiffusionModel(modelName)) {
             String diffusionDir = getIntent().getStringExtra("diffusionDir");
-            chatSession =  chatService.createDiffusionSession(modelId, diffusionDir, chatSessionId, chatDataItemList);
+            chatSession =  chatService.createDiffusionSession(modelId, diffusionDir, chatSessionId, null);
         } else {
             String configFilePath = getIntent().getStringExtra("configFilePath");
-            chatSession = chatService.createSession(modelId, configFilePath, true, chatSessionId, chatDataItemList);
+            chatSession = chatService.createSession(modelId, configFilePath, true, chatSessionId, null);
         }
         chatSessionId = chatSession.getSessionId();
         chatSession.setKeepHistory(!ModelUtils.isVisualModel(modelName) && !ModelUtils.isAudioModel(modelName));
         Log.d(TAG, "current SessionId: " + chatSessionId);
+        chatSession.setLoadProgressListener((stage, progress) -> {
+            Log.d(TAG, "chatSession load stage: " + stage + " progress: " + progress);
+            if (stage != ChatSession.LoadStage.READY) {
+                runOnUiThread(() -> toolbarTitle.setText(getString(R.string.model_loading) + " " + (int) (progress * 100) + "%"));
+            }
+        });
         chatExecutor.submit(() -> {
             Log.d(TAG, "chatSession loading");
             setIsLoading(true);
-
-
-
-            chatSession.load();
-
+            if (!TextUtils.isEmpty(savedSessionId) && !ModelUtils.isDiffusionModel(modelName)) {
+                chatSession.setSavedHistory(chatDataManager.getChatDataBySession(savedSessionId));
+            }
+            boolean loaded = chatSession.load();
             setIsLoading(false);
-            Log.d(TAG, "chatSession loaded");
+            Log.d(TAG, loaded ? "chatSession loaded" : "chatSession load cancelled");
         });
     }
 
@@ -219,12 +244,39 @@ public class ChatActivity extends AppCompatActivity {
                 if (Math.abs(dy) > 0) {
                     isUserScrolling = true;
                 }
+                if (dy < 0 && linearLayoutManager.findFirstVisibleItemPosition() <= 2) {
+                    loadOlderChatData();
+                }
             }
             public boolean isUserScrolling() {
                 return isUserScrolling;
             }
         });
     }
+    private void loadOlderChatData() {
+        if (!hasOlderChatData || loadingOlderChatData) {
+            return;
+        }
+        loadingOlderChatData = true;
+        String sessionId = chatSessionId;
+        long beforeId = oldestLoadedChatId;
+        historyExecutor.execute(() -> {
+            List<ChatDataItem> older = chatDataManager.getChatDataPage(sessionId, CHAT_PAGE_SIZE, beforeId);
+            runOnUiThread(() -> {
+                loadingOlderChatData = false;
+                // a new conversation may have started while the page was read
+                if (!sessionId.equals(chatSessionId) || isDestroyed()) {
+                    return;
+                }
+                hasOlderChatData = older.size() == CHAT_PAGE_SIZE;
+                if (!older.isEmpty()) {
+                    oldestLoadedChatId = older.get(0).getId();
+                    adapter.prependItems(older);
+                }
+            });
+        });
+    }
+
     private void setupEditText() {
         editUserMessage = findViewById(R.id.et_message);
         editUserMessage.setOnEditorActionListener((v, actionId, event) -> {
@@ -259,9 +311,8 @@ public class ChatActivity extends AppCompatActivity {
         data.add(new ChatDataItem(dateFormat.format(new Date()), ChatViewHolders.ASSISTANT,
                 getString(ModelUtils.isDiffusionModel(modelName) ?
                         R.string.model_hello_prompt_diffusion : R.string.model_hello_prompt, modelName)));
-        List<ChatDataItem> savedHistory = chatSession.getSavedHistory();
-        if (savedHistory != null && !savedHistory.isEmpty()) {
-            data.addAll(savedHistory);
+        if (firstChatPage != null && !firstChatPage.isEmpty()) {
+            data.addAll(firstChatPage);
         }
         return data;
     }
@@ -396,6 +447,7 @@ public class ChatActivity extends AppCompatActivity {
     .setShowAsAction(MenuItem.SHOW_AS_ACTION_IF_ROOM | MenuItem.SHOW_AS_ACTION_WITH_TEXT);
 
         menu.findItem(R.id.menu_item_backend).setChecked(ModelPreferences.getBoolean(this, modelId, ModelPreferences.KEY_BACKEND, false));        
+        menu.findItem(R.id.menu_item_warm_up).setChecked(ModelPreferences.getBoolean(this, modelId, ModelPreferences.KEY_WARM_UP, false));
         MenuItem samplerSpinnerItem = menu.findItem(R.id.menu_item_sampler_spinner);
         Spinner samplerSpinner = Objects.requireNonNull(samplerSpinnerItem.getActionView()).findViewById(R.id.sampler_spinner);
         String[] items = new String[]{"greedy", "temperature", "topK", "topP", "minP", "typical", "tfs", "penalty", "mixed"};
@@ -425,7 +477,7 @@ public class ChatActivity extends AppCompatActivity {
         } else if (item.getItemId() == R.id.show_performance_metrics) {
             item.setChecked(!item.isChecked());
             PreferenceUtils.setBoolean(this, PreferenceUtils.KEY_SHOW_PERFORMACE_METRICS, item.isChecked());
-            adapter.notifyItemRangeChanged(0, adapter.getItemCount());
+            adapter.refreshBenchmarkInfo();
         } else if (item.getItemId() == android.R.id.home) {
             finish();
         } else if (item.getItemId() == R.id.menu_item_clear_mmap_cache) {
@@ -446,6 +498,10 @@ public class ChatActivity extends AppCompatActivity {
             Toast.makeText(this, R.string.reloading_session, Toast.LENGTH_LONG).show();
             ModelPreferences.setBoolean(this, modelId, ModelPreferences.KEY_BACKEND, item.isChecked());
             recreate();
+        } else if (item.getItemId() == R.id.menu_item_warm_up) {
+            // applies from the next load
+            item.setChecked(!item.isChecked());
+            ModelPreferences.setBoolean(this, modelId, ModelPreferences.KEY_WARM_UP, item.isChecked());
         }
         else if (item.getItemId() == R.id.nav_api_settings) {
             // 打开 API 设置对话框
@@ -486,8 +542,10 @@ public class ChatActivity extends AppCompatActivity {
             currentUserMessage = null;
             chatSessionId = chatSession.generateNewSession();
             this.sessionName = null;
+            hasOlderChatData = false;
+            oldestLoadedChatId = 0;
             chatExecutor.execute(() -> chatSession.reset());
-            chatDataManager.deleteAllChatData(chatSessionId);
+            persistenceQueue.deleteAllChatData(chatSessionId);
             if (adapter.reset()) {
                 Toast.makeText(this, R.string.new_conversation_started, Toast.LENGTH_LONG).show();
             }
@@ -578,16 +636,16 @@ public class ChatActivity extends AppCompatActivity {
             }
         }
         if (!hasSessionName) {
-            chatDataManager.addOrUpdateSession(chatSessionId, modelId);
+            persistenceQueue.addOrUpdateSession(chatSessionId, modelId);
             this.sessionName = sessionName.length() > 100 ? sessionName.substring(0, 100) : sessionName;
-            chatDataManager.updateSessionName(this.chatSessionId, this.sessionName);
+            persistenceQueue.updateSessionName(this.chatSessionId, this.sessionName);
         }
         if (ModelUtils.isDiffusionModel(this.modelName)) {
             chatExecutor.execute(() -> submitRequest(input));
         } else {
             chatExecutor.execute(() -> submitRequest(input));
         }
-        chatDataManager.addChatData(chatSessionId, userData);
+        persistenceQueue.addChatData(chatSessionId, userData);
         if (attachmentPickerModule != null) {
             attachmentPickerModule.clearInput();
         }
@@ -604,6 +662,7 @@ public class ChatActivity extends AppCompatActivity {
         isUserScrolling = false;
         stopGenerating = false;
         ChatDataItem chatDataItem = adapter.getRecentItem();
+        streamingResponse = chatDataItem;
         HashMap<String, Object> benchMarkResult;
         if (ModelUtils.isDiffusionModel(this.modelName)) {
             String diffusionDestPath = FileUtils.generateDestDiffusionFilePath(this, chatSessionId);
@@ -616,7 +675,7 @@ public class ChatActivity extends AppCompatActivity {
                 } else {
                     chatDataItem.setText(getString(R.string.diffusion_generate_progress, progress));
                 }
-                runOnUiThread(() -> updateAssistantResponse(chatDataItem));
+                responseUpdater.markDirty();
                 return false;
             });
         } else {
@@ -625,27 +684,52 @@ public class ChatActivity extends AppCompatActivity {
                             getString(R.string.r1_think_complete_template)) :
                     new GenerateResultProcessor.NormalGenerateResultProcessor();
             generateResultProcessor.generateBegin();
+            streamingProcessor = generateResultProcessor;
             benchMarkResult = chatSession.generate(input, progress -> {
-                generateResultProcessor.process(progress);
-                chatDataItem.setDisplayText(generateResultProcessor.getDisplayResult());
-                chatDataItem.setText(generateResultProcessor.getRawResult());
-                runOnUiThread(() -> updateAssistantResponse(chatDataItem));
+                synchronized (generateResultProcessor) {
+                    generateResultProcessor.process(progress);
+                }
+                responseUpdater.markDirty();
                 if (stopGenerating) {
                     Log.d(TAG, "stopGenerating requeted");
                 }
                 return stopGenerating;
             });
+            copyStreamingResult(chatDataItem, generateResultProcessor);
         }
         Log.d(TAG, "submitRequest benchMark: " + benchMarkResult);
         HashMap<String, Object> finalBenchMarkResult = benchMarkResult;
         runOnUiThread(() -> {
+            streamingResponse = null;
+            streamingProcessor = null;
             chatDataItem.setBenchmarkInfo(ModelUtils.generateBenchMarkString(finalBenchMarkResult));
             updateAssistantResponse(chatDataItem);
         });
-        chatDataManager.addChatData(chatSessionId, chatDataItem);
+        persistenceQueue.addChatData(chatSessionId, chatDataItem);
         this.getWindow().getDecorView().getHandler().post(() -> setIsGenerating(false));
     }
 
+    private void renderStreamingResponse() {
+        ChatDataItem chatDataItem = streamingResponse;
+        if (chatDataItem == null) {
+            return;
+        }
+        GenerateResultProcessor processor = streamingProcessor;
+        if (processor != null) {
+            copyStreamingResult(chatDataItem, processor);
+            // diffusion only streams progress text, its message is saved once the image is done
+            persistenceQueue.updateChatData(chatSessionId, chatDataItem);
+        }
+        updateAssistantResponse(chatDataItem);
+    }
+
+    private static void copyStreamingResult(ChatDataItem chatDataItem, GenerateResultProcessor processor) {
+        synchronized (processor) {
+            chatDataItem.setDisplayText(processor.getDisplayResult().toString());
+            chatDataItem.setText(processor.getRawResult().toString());
+        }
+    }
+
     private void updateAssistantResponse(ChatDataItem chatDataItem) {
         adapter.updateRecentItem(chatDataItem);
         if (!isUserScrolling) {
@@ -658,6 +742,10 @@ public class ChatActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
         stopGenerating = true;
+        chatSession.cancelLoad();
+        responseUpdater.cancel();
+        adapter.release();
+        historyExecutor.shutdownNow();
         chatExecutor.submit(() -> {
             chatSession.reset();
             chatSession.release();
@@ -665,6 +753,12 @@ public class ChatActivity extends AppCompatActivity {
         });
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        persistenceQueue.flush();
+    }
+
     @Override
     protected void onStop() {
         super.onStop();
@@ -0,0 +1,470 @@
+// Copyright (c) 2024 Alibaba Group Holding Limited All rights reserved.
+
+package com.alibaba.mnnllm.android.chat;
+
+import android.content.Context;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import com.alibaba.mnnllm.android.utils.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Exports chat history to a single stream and imports it back, used to move histories between
+ * devices. The stream is a header followed by deflated records, each record is a type byte, a
+ * varint payload length and the payload:
+ * <pre>
+ * SESSION  id, modelId, title, lastMessageTime
+ * FILE     relative name, then the file bytes up to the payload length
+ * MESSAGE  time, type, text, displayText, imageUri, audioUri, audioDuration
+ * END
+ * </pre>
+ * Strings are a varint of the UTF-8 length plus one, 0 for null. Files in the session folder
+ * come right before the first message that refers to them, which stores "media:name" instead
+ * of the local path. Sessions, messages and files are streamed, nothing is held in memory
+ * beyond one page of messages. Unknown record types are skipped.
+ */
+public class ChatArchive {
+    private static final byte[] MAGIC = "MNNCHAT".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+
+    private static final int RECORD_END = 0;
+    private static final int RECORD_SESSION = 1;
+    private static final int RECORD_MESSAGE = 2;
+    private static final int RECORD_FILE = 3;
+
+    private static final String MEDIA_PREFIX = "media:";
+    private static final int SESSION_PAGE_SIZE = 50;
+    private static final int MESSAGE_PAGE_SIZE = 200;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static class Result {
+        public int sessions;
+        public int messages;
+        public int files;
+    }
+
+    /**
+     * Writes every session to out, which is left open. Waits for queued chat writes first,
+     * so call it off the main thread.
+     */
+    public static Result export(Context context, OutputStream out) throws IOException {
+        ChatPersistenceQueue.getInstance(context).flushAndWait();
+        ChatDataManager chatDataManager = ChatDataManager.getInstance(context);
+        Result result = new Result();
+        out.write(MAGIC);
+        out.write(VERSION);
+        // media is mostly jpeg or wav, the fastest level keeps export close to disk speed
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream deflated = new DeflaterOutputStream(new NonClosingOutputStream(out), deflater, BUFFER_SIZE);
+            RecordWriter writer = new RecordWriter(new BufferedOutputStream(deflated, BUFFER_SIZE));
+            byte[] copyBuffer = new byte[BUFFER_SIZE];
+            SessionItem after = null;
+            List<SessionItem> sessions;
+            do {
+                sessions = chatDataManager.getSessions(SESSION_PAGE_SIZE, after);
+                for (SessionItem session : sessions) {
+                    exportSession(context, chatDataManager, session, writer, copyBuffer, result);
+                    after = session;
+                }
+            } while (sessions.size() == SESSION_PAGE_SIZE);
+            writer.beginRecord();
+            writer.endRecord(RECORD_END);
+            writer.out.flush();
+            deflated.finish();
+            out.flush();
+        } finally {
+            deflater.end();
+        }
+        return result;
+    }
+
+    private static void exportSession(Context context, ChatDataManager chatDataManager, SessionItem session,
+                                      RecordWriter writer, byte[] copyBuffer, Result result) throws IOException {
+        String sessionId = session.getSessionId();
+        writer.beginRecord();
+        writer.writeString(sessionId);
+        writer.writeString(session.getModelId());
+        writer.writeString(session.getTitle());
+        writer.writeVarLong(session.getLastMessageTime());
+        writer.endRecord(RECORD_SESSION);
+        result.sessions++;
+
+        File sessionDir = new File(FileUtils.getSessionResourceBasePath(context, sessionId));
+        String sessionDirPath = sessionDir.getCanonicalPath() + File.separator;
+        Set<String> writtenFiles = new HashSet<>();
+        long afterId = 0;
+        List<ChatDataItem> items;
+        do {
+            items = chatDataManager.getChatDataAfter(sessionId, afterId, MESSAGE_PAGE_SIZE);
+            for (ChatDataItem item : items) {
+                String imageRef = exportUri(item.getImageUri(), sessionDirPath, writtenFiles, writer, copyBuffer, result);
+                String audioRef = exportUri(item.getAudioUri(), sessionDirPath, writtenFiles, writer, copyBuffer, result);
+                writer.beginRecord();
+                writer.writeString(item.getTime());
+                writer.writeVarLong(item.getType());
+                writer.writeString(item.getText());
+                // getDisplayText falls back to the text
+                writer.writeString(TextUtils.equals(item.getDisplayText(), item.getText()) ? null : item.getDisplayText());
+                writer.writeString(imageRef);
+                writer.writeString(audioRef);
+                writer.writeVarLong(Float.floatToIntBits(item.getAudioDuration()) & 0xffffffffL);
+                writer.endRecord(RECORD_MESSAGE);
+                result.messages++;
+                afterId = item.getId();
+            }
+        } while (items.size() == MESSAGE_PAGE_SIZE);
+    }
+
+    /**
+     * The reference to store for uri, writes the file first when it is in the session folder.
+     */
+    private static String exportUri(Uri uri, String sessionDirPath, Set<String> writtenFiles,
+                                    RecordWriter writer, byte[] copyBuffer, Result result) throws IOException {
+        if (uri == null) {
+            return null;
+        }
+        File file = localFile(uri);
+        String path = file != null ? file.getCanonicalPath() : null;
+        if (path == null || !path.startsWith(sessionDirPath) || !file.isFile()) {
+            return uri.toString();
+        }
+        String name = path.substring(sessionDirPath.length());
+        if (writtenFiles.add(name)) {
+            long length = file.length();
+            writer.beginRecord();
+            writer.writeString(name);
+            try (InputStream in = new FileInputStream(file)) {
+                writer.writeHeader(RECORD_FILE, writer.recordSize() + length);
+                writer.flushRecord();
+                long remaining = length;
+                while (remaining > 0) {
+                    int read = in.read(copyBuffer, 0, (int) Math.min(copyBuffer.length, remaining));
+                    if (read < 0) {
+                        throw new IOException("file changed during export: " + name);
+                    }
+                    writer.out.write(copyBuffer, 0, read);
+                    remaining -= read;
+                }
+            }
+            result.files++;
+        }
+        return MEDIA_PREFIX + name;
+    }
+
+    // image uris are file uris or plain paths, see DiffusionSession
+    private static File localFile(Uri uri) {
+        String scheme = uri.getScheme();
+        if (scheme != null && !"file".equals(scheme)) {
+            return null;
+        }
+        String path = uri.getPath();
+        return path != null ? new File(path) : null;
+    }
+
+    /**
+     * Adds every session in the stream, a session whose id is taken gets a new one. Waits
+     * for queued chat writes first, so call it off the main thread.
+     */
+    public static Result importFrom(Context context, InputStream in) throws IOException {
+        byte[] header = new byte[MAGIC.length + 1];
+        readFully(in, header, 0, header.length);
+        if (!Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC)) {
+            throw new IOException("not a chat archive");
+        }
+        if (header[MAGIC.length] != VERSION) {
+            throw new IOException("unsupported chat archive version " + header[MAGIC.length]);
+        }
+        ChatPersistenceQueue.getInstance(context).flushAndWait();
+        ChatDataManager chatDataManager = ChatDataManager.getInstance(context);
+        Result result = new Result();
+        Inflater inflater = new Inflater();
+        try {
+            RecordReader reader = new RecordReader(new BufferedInputStream(
+                    new InflaterInputStream(in, inflater, BUFFER_SIZE), BUFFER_SIZE));
+            byte[] copyBuffer = new byte[BUFFER_SIZE];
+            String sessionId = null;
+            File sessionDir = null;
+            long lastMessageTime = 0;
+            List<ChatDataItem> pending = new ArrayList<>();
+            while (true) {
+                int type = reader.in.read();
+                if (type < 0) {
+                    throw new EOFException("chat archive is truncated");
+                }
+                long length = reader.readVarLong();
+                if (type == RECORD_SESSION || type == RECORD_END) {
+                    if (sessionId != null) {
+                        finishSession(chatDataManager, sessionId, pending, lastMessageTime);
+                    }
+                    if (type == RECORD_END) {
+                        break;
+                    }
+                    reader.beginRecord(length);
+                    String originalId = reader.readString();
+                    String modelId = reader.readString();
+                    String title = reader.readString();
+                    lastMessageTime = reader.readVarLong();
+                    reader.skipRest();
+                    sessionId = newSessionId(context, chatDataManager, originalId);
+                    sessionDir = new File(FileUtils.getSessionResourceBasePath(context, sessionId));
+                    String newId = sessionId;
+                    chatDataManager.runInTransaction(() -> {
+                        chatDataManager.addOrUpdateSession(newId, modelId);
+                        chatDataManager.updateSessionName(newId, title);
+                    });
+                    result.sessions++;
+                } else if (type == RECORD_MESSAGE && sessionId != null) {
+                    reader.beginRecord(length);
+                    ChatDataItem item = new ChatDataItem(reader.readString(), (int) reader.readVarLong(), reader.readString());
+                    String displayText = reader.readString();
+                    if (displayText != null) {
+                        item.setDisplayText(displayText);
+                    }
+                    item.setImageUri(importUri(reader.readString(), sessionDir));
+                    item.setAudioUri(importUri(reader.readString(), sessionDir));
+                    item.setAudioDuration(Float.intBitsToFloat((int) reader.readVarLong()));
+                    reader.skipRest();
+                    pending.add(item);
+                    if (pending.size() >= MESSAGE_PAGE_SIZE) {
+                        chatDataManager.addChatData(sessionId, pending);
+                        pending.clear();
+                    }
+                    result.messages++;
+                } else if (type == RECORD_FILE && sessionId != null) {
+                    reader.beginRecord(length);
+                    File file = mediaFile(sessionDir, reader.readString());
+                    FileUtils.ensureParentDirectoriesExist(file);
+                    try (OutputStream out = new FileOutputStream(file)) {
+                        while (reader.remaining > 0) {
+                            int read = reader.in.read(copyBuffer, 0, (int) Math.min(copyBuffer.length, reader.remaining));
+                            if (read < 0) {
+                                throw new EOFException("chat archive is truncated");
+                            }
+                            out.write(copyBuffer, 0, read);
+                            reader.remaining -= read;
+                        }
+                    }
+                    result.files++;
+                } else {
+                    reader.beginRecord(length);
+                    reader.skipRest();
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+        return result;
+    }
+
+    private static void finishSession(ChatDataManager chatDataManager, String sessionId,
+                                      List<ChatDataItem> pending, long lastMessageTime) {
+        chatDataManager.runInTransaction(() -> {
+            if (!pending.isEmpty()) {
+                chatDataManager.addChatData(sessionId, pending);
+            }
+            // inserting stamps the session with the current time
+            chatDataManager.setSessionLastMessageTime(sessionId, lastMessageTime);
+        });
+        pending.clear();
+    }
+
+    private static String newSessionId(Context context, ChatDataManager chatDataManager, String sessionId) {
+        if (sessionId == null) {
+            sessionId = String.valueOf(System.currentTimeMillis());
+        }
+        String candidate = sessionId;
+        for (int i = 1; chatDataManager.hasSession(candidate)
+                || new File(FileUtils.getSessionResourceBasePath(context, candidate)).exists(); i++) {
+            candidate = sessionId + "_" + i;
+        }
+        return candidate;
+    }
+
+    private static Uri importUri(String ref, File sessionDir) throws IOException {
+        if (ref == null) {
+            return null;
+        }
+        if (ref.startsWith(MEDIA_PREFIX)) {
+            return Uri.fromFile(mediaFile(sessionDir, ref.substring(MEDIA_PREFIX.length())));
+        }
+        return Uri.parse(ref);
+    }
+
+    private static File mediaFile(File sessionDir, String name) throws IOException {
+        File file = new File(sessionDir, name);
+        if (name == null || !file.getCanonicalPath().startsWith(sessionDir.getCanonicalPath() + File.separator)) {
+            throw new IOException("invalid media name in chat archive: " + name);
+        }
+        return file;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = in.read(buffer, offset, length);
+            if (read < 0) {
+                throw new EOFException("chat archive is truncated");
+            }
+            offset += read;
+            length -= read;
+        }
+    }
+
+    private static class RecordWriter {
+        final OutputStream out;
+        // payload of the record being written, reused across records
+        private final ByteArrayOutputStream record = new ByteArrayOutputStream(4096);
+
+        RecordWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        void beginRecord() {
+            record.reset();
+        }
+
+        int recordSize() {
+            return record.size();
+        }
+
+        void endRecord(int type) throws IOException {
+            writeHeader(type, record.size());
+            flushRecord();
+        }
+
+        void writeHeader(int type, long payloadLength) throws IOException {
+            out.write(type);
+            writeVarLong(out, payloadLength);
+        }
+
+        void flushRecord() throws IOException {
+            record.writeTo(out);
+        }
+
+        void writeVarLong(long value) throws IOException {
+            writeVarLong(record, value);
+        }
+
+        void writeString(String value) throws IOException {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length + 1L);
+            record.write(bytes, 0, bytes.length);
+        }
+
+        private static void writeVarLong(OutputStream out, long value) throws IOException {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+    }
+
+    private static class RecordReader {
+        final InputStream in;
+        // payload bytes left in the current record
+        long remaining;
+
+        RecordReader(InputStream in) {
+            this.in = in;
+        }
+
+        void beginRecord(long length) {
+            remaining = length;
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("malformed varint in chat archive");
+        }
+
+        String readString() throws IOException {
+            long length = readVarLong();
+            if (length == 0) {
+                return null;
+            }
+            if (length - 1 > remaining) {
+                throw new IOException("string exceeds record in chat archive");
+            }
+            byte[] bytes = new byte[(int) (length - 1)];
+            readFully(in, bytes, 0, bytes.length);
+            remaining -= bytes.length;
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        void skipRest() throws IOException {
+            while (remaining > 0) {
+                long skipped = in.skip(remaining);
+                if (skipped <= 0) {
+                    if (in.read() < 0) {
+                        throw new EOFException("chat archive is truncated");
+                    }
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+        }
+
+        private int readByte() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("chat archive is truncated");
+            }
+            // record headers are read outside a record, where remaining is not tracked
+            if (remaining > 0) {
+                remaining--;
+            }
+            return b;
+        }
+    }
+
+    // the caller owns the document stream, finishing the deflater must not close it
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
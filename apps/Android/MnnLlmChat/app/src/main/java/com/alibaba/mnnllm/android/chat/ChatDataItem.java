@@ -9,6 +9,8 @@ import android.text.TextUtils;
 import java.io.File;
 
 public class ChatDataItem {
+    // row id in the database, 0 until the item is saved
+    private long id;
     private String time;
     public AudioPlayerComponent audioPlayComponent;
     private String text;
@@ -33,6 +35,14 @@ public class ChatDataItem {
         this.type = type;
     }
 
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
     public String getTime() {
         return time;
     }
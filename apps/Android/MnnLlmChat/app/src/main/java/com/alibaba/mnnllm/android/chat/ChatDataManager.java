@@ -4,22 +4,86 @@
 package com.alibaba.mnnllm.android.chat;
 
 
-import android.annotation.SuppressLint;
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
 import android.text.TextUtils;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class ChatDataManager {
 
+    // matches ranked in Java, newest first when there are more
+    private static final int MAX_SEARCH_CANDIDATES = 2000;
+    private static final double BM25_K1 = 1.2;
+    private static final double BM25_B = 0.75;
+
+    private static final String INSERT_CHAT_SQL = "INSERT INTO " + ChatDatabaseHelper.TABLE_CHAT + " (" +
+            ChatDatabaseHelper.COLUMN_SESSION_ID + ", " +
+            ChatDatabaseHelper.COLUMN_TIME + ", " +
+            ChatDatabaseHelper.COLUMN_TEXT + ", " +
+            ChatDatabaseHelper.COLUMN_TYPE + ", " +
+            ChatDatabaseHelper.COLUMN_IMAGE_URI + ", " +
+            ChatDatabaseHelper.COLUMN_AUDIO_URI + ", " +
+            ChatDatabaseHelper.COLUMN_AUDIO_DURATION + ", " +
+            ChatDatabaseHelper.COLUMN_DISPLAY_TEXT + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    // UPSERT needs SQLite 3.24 (API 30), older devices insert-or-ignore then update in one transaction
+    private static final String UPSERT_SESSION_SQL = "INSERT INTO " + ChatDatabaseHelper.TABLE_SESSION + " (" +
+            ChatDatabaseHelper.COLUMN_SESSION_ID + ", " + ChatDatabaseHelper.COLUMN_MODEL_ID + ", " +
+            ChatDatabaseHelper.COLUMN_LAST_MESSAGE_TIME + ") VALUES (?, ?, ?)" +
+            " ON CONFLICT(" + ChatDatabaseHelper.COLUMN_SESSION_ID + ") DO UPDATE SET " +
+            ChatDatabaseHelper.COLUMN_MODEL_ID + " = excluded." + ChatDatabaseHelper.COLUMN_MODEL_ID;
+
+    private static final String INSERT_SESSION_SQL = "INSERT OR IGNORE INTO " + ChatDatabaseHelper.TABLE_SESSION + " (" +
+            ChatDatabaseHelper.COLUMN_SESSION_ID + ", " + ChatDatabaseHelper.COLUMN_MODEL_ID + ", " +
+            ChatDatabaseHelper.COLUMN_LAST_MESSAGE_TIME + ") VALUES (?, ?, ?)";
+
+    private static final String UPDATE_SESSION_MODEL_SQL = "UPDATE " + ChatDatabaseHelper.TABLE_SESSION +
+            " SET " + ChatDatabaseHelper.COLUMN_MODEL_ID + " = ? WHERE " + ChatDatabaseHelper.COLUMN_SESSION_ID + " = ?";
+
+    private static final String TOUCH_SESSION_SQL = "UPDATE " + ChatDatabaseHelper.TABLE_SESSION +
+            " SET " + ChatDatabaseHelper.COLUMN_LAST_MESSAGE_TIME + " = ?, " +
+            ChatDatabaseHelper.COLUMN_MESSAGE_COUNT + " = " + ChatDatabaseHelper.COLUMN_MESSAGE_COUNT + " + 1" +
+            " WHERE " + ChatDatabaseHelper.COLUMN_SESSION_ID + " = ?";
+
+    private static final String UPDATE_CHAT_SQL = "UPDATE " + ChatDatabaseHelper.TABLE_CHAT + " SET " +
+            ChatDatabaseHelper.COLUMN_TEXT + " = ?, " +
+            ChatDatabaseHelper.COLUMN_IMAGE_URI + " = ?, " +
+            ChatDatabaseHelper.COLUMN_AUDIO_URI + " = ?, " +
+            ChatDatabaseHelper.COLUMN_AUDIO_DURATION + " = ?, " +
+            ChatDatabaseHelper.COLUMN_DISPLAY_TEXT + " = ? WHERE " +
+            ChatDatabaseHelper.COLUMN_ID + " = ?";
+
+    private static final String UPDATE_SESSION_NAME_SQL = "UPDATE " + ChatDatabaseHelper.TABLE_SESSION +
+            " SET " + ChatDatabaseHelper.COLUMN_SESSION_NAME + " = ? WHERE " + ChatDatabaseHelper.COLUMN_SESSION_ID + " = ?";
+
     private ChatDatabaseHelper dbHelper;
     private static ChatDataManager sInstance;
 
+    // opened once and kept for the process lifetime, statements are compiled on first use
+    private SQLiteDatabase database;
+    private SQLiteStatement insertChatStatement;
+    private SQLiteStatement upsertSessionStatement;
+    private SQLiteStatement insertSessionStatement;
+    private SQLiteStatement updateSessionModelStatement;
+    private SQLiteStatement updateSessionNameStatement;
+    private SQLiteStatement touchSessionStatement;
+    private SQLiteStatement updateChatStatement;
+
     private ChatDataManager(Context context) {
         dbHelper = new ChatDatabaseHelper(context);
     }
@@ -33,139 +97,513 @@ public class ChatDataManager {
         return sInstance;
     }
 
-    public void addOrUpdateSession(String sessionId, String modelId) {
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
+    private synchronized SQLiteDatabase getDatabase() {
+        if (database == null || !database.isOpen()) {
+            database = dbHelper.getWritableDatabase();
+            insertChatStatement = null;
+            upsertSessionStatement = null;
+            insertSessionStatement = null;
+            updateSessionModelStatement = null;
+            updateSessionNameStatement = null;
+            touchSessionStatement = null;
+            updateChatStatement = null;
+        }
+        return database;
+    }
 
-        Cursor cursor = db.query(ChatDatabaseHelper.TABLE_SESSION,
-                new String[]{ChatDatabaseHelper.COLUMN_SESSION_ID},
-                ChatDatabaseHelper.COLUMN_SESSION_ID + "=?",
-                new String[]{sessionId}, null, null, null);
+    public synchronized void addOrUpdateSession(String sessionId, String modelId) {
+        SQLiteDatabase db = getDatabase();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            if (upsertSessionStatement == null) {
+                upsertSessionStatement = db.compileStatement(UPSERT_SESSION_SQL);
+            }
+            bindNullableString(upsertSessionStatement, 1, sessionId);
+            bindNullableString(upsertSessionStatement, 2, modelId);
+            upsertSessionStatement.bindLong(3, System.currentTimeMillis());
+            upsertSessionStatement.executeInsert();
+            return;
+        }
+        if (insertSessionStatement == null) {
+            insertSessionStatement = db.compileStatement(INSERT_SESSION_SQL);
+            updateSessionModelStatement = db.compileStatement(UPDATE_SESSION_MODEL_SQL);
+        }
+        db.beginTransactionNonExclusive();
+        try {
+            bindNullableString(insertSessionStatement, 1, sessionId);
+            bindNullableString(insertSessionStatement, 2, modelId);
+            insertSessionStatement.bindLong(3, System.currentTimeMillis());
+            if (insertSessionStatement.executeInsert() == -1) {
+                bindNullableString(updateSessionModelStatement, 1, modelId);
+                bindNullableString(updateSessionModelStatement, 2, sessionId);
+                updateSessionModelStatement.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
 
-        boolean exists = cursor.moveToFirst();
-        cursor.close();
+    public synchronized void addChatData(String sessionId, ChatDataItem chatDataItem) {
+        SQLiteDatabase db = getDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            insertChatData(db, sessionId, chatDataItem);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
 
-        ContentValues values = new ContentValues();
-        values.put(ChatDatabaseHelper.COLUMN_SESSION_ID, sessionId);
-        values.put(ChatDatabaseHelper.COLUMN_MODEL_ID, modelId);
+    /**
+     * Inserts several messages of one session in a single transaction.
+     */
+    public synchronized void addChatData(String sessionId, List<ChatDataItem> chatDataItems) {
+        SQLiteDatabase db = getDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            for (ChatDataItem chatDataItem : chatDataItems) {
+                insertChatData(db, sessionId, chatDataItem);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
 
-        if (exists) {
-            db.update(ChatDatabaseHelper.TABLE_SESSION, values,
-                    ChatDatabaseHelper.COLUMN_SESSION_ID + "=?",
-                    new String[]{sessionId});
-        } else {
-            db.insert(ChatDatabaseHelper.TABLE_SESSION, null, values);
+    private void insertChatData(SQLiteDatabase db, String sessionId, ChatDataItem chatDataItem) {
+        if (insertChatStatement == null) {
+            insertChatStatement = db.compileStatement(INSERT_CHAT_SQL);
+        }
+        SQLiteStatement statement = insertChatStatement;
+        bindNullableString(statement, 1, sessionId);
+        bindNullableString(statement, 2, chatDataItem.getTime());
+        bindNullableString(statement, 3, chatDataItem.getText());
+        statement.bindLong(4, chatDataItem.getType());
+        bindNullableString(statement, 5, chatDataItem.getImageUri() != null ? chatDataItem.getImageUri().toString() : null);
+        bindNullableString(statement, 6, chatDataItem.getAudioUri() != null ? chatDataItem.getAudioUri().toString() : null);
+        statement.bindDouble(7, chatDataItem.getAudioDuration());
+        bindNullableString(statement, 8, chatDataItem.getDisplayText());
+        chatDataItem.setId(statement.executeInsert());
+        if (touchSessionStatement == null) {
+            touchSessionStatement = db.compileStatement(TOUCH_SESSION_SQL);
         }
-        db.close();
+        touchSessionStatement.bindLong(1, System.currentTimeMillis());
+        bindNullableString(touchSessionStatement, 2, sessionId);
+        touchSessionStatement.executeUpdateDelete();
     }
 
-    public void addChatData(String sessionId, ChatDataItem chatDataItem) {
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(ChatDatabaseHelper.COLUMN_SESSION_ID, sessionId);
-        values.put(ChatDatabaseHelper.COLUMN_TIME, chatDataItem.getTime());
-        values.put(ChatDatabaseHelper.COLUMN_TEXT, chatDataItem.getText());
-        values.put(ChatDatabaseHelper.COLUMN_TYPE, chatDataItem.getType());
-        if (chatDataItem.getImageUri() != null) {
-            values.put(ChatDatabaseHelper.COLUMN_IMAGE_URI, chatDataItem.getImageUri().toString());
+    private static void bindNullableString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
         } else {
-            values.put(ChatDatabaseHelper.COLUMN_IMAGE_URI, (String) null);
+            statement.bindString(index, value);
         }
-        if (chatDataItem.getAudioUri() != null) {
-            values.put(ChatDatabaseHelper.COLUMN_AUDIO_URI, chatDataItem.getAudioUri().toString());
-        } else {
-            values.put(ChatDatabaseHelper.COLUMN_AUDIO_URI, (String) null);
+    }
+
+    /**
+     * Rewrite the content of an already saved item, used while a response is still streaming.
+     */
+    public synchronized void updateChatData(ChatDataItem chatDataItem) {
+        if (updateChatStatement == null) {
+            updateChatStatement = getDatabase().compileStatement(UPDATE_CHAT_SQL);
+        }
+        SQLiteStatement statement = updateChatStatement;
+        bindNullableString(statement, 1, chatDataItem.getText());
+        bindNullableString(statement, 2, chatDataItem.getImageUri() != null ? chatDataItem.getImageUri().toString() : null);
+        bindNullableString(statement, 3, chatDataItem.getAudioUri() != null ? chatDataItem.getAudioUri().toString() : null);
+        statement.bindDouble(4, chatDataItem.getAudioDuration());
+        bindNullableString(statement, 5, chatDataItem.getDisplayText());
+        statement.bindLong(6, chatDataItem.getId());
+        statement.executeUpdateDelete();
+    }
+
+    public synchronized void runInTransaction(Runnable runnable) {
+        SQLiteDatabase db = getDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            runnable.run();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
-        values.put(ChatDatabaseHelper.COLUMN_AUDIO_DURATION, chatDataItem.getAudioDuration());
-        values.put(ChatDatabaseHelper.COLUMN_DISPLAY_TEXT, chatDataItem.getDisplayText());
-        db.insert(ChatDatabaseHelper.TABLE_CHAT, null, values);
-        db.close();
     }
 
-    @SuppressLint("Range")
     public List<ChatDataItem> getChatDataBySession(String sessionId) {
-        List<ChatDataItem> chatDataItemList = new ArrayList<>();
-        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        return getChatDataPage(sessionId, -1, 0);
+    }
+
+    /**
+     * Loads the latest {@code limit} messages older than {@code beforeId} in ascending
+     * order, pass 0 to start from the newest message and the smallest loaded id to page
+     * backwards. A negative limit loads everything.
+     */
+    public List<ChatDataItem> getChatDataPage(String sessionId, int limit, long beforeId) {
+        String selection = ChatDatabaseHelper.COLUMN_SESSION_ID + "=?";
+        String[] args = new String[]{sessionId};
+        if (beforeId > 0) {
+            selection += " AND " + ChatDatabaseHelper.COLUMN_ID + "<?";
+            args = new String[]{sessionId, String.valueOf(beforeId)};
+        }
+        List<ChatDataItem> chatDataItemList = queryChatData(selection, args, ChatDatabaseHelper.COLUMN_ID + " DESC", limit);
+        Collections.reverse(chatDataItemList);
+        return chatDataItemList;
+    }
 
-        Cursor cursor = db.query(ChatDatabaseHelper.TABLE_CHAT,
-                null,
-                ChatDatabaseHelper.COLUMN_SESSION_ID + "=?",
-                new String[]{sessionId}, null, null, null);
+    /**
+     * Messages after {@code afterId} in ascending order, to read a whole session a page at a time.
+     */
+    public List<ChatDataItem> getChatDataAfter(String sessionId, long afterId, int limit) {
+        return queryChatData(ChatDatabaseHelper.COLUMN_SESSION_ID + "=? AND " + ChatDatabaseHelper.COLUMN_ID + ">?",
+                new String[]{sessionId, String.valueOf(afterId)}, ChatDatabaseHelper.COLUMN_ID + " ASC", limit);
+    }
 
-        if (cursor != null) {
+    private List<ChatDataItem> queryChatData(String selection, String[] args, String orderBy, int limit) {
+        List<ChatDataItem> chatDataItemList = new ArrayList<>();
+        try (Cursor cursor = getDatabase().query(ChatDatabaseHelper.TABLE_CHAT,
+                null, selection, args, null, null,
+                orderBy, limit >= 0 ? String.valueOf(limit) : null)) {
+            int idIndex = cursor.getColumnIndexOrThrow(ChatDatabaseHelper.COLUMN_ID);
+            int timeIndex = cursor.getColumnIndexOrThrow(ChatDatabaseHelper.COLUMN_TIME);
+            int typeIndex = cursor.getColumnIndexOrThrow(ChatDatabaseHelper.COLUMN_TYPE);
+            int textIndex = cursor.getColumnIndexOrThrow(ChatDatabaseHelper.COLUMN_TEXT);
+            int imageUriIndex = cursor.getColumnIndexOrThrow(ChatDatabaseHelper.COLUMN_IMAGE_URI);
+            int audioUriIndex = cursor.getColumnIndexOrThrow(ChatDatabaseHelper.COLUMN_AUDIO_URI);
+            int audioDurationIndex = cursor.getColumnIndexOrThrow(ChatDatabaseHelper.COLUMN_AUDIO_DURATION);
+            int displayTextIndex = cursor.getColumnIndexOrThrow(ChatDatabaseHelper.COLUMN_DISPLAY_TEXT);
             while (cursor.moveToNext()) {
-                 String time = cursor.getString(cursor.getColumnIndex(ChatDatabaseHelper.COLUMN_TIME));
-                int type = cursor.getInt(cursor.getColumnIndex(ChatDatabaseHelper.COLUMN_TYPE));
-                String text = cursor.getString(cursor.getColumnIndex(ChatDatabaseHelper.COLUMN_TEXT));
-                String imageUriStr = cursor.getString(cursor.getColumnIndex(ChatDatabaseHelper.COLUMN_IMAGE_URI));
-                String audioUriStr = cursor.getString(cursor.getColumnIndex(ChatDatabaseHelper.COLUMN_AUDIO_URI));
-                float audioDuration = cursor.getFloat(cursor.getColumnIndex(ChatDatabaseHelper.COLUMN_AUDIO_DURATION));
-                String displayText = cursor.getString(cursor.getColumnIndex(ChatDatabaseHelper.COLUMN_DISPLAY_TEXT));
-                ChatDataItem chatDataItem = new ChatDataItem(time, type, text);
+                ChatDataItem chatDataItem = new ChatDataItem(cursor.getString(timeIndex),
+                        cursor.getInt(typeIndex), cursor.getString(textIndex));
+                chatDataItem.setId(cursor.getLong(idIndex));
+                String imageUriStr = cursor.getString(imageUriIndex);
                 if (imageUriStr != null) {
                     chatDataItem.setImageUri(Uri.parse(imageUriStr));
                 }
+                String displayText = cursor.getString(displayTextIndex);
                 if (!TextUtils.isEmpty(displayText)) {
                     chatDataItem.setDisplayText(displayText);
                 }
+                String audioUriStr = cursor.getString(audioUriIndex);
                 if (audioUriStr != null) {
                     chatDataItem.setAudioUri(Uri.parse(audioUriStr));
-                    chatDataItem.setAudioDuration(audioDuration);
+                    chatDataItem.setAudioDuration(cursor.getFloat(audioDurationIndex));
                 }
                 chatDataItemList.add(chatDataItem);
             }
-            cursor.close();
         }
-        db.close();
-
         return chatDataItemList;
     }
 
-    public void updateSessionName(String sessionId, String newName) {
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-
-        ContentValues values = new ContentValues();
-        values.put(ChatDatabaseHelper.COLUMN_SESSION_NAME, newName);
-
-        db.update(ChatDatabaseHelper.TABLE_SESSION, values,
-                ChatDatabaseHelper.COLUMN_SESSION_ID + "=?",
-                new String[]{sessionId});
-        db.close();
+    public synchronized void updateSessionName(String sessionId, String newName) {
+        SQLiteDatabase db = getDatabase();
+        if (updateSessionNameStatement == null) {
+            updateSessionNameStatement = db.compileStatement(UPDATE_SESSION_NAME_SQL);
+        }
+        bindNullableString(updateSessionNameStatement, 1, newName);
+        bindNullableString(updateSessionNameStatement, 2, sessionId);
+        updateSessionNameStatement.executeUpdateDelete();
     }
 
-    @SuppressLint("Range")
     public List<SessionItem> getAllSessions() {
-        List<SessionItem> list = new ArrayList<>();
-        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        return getSessions(-1, null);
+    }
 
-        Cursor cursor = db.query(ChatDatabaseHelper.TABLE_SESSION,
+    /**
+     * Sessions ordered by their latest message, newest first. Pass the last item of the
+     * previous page as {@code after} to load the next page.
+     */
+    public List<SessionItem> getSessions(int limit, SessionItem after) {
+        String selection = null;
+        String[] args = null;
+        if (after != null) {
+            selection = ChatDatabaseHelper.COLUMN_LAST_MESSAGE_TIME + "<? OR (" +
+                    ChatDatabaseHelper.COLUMN_LAST_MESSAGE_TIME + "=? AND " +
+                    ChatDatabaseHelper.COLUMN_SESSION_ID + "<?)";
+            String time = String.valueOf(after.getLastMessageTime());
+            args = new String[]{time, time, after.getSessionId()};
+        }
+        List<SessionItem> list = new ArrayList<>();
+        try (Cursor cursor = getDatabase().query(ChatDatabaseHelper.TABLE_SESSION,
                 new String[]{ChatDatabaseHelper.COLUMN_SESSION_ID,
                         ChatDatabaseHelper.COLUMN_MODEL_ID,
-                        ChatDatabaseHelper.COLUMN_SESSION_NAME},
-                null, null, null, null, ChatDatabaseHelper.COLUMN_SESSION_ID + " DESC");
+                        ChatDatabaseHelper.COLUMN_SESSION_NAME,
+                        ChatDatabaseHelper.COLUMN_LAST_MESSAGE_TIME,
+                        ChatDatabaseHelper.COLUMN_MESSAGE_COUNT},
+                selection, args, null, null,
+                ChatDatabaseHelper.COLUMN_LAST_MESSAGE_TIME + " DESC, " + ChatDatabaseHelper.COLUMN_SESSION_ID + " DESC",
+                limit >= 0 ? String.valueOf(limit) : null)) {
+            while (cursor.moveToNext()) {
+                list.add(new SessionItem(cursor.getString(0), cursor.getString(1), cursor.getString(2),
+                        cursor.getLong(3), cursor.getInt(4)));
+            }
+        }
+        return list;
+    }
 
-        if (cursor != null) {
+    /**
+     * Every image and audio uri that a message refers to, used to find orphaned session files.
+     */
+    public Set<String> getReferencedResourceUris() {
+        Set<String> uris = new HashSet<>();
+        try (Cursor cursor = getDatabase().query(ChatDatabaseHelper.TABLE_CHAT,
+                new String[]{ChatDatabaseHelper.COLUMN_IMAGE_URI, ChatDatabaseHelper.COLUMN_AUDIO_URI},
+                ChatDatabaseHelper.COLUMN_IMAGE_URI + " IS NOT NULL OR " + ChatDatabaseHelper.COLUMN_AUDIO_URI + " IS NOT NULL",
+                null, null, null, null)) {
             while (cursor.moveToNext()) {
-                 String sid = cursor.getString(cursor.getColumnIndex(ChatDatabaseHelper.COLUMN_SESSION_ID));
-                String mid = cursor.getString(cursor.getColumnIndex(ChatDatabaseHelper.COLUMN_MODEL_ID));
-                String name = cursor.getString(cursor.getColumnIndex(ChatDatabaseHelper.COLUMN_SESSION_NAME));
-                list.add(new SessionItem(sid, mid, name));
+                for (int i = 0; i < 2; i++) {
+                    if (!cursor.isNull(i)) {
+                        uris.add(cursor.getString(i));
+                    }
+                }
+            }
+        }
+        return uris;
+    }
+
+    public boolean hasSession(String sessionId) {
+        return DatabaseUtils.queryNumEntries(getDatabase(), ChatDatabaseHelper.TABLE_SESSION,
+                ChatDatabaseHelper.COLUMN_SESSION_ID + "=?", new String[]{sessionId}) > 0;
+    }
+
+    /**
+     * Inserting messages stamps the session with the current time, an imported session keeps its own.
+     */
+    public synchronized void setSessionLastMessageTime(String sessionId, long lastMessageTime) {
+        getDatabase().execSQL("UPDATE " + ChatDatabaseHelper.TABLE_SESSION + " SET " +
+                ChatDatabaseHelper.COLUMN_LAST_MESSAGE_TIME + " = ? WHERE " +
+                ChatDatabaseHelper.COLUMN_SESSION_ID + " = ?", new Object[]{lastMessageTime, sessionId});
+    }
+
+    public String getSessionName(String sessionId) {
+        try (Cursor cursor = getDatabase().query(ChatDatabaseHelper.TABLE_SESSION,
+                new String[]{ChatDatabaseHelper.COLUMN_SESSION_NAME},
+                ChatDatabaseHelper.COLUMN_SESSION_ID + "=?", new String[]{sessionId},
+                null, null, null)) {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        }
+    }
+
+    /**
+     * Messages matching every word of {@code query} (as prefixes), best match first.
+     */
+    public List<ChatSearchResult> searchChatData(String query, int limit) {
+        String match = buildMatchExpression(query);
+        if (match == null) {
+            return new ArrayList<>();
+        }
+        SQLiteDatabase db = getDatabase();
+        List<ChatSearchResult> results = new ArrayList<>();
+        String fts = ChatDatabaseHelper.TABLE_CHAT_FTS;
+        String sql = "SELECT c." + ChatDatabaseHelper.COLUMN_ID + ", s." + ChatDatabaseHelper.COLUMN_SESSION_ID +
+                ", s." + ChatDatabaseHelper.COLUMN_MODEL_ID + ", s." + ChatDatabaseHelper.COLUMN_SESSION_NAME +
+                ", s." + ChatDatabaseHelper.COLUMN_LAST_MESSAGE_TIME + ", s." + ChatDatabaseHelper.COLUMN_MESSAGE_COUNT +
+                ", matchinfo(" + fts + ", 'pcnalx')" +
+                " FROM " + fts +
+                " JOIN " + ChatDatabaseHelper.TABLE_CHAT + " c ON c." + ChatDatabaseHelper.COLUMN_ID + " = " + fts + ".docid" +
+                " JOIN " + ChatDatabaseHelper.TABLE_SESSION + " s ON s." + ChatDatabaseHelper.COLUMN_SESSION_ID +
+                " = c." + ChatDatabaseHelper.COLUMN_SESSION_ID +
+                " WHERE " + fts + " MATCH ? ORDER BY " + fts + ".docid DESC LIMIT " + MAX_SEARCH_CANDIDATES;
+        try (Cursor cursor = db.rawQuery(sql, new String[]{match})) {
+            while (cursor.moveToNext()) {
+                SessionItem session = new SessionItem(cursor.getString(1), cursor.getString(2), cursor.getString(3),
+                        cursor.getLong(4), cursor.getInt(5));
+                results.add(new ChatSearchResult(session, cursor.getLong(0), bm25(cursor.getBlob(6))));
+            }
+        }
+        Collections.sort(results, (a, b) -> Double.compare(b.getScore(), a.getScore()));
+        if (results.size() > limit) {
+            results = new ArrayList<>(results.subList(0, limit));
+        }
+        fillSnippets(db, match, results);
+        return results;
+    }
+
+    /**
+     * Sessions containing a match, ordered by their best message. Only scores messages,
+     * no snippets are built.
+     */
+    public List<SessionItem> searchSessions(String query, int limit) {
+        String match = buildMatchExpression(query);
+        if (match == null || limit <= 0) {
+            return new ArrayList<>();
+        }
+        SQLiteDatabase db = getDatabase();
+        Map<String, Double> bestScores = new HashMap<>();
+        String fts = ChatDatabaseHelper.TABLE_CHAT_FTS;
+        String sql = "SELECT c." + ChatDatabaseHelper.COLUMN_SESSION_ID + ", matchinfo(" + fts + ", 'pcnalx')" +
+                " FROM " + fts +
+                " JOIN " + ChatDatabaseHelper.TABLE_CHAT + " c ON c." + ChatDatabaseHelper.COLUMN_ID + " = " + fts + ".docid" +
+                " WHERE " + fts + " MATCH ? ORDER BY " + fts + ".docid DESC LIMIT " + MAX_SEARCH_CANDIDATES;
+        try (Cursor cursor = db.rawQuery(sql, new String[]{match})) {
+            while (cursor.moveToNext()) {
+                String sessionId = cursor.getString(0);
+                double score = bm25(cursor.getBlob(1));
+                Double best = bestScores.get(sessionId);
+                if (best == null || score > best) {
+                    bestScores.put(sessionId, score);
+                }
+            }
+        }
+        List<Map.Entry<String, Double>> ranked = new ArrayList<>(bestScores.entrySet());
+        Collections.sort(ranked, (a, b) -> Double.compare(b.getValue(), a.getValue()));
+        if (ranked.size() > limit) {
+            ranked = ranked.subList(0, limit);
+        }
+        if (ranked.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Map<String, SessionItem> sessions = new LinkedHashMap<>();
+        StringBuilder placeholders = new StringBuilder();
+        String[] args = new String[ranked.size()];
+        for (int i = 0; i < ranked.size(); i++) {
+            args[i] = ranked.get(i).getKey();
+            sessions.put(args[i], null);
+            placeholders.append(i == 0 ? "?" : ",?");
+        }
+        try (Cursor cursor = db.query(ChatDatabaseHelper.TABLE_SESSION,
+                new String[]{ChatDatabaseHelper.COLUMN_SESSION_ID,
+                        ChatDatabaseHelper.COLUMN_MODEL_ID,
+                        ChatDatabaseHelper.COLUMN_SESSION_NAME,
+                        ChatDatabaseHelper.COLUMN_LAST_MESSAGE_TIME,
+                        ChatDatabaseHelper.COLUMN_MESSAGE_COUNT},
+                ChatDatabaseHelper.COLUMN_SESSION_ID + " IN (" + placeholders + ")", args,
+                null, null, null)) {
+            while (cursor.moveToNext()) {
+                sessions.put(cursor.getString(0), new SessionItem(cursor.getString(0), cursor.getString(1),
+                        cursor.getString(2), cursor.getLong(3), cursor.getInt(4)));
+            }
+        }
+        List<SessionItem> list = new ArrayList<>();
+        for (SessionItem session : sessions.values()) {
+            if (session != null) {
+                list.add(session);
             }
-            cursor.close();
         }
-        db.close();
         return list;
     }
 
-    public void deleteAllChatData(String sessionId) {
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        db.delete(ChatDatabaseHelper.TABLE_CHAT,
-                ChatDatabaseHelper.COLUMN_SESSION_ID + "=?",
-                new String[]{sessionId});
-        db.close();
+    // snippets only for the rows that are returned
+    private void fillSnippets(SQLiteDatabase db, String match, List<ChatSearchResult> results) {
+        if (results.isEmpty()) {
+            return;
+        }
+        Map<Long, ChatSearchResult> byId = new LinkedHashMap<>();
+        StringBuilder ids = new StringBuilder();
+        for (ChatSearchResult result : results) {
+            byId.put(result.getChatId(), result);
+            ids.append(ids.length() == 0 ? "" : ",").append(result.getChatId());
+        }
+        String fts = ChatDatabaseHelper.TABLE_CHAT_FTS;
+        try (Cursor cursor = db.rawQuery("SELECT docid, snippet(" + fts + ", '', '', '…', -1, 16) FROM " + fts +
+                " WHERE " + fts + " MATCH ? AND docid IN (" + ids + ")", new String[]{match})) {
+            while (cursor.moveToNext()) {
+                ChatSearchResult result = byId.get(cursor.getLong(0));
+                if (result != null) {
+                    result.setSnippet(cursor.getString(1));
+                }
+            }
+        }
+    }
+
+    static String buildMatchExpression(String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        for (String word : query.trim().split("\\s+")) {
+            word = word.replace("\"", "");
+            if (!word.isEmpty()) {
+                match.append(match.length() == 0 ? "" : " ").append('"').append(word).append("*\"");
+            }
+        }
+        return match.length() == 0 ? null : match.toString();
+    }
+
+    // okapi bm25 from matchinfo 'pcnalx', summed over phrases and columns
+    private static double bm25(byte[] matchInfo) {
+        ByteBuffer buffer = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder());
+        int phrases = buffer.getInt(0);
+        int columns = buffer.getInt(4);
+        int rows = buffer.getInt(8);
+        int avgOffset = 3;
+        int lengthOffset = avgOffset + columns;
+        int hitsOffset = lengthOffset + columns;
+        double score = 0;
+        for (int p = 0; p < phrases; p++) {
+            for (int c = 0; c < columns; c++) {
+                int base = hitsOffset + 3 * (p * columns + c);
+                int hits = buffer.getInt(base * 4);
+                if (hits == 0) {
+                    continue;
+                }
+                int docsWithHits = buffer.getInt((base + 2) * 4);
+                double idf = Math.max(1e-6, Math.log((rows - docsWithHits + 0.5) / (docsWithHits + 0.5)));
+                double avgLength = Math.max(1, buffer.getInt((avgOffset + c) * 4));
+                double length = buffer.getInt((lengthOffset + c) * 4);
+                score += idf * hits * (BM25_K1 + 1) /
+                        (hits + BM25_K1 * (1 - BM25_B + BM25_B * length / avgLength));
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Index up to {@code batchSize} messages written before the search index existed,
+     * returns false once nothing is left.
+     */
+    public synchronized boolean backfillSearchIndex(int batchSize) {
+        SQLiteDatabase db = getDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            long nextId;
+            long lastId;
+            try (Cursor cursor = db.query(ChatDatabaseHelper.TABLE_FTS_BACKFILL,
+                    new String[]{ChatDatabaseHelper.COLUMN_BACKFILL_NEXT_ID, ChatDatabaseHelper.COLUMN_BACKFILL_LAST_ID},
+                    null, null, null, null, null)) {
+                boolean found = cursor.moveToFirst();
+                nextId = found ? cursor.getLong(0) : 1;
+                lastId = found ? cursor.getLong(1) : 0;
+            }
+            // an early return must still commit, this can run nested in a caller's transaction
+            if (nextId > lastId) {
+                db.setTransactionSuccessful();
+                return false;
+            }
+            long endId = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + ChatDatabaseHelper.COLUMN_ID + "), " + lastId +
+                    ") FROM (SELECT " + ChatDatabaseHelper.COLUMN_ID + " FROM " + ChatDatabaseHelper.TABLE_CHAT +
+                    " WHERE " + ChatDatabaseHelper.COLUMN_ID + " BETWEEN " + nextId + " AND " + lastId +
+                    " ORDER BY " + ChatDatabaseHelper.COLUMN_ID + " LIMIT " + batchSize + ")", null);
+            db.execSQL("INSERT INTO " + ChatDatabaseHelper.TABLE_CHAT_FTS + "(docid, " + ChatDatabaseHelper.COLUMN_TEXT + ", " +
+                    ChatDatabaseHelper.COLUMN_DISPLAY_TEXT + ") SELECT " + ChatDatabaseHelper.COLUMN_ID + ", " +
+                    ChatDatabaseHelper.COLUMN_TEXT + ", " + ChatDatabaseHelper.COLUMN_DISPLAY_TEXT + " FROM " +
+                    ChatDatabaseHelper.TABLE_CHAT + " WHERE " + ChatDatabaseHelper.COLUMN_ID + " BETWEEN " + nextId + " AND " + endId);
+            db.execSQL("UPDATE " + ChatDatabaseHelper.TABLE_FTS_BACKFILL + " SET " +
+                    ChatDatabaseHelper.COLUMN_BACKFILL_NEXT_ID + " = " + (endId + 1));
+            db.setTransactionSuccessful();
+            return endId < lastId;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public synchronized void deleteAllChatData(String sessionId) {
+        SQLiteDatabase db = getDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            db.delete(ChatDatabaseHelper.TABLE_CHAT,
+                    ChatDatabaseHelper.COLUMN_SESSION_ID + "=?",
+                    new String[]{sessionId});
+            db.execSQL("UPDATE " + ChatDatabaseHelper.TABLE_SESSION + " SET " +
+                    ChatDatabaseHelper.COLUMN_MESSAGE_COUNT + " = 0 WHERE " +
+                    ChatDatabaseHelper.COLUMN_SESSION_ID + " = ?", new Object[]{sessionId});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
-    public void deleteSession(String sessionId) {
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
+    public synchronized void deleteSession(String sessionId) {
+        SQLiteDatabase db = getDatabase();
+        db.beginTransactionNonExclusive();
         try {
             db.delete(ChatDatabaseHelper.TABLE_CHAT,
                     ChatDatabaseHelper.COLUMN_SESSION_ID + "=?",
@@ -174,8 +612,9 @@ public class ChatDataManager {
             db.delete(ChatDatabaseHelper.TABLE_SESSION,
                     ChatDatabaseHelper.COLUMN_SESSION_ID + "=?",
                     new String[]{sessionId});
+            db.setTransactionSuccessful();
         } finally {
-            db.close();
+            db.endTransaction();
         }
     }
 }
@@ -4,19 +4,27 @@
 package com.alibaba.mnnllm.android.chat;
 
 import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
 
 public class ChatDatabaseHelper extends SQLiteOpenHelper {
 
+    private static final String TAG = "ChatDatabaseHelper";
+
     private static final String DB_NAME = "chat.db";
-    private static final int DB_VERSION = 2;
+    private static final int DB_VERSION = 4;
 
     // 会话表
     public static final String TABLE_SESSION = "Session";
     public static final String COLUMN_SESSION_ID = "sessionId";
     public static final String COLUMN_MODEL_ID = "modelId";
     public static final String COLUMN_SESSION_NAME = "name";
+    // epoch millis of the latest message and the number of messages, kept up to date on insert
+    public static final String COLUMN_LAST_MESSAGE_TIME = "lastMessageTime";
+    public static final String COLUMN_MESSAGE_COUNT = "messageCount";
 
     public static final String TABLE_CHAT = "ChatData";
     public static final String COLUMN_ID = "_id";
@@ -36,7 +44,9 @@ public class ChatDatabaseHelper extends SQLiteOpenHelper {
             TABLE_SESSION + " (" +
             COLUMN_SESSION_ID + " TEXT PRIMARY KEY, " +
             COLUMN_MODEL_ID + " TEXT," +
-            COLUMN_SESSION_NAME + " TEXT)";
+            COLUMN_SESSION_NAME + " TEXT," +
+            COLUMN_LAST_MESSAGE_TIME + " INTEGER DEFAULT 0," +
+            COLUMN_MESSAGE_COUNT + " INTEGER DEFAULT 0)";
 
     private static final String CREATE_TABLE_CHAT = "CREATE TABLE IF NOT EXISTS " +
             TABLE_CHAT + " (" +
@@ -52,14 +62,80 @@ public class ChatDatabaseHelper extends SQLiteOpenHelper {
             COLUMN_RESERVE1 + " TEXT, " +
             COLUMN_RESERVE2 + " TEXT)";
 
+    // full text index over the message text, the rows live in ChatData (external content)
+    public static final String TABLE_CHAT_FTS = "ChatDataFts";
+    // rows of ChatData with nextId <= _id <= lastId were written before the index existed
+    public static final String TABLE_FTS_BACKFILL = "ChatDataFtsBackfill";
+    public static final String COLUMN_BACKFILL_NEXT_ID = "nextId";
+    public static final String COLUMN_BACKFILL_LAST_ID = "lastId";
+
+    private static final String CREATE_TABLE_FTS_BACKFILL = "CREATE TABLE IF NOT EXISTS " +
+            TABLE_FTS_BACKFILL + " (" + COLUMN_BACKFILL_NEXT_ID + " INTEGER, " + COLUMN_BACKFILL_LAST_ID + " INTEGER)";
+
+    // rows still waiting for the backfill are not in the index, the update and delete triggers must skip them
+    private static final String FTS_INDEXED_CONDITION = " WHEN NOT EXISTS (SELECT 1 FROM " + TABLE_FTS_BACKFILL +
+            " WHERE old." + COLUMN_ID + " BETWEEN " + COLUMN_BACKFILL_NEXT_ID + " AND " + COLUMN_BACKFILL_LAST_ID + ")";
+
+    private static final String FTS_INSERT_NEW = " INSERT INTO " + TABLE_CHAT_FTS + "(docid, " + COLUMN_TEXT + ", " +
+            COLUMN_DISPLAY_TEXT + ") VALUES (new." + COLUMN_ID + ", new." + COLUMN_TEXT + ", new." + COLUMN_DISPLAY_TEXT + "); END";
+
+    private static final String FTS_DELETE_OLD = " DELETE FROM " + TABLE_CHAT_FTS + " WHERE docid = old." + COLUMN_ID + "; END";
+
+    private static final String[] CREATE_FTS_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS ChatDataFts_ai AFTER INSERT ON " + TABLE_CHAT + " BEGIN" + FTS_INSERT_NEW,
+            "CREATE TRIGGER IF NOT EXISTS ChatDataFts_bu BEFORE UPDATE ON " + TABLE_CHAT + FTS_INDEXED_CONDITION + " BEGIN" + FTS_DELETE_OLD,
+            "CREATE TRIGGER IF NOT EXISTS ChatDataFts_au AFTER UPDATE ON " + TABLE_CHAT + FTS_INDEXED_CONDITION + " BEGIN" + FTS_INSERT_NEW,
+            "CREATE TRIGGER IF NOT EXISTS ChatDataFts_bd BEFORE DELETE ON " + TABLE_CHAT + FTS_INDEXED_CONDITION + " BEGIN" + FTS_DELETE_OLD,
+    };
+
+    // messages of a session are read by keyset on _id, sessions are listed by recency
+    private static final String CREATE_INDEX_CHAT_SESSION = "CREATE INDEX IF NOT EXISTS idx_chat_session ON " +
+            TABLE_CHAT + " (" + COLUMN_SESSION_ID + ", " + COLUMN_ID + ")";
+
+    private static final String CREATE_INDEX_SESSION_RECENT = "CREATE INDEX IF NOT EXISTS idx_session_recent ON " +
+            TABLE_SESSION + " (" + COLUMN_LAST_MESSAGE_TIME + ", " + COLUMN_SESSION_ID + ")";
+
     public ChatDatabaseHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
+        // appends no longer rewrite the journal, and reads do not block on the writer
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        // with WAL, NORMAL only syncs at checkpoints and still survives an app crash
+        db.execSQL("PRAGMA synchronous = NORMAL");
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(CREATE_TABLE_SESSION);
         db.execSQL(CREATE_TABLE_CHAT);
+        db.execSQL(CREATE_INDEX_CHAT_SESSION);
+        db.execSQL(CREATE_INDEX_SESSION_RECENT);
+        createSearchIndex(db, 0);
+    }
+
+    /**
+     * The icu tokenizer splits CJK text into words, it is not compiled into every SQLite build,
+     * unicode61 is the fallback. Rows up to {@code lastExistingId} are indexed later in batches.
+     */
+    private static void createSearchIndex(SQLiteDatabase db, long lastExistingId) {
+        String create = "CREATE VIRTUAL TABLE IF NOT EXISTS " + TABLE_CHAT_FTS + " USING fts4(content=\"" +
+                TABLE_CHAT + "\", " + COLUMN_TEXT + ", " + COLUMN_DISPLAY_TEXT + ", tokenize=";
+        try {
+            db.execSQL(create + "icu)");
+        } catch (SQLException e) {
+            Log.w(TAG, "icu tokenizer unavailable, using unicode61", e);
+            db.execSQL(create + "unicode61)");
+        }
+        db.execSQL(CREATE_TABLE_FTS_BACKFILL);
+        db.execSQL("DELETE FROM " + TABLE_FTS_BACKFILL);
+        db.execSQL("INSERT INTO " + TABLE_FTS_BACKFILL + " VALUES (1, ?)", new Object[]{lastExistingId});
+        for (String trigger : CREATE_FTS_TRIGGERS) {
+            db.execSQL(trigger);
+        }
     }
 
     @Override
@@ -69,5 +145,20 @@ public class ChatDatabaseHelper extends SQLiteOpenHelper {
             db.execSQL("ALTER TABLE " + TABLE_CHAT + " ADD COLUMN " + COLUMN_RESERVE2 + " TEXT");
             db.execSQL("ALTER TABLE " + TABLE_CHAT + " ADD COLUMN " + COLUMN_DISPLAY_TEXT + " TEXT");
         }
+        if (oldVersion < 3) {
+            db.execSQL("ALTER TABLE " + TABLE_SESSION + " ADD COLUMN " + COLUMN_LAST_MESSAGE_TIME + " INTEGER DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE_SESSION + " ADD COLUMN " + COLUMN_MESSAGE_COUNT + " INTEGER DEFAULT 0");
+            db.execSQL(CREATE_INDEX_CHAT_SESSION);
+            // the message time column is a display string, the session id is its creation time in millis
+            db.execSQL("UPDATE " + TABLE_SESSION + " SET " +
+                    COLUMN_LAST_MESSAGE_TIME + " = CAST(" + COLUMN_SESSION_ID + " AS INTEGER), " +
+                    COLUMN_MESSAGE_COUNT + " = (SELECT COUNT(*) FROM " + TABLE_CHAT + " c WHERE c." +
+                    COLUMN_SESSION_ID + " = " + TABLE_SESSION + "." + COLUMN_SESSION_ID + ")");
+            db.execSQL(CREATE_INDEX_SESSION_RECENT);
+        }
+        if (oldVersion < 4) {
+            long lastId = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + COLUMN_ID + "), 0) FROM " + TABLE_CHAT, null);
+            createSearchIndex(db, lastId);
+        }
     }
 }
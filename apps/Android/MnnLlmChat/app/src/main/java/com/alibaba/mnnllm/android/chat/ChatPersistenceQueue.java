@@ -0,0 +1,229 @@
+// Copyright (c) 2024 Alibaba Group Holding Limited All rights reserved.
+
+package com.alibaba.mnnllm.android.chat;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Single writer for chat data. Writes are queued from the UI and generation threads and
+ * applied in order on one background thread, each drain in one transaction. If that
+ * transaction fails the ops are applied again one at a time, so one bad write does not
+ * take the others down with it. Updates to a streaming response are coalesced: an item is
+ * queued once and the latest content is written when the queue drains.
+ */
+public class ChatPersistenceQueue {
+    private static final String TAG = "ChatPersistenceQueue";
+    // how long a streaming response may stay unsaved
+    private static final long UPDATE_DELAY_MS = 1000;
+    // bound on the main thread wait in onPause, a drain is normally a few rows
+    private static final long PAUSE_FLUSH_TIMEOUT_MS = 1000;
+    private static final int SEARCH_BACKFILL_BATCH = 500;
+
+    private static ChatPersistenceQueue sInstance;
+
+    private final ChatDataManager chatDataManager;
+    private final ScheduledExecutorService writer;
+    private final Object lock = new Object();
+    private List<Runnable> pendingOps = new ArrayList<>();
+    private final Set<ChatDataItem> pendingUpdates = Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean drainQueued = false;
+    private boolean delayedDrainQueued = false;
+    // items inserted by the running drain, their ids are void if its transaction rolls back
+    private final List<ChatDataItem> insertedInDrain = new ArrayList<>();
+
+    private ChatPersistenceQueue(Context context) {
+        chatDataManager = ChatDataManager.getInstance(context);
+        writer = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "ChatPersistence"));
+        enqueue(this::backfillSearchIndex);
+    }
+
+    public static synchronized ChatPersistenceQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ChatPersistenceQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    public void addOrUpdateSession(String sessionId, String modelId) {
+        enqueue(() -> chatDataManager.addOrUpdateSession(sessionId, modelId));
+    }
+
+    public void updateSessionName(String sessionId, String name) {
+        enqueue(() -> chatDataManager.updateSessionName(sessionId, name));
+    }
+
+    public void deleteAllChatData(String sessionId) {
+        enqueue(() -> chatDataManager.deleteAllChatData(sessionId));
+    }
+
+    /**
+     * Save a finished item, inserted the first time and updated if it was saved while streaming.
+     */
+    public void addChatData(String sessionId, ChatDataItem chatDataItem) {
+        synchronized (lock) {
+            pendingUpdates.remove(chatDataItem);
+        }
+        enqueue(() -> save(sessionId, chatDataItem));
+    }
+
+    /**
+     * Save a streaming item within UPDATE_DELAY_MS, repeated calls before that write once.
+     */
+    public void updateChatData(String sessionId, ChatDataItem chatDataItem) {
+        synchronized (lock) {
+            if (!pendingUpdates.add(chatDataItem)) {
+                return;
+            }
+            pendingOps.add(new StreamingUpdate(sessionId, chatDataItem));
+            if (!drainQueued && !delayedDrainQueued) {
+                delayedDrainQueued = true;
+                writer.schedule(this::drain, UPDATE_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Write everything queued so far, called when the activity pauses. Waits at most
+     * PAUSE_FLUSH_TIMEOUT_MS; if the writer is slower, for example behind a search index
+     * backfill, the rest is written in the background and is lost only if the process is
+     * killed before that.
+     */
+    public void flush() {
+        if (!waitForDrain(PAUSE_FLUSH_TIMEOUT_MS)) {
+            Log.w(TAG, "flush did not finish within " + PAUSE_FLUSH_TIMEOUT_MS + " ms");
+        }
+    }
+
+    /**
+     * Block until everything queued so far is on disk, for callers that read or write the
+     * database directly afterwards. Must not be called on the main or the writer thread.
+     */
+    public void flushAndWait() {
+        waitForDrain(0);
+    }
+
+    // a timeout of 0 waits without bound
+    private boolean waitForDrain(long timeoutMs) {
+        try {
+            if (timeoutMs > 0) {
+                writer.submit(this::drain).get(timeoutMs, TimeUnit.MILLISECONDS);
+            } else {
+                writer.submit(this::drain).get();
+            }
+            return true;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "flush failed", e);
+        } catch (TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private void enqueue(Runnable op) {
+        synchronized (lock) {
+            pendingOps.add(op);
+            if (!drainQueued) {
+                drainQueued = true;
+                writer.execute(this::drain);
+            }
+        }
+    }
+
+    // one batch per drain so queued writes are not held up behind a large backfill
+    private void backfillSearchIndex() {
+        if (chatDataManager.backfillSearchIndex(SEARCH_BACKFILL_BATCH)) {
+            enqueue(this::backfillSearchIndex);
+        }
+    }
+
+    private void save(String sessionId, ChatDataItem chatDataItem) {
+        if (chatDataItem.getId() == 0) {
+            chatDataManager.addChatData(sessionId, chatDataItem);
+            insertedInDrain.add(chatDataItem);
+        } else {
+            chatDataManager.updateChatData(chatDataItem);
+        }
+    }
+
+    private void drain() {
+        List<Runnable> ops;
+        synchronized (lock) {
+            ops = pendingOps;
+            pendingOps = new ArrayList<>();
+            drainQueued = false;
+            delayedDrainQueued = false;
+        }
+        if (ops.isEmpty()) {
+            return;
+        }
+        insertedInDrain.clear();
+        try {
+            chatDataManager.runInTransaction(() -> {
+                for (Runnable op : ops) {
+                    op.run();
+                }
+            });
+            return;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "failed to write " + ops.size() + " chat operations, retrying one by one", e);
+        }
+        // the rollback dropped the rows inserted so far, insert them again
+        forgetInserted();
+        for (Runnable op : ops) {
+            try {
+                chatDataManager.runInTransaction(op);
+                insertedInDrain.clear();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "dropped a chat operation", e);
+                forgetInserted();
+            }
+        }
+    }
+
+    private void forgetInserted() {
+        for (ChatDataItem item : insertedInDrain) {
+            item.setId(0);
+        }
+        insertedInDrain.clear();
+    }
+
+    // a coalesced update, claimed once so a retry after a rollback still writes it
+    private class StreamingUpdate implements Runnable {
+        private final String sessionId;
+        private final ChatDataItem chatDataItem;
+        private boolean claimed = false;
+
+        StreamingUpdate(String sessionId, ChatDataItem chatDataItem) {
+            this.sessionId = sessionId;
+            this.chatDataItem = chatDataItem;
+        }
+
+        @Override
+        public void run() {
+            if (!claimed) {
+                synchronized (lock) {
+                    if (!pendingUpdates.remove(chatDataItem)) {
+                        // a final save is queued behind
+                        return;
+                    }
+                }
+                claimed = true;
+            }
+            save(sessionId, chatDataItem);
+        }
+    }
+}
@@ -8,6 +8,7 @@ import static com.alibaba.mnnllm.android.chat.ChatViewHolders.HEADER;
 import static com.alibaba.mnnllm.android.chat.ChatViewHolders.USER;
 
 import android.content.Context;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -20,12 +21,25 @@ import com.alibaba.mnnllm.android.R;
 import java.util.List;
 
 public class ChatRecyclerViewAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
+    // partial rebinds: the streaming response changed, background text is ready, metrics toggled
+    static final Object PAYLOAD_STREAMING = new Object();
+    static final Object PAYLOAD_PRECOMPUTED = new Object();
+    static final Object PAYLOAD_METRICS = new Object();
+
     private final List<ChatDataItem> items;
     private final String modelName;
+    private final ChatTextPrecomputer textPrecomputer;
+    private boolean prefetched = false;
 
     public ChatRecyclerViewAdapter(Context context, List<ChatDataItem> items, String modelName) {
         this.items = items;
         this.modelName = modelName;
+        this.textPrecomputer = new ChatTextPrecomputer(context, item -> {
+            int position = items.indexOf(item);
+            if (position >= 0) {
+                notifyItemChanged(position, PAYLOAD_PRECOMPUTED);
+            }
+        });
     }
 
     @Override
@@ -47,7 +61,7 @@ public class ChatRecyclerViewAdapter extends RecyclerView.Adapter<RecyclerView.V
                 return new ChatViewHolders.HeaderViewHolder(view);
             case ASSISTANT:
                 view = inflater.inflate(R.layout.item_holder_assistant, parent, false);
-                return new ChatViewHolders.AssistantViewHolder(view);
+                return new ChatViewHolders.AssistantViewHolder(view, textPrecomputer);
             case USER:
                 default:
                 view = inflater.inflate(R.layout.item_holder_user, parent, false);
@@ -69,28 +83,60 @@ public class ChatRecyclerViewAdapter extends RecyclerView.Adapter<RecyclerView.V
 
     @Override
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position, @NonNull List<Object> payloads) {
-        super.onBindViewHolder(holder, position, payloads);
-        int viewType = getItemViewType(position);
-        if (viewType == HEADER) {
-            ((ChatViewHolders.HeaderViewHolder)holder).bind(items.get(position));
-        } else if (viewType == ASSISTANT) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+        } else if (getItemViewType(position) == ASSISTANT) {
             ((ChatViewHolders.AssistantViewHolder)holder).bind(items.get(position), modelName, payloads);
-        } else if (viewType == USER) {
-            ((ChatViewHolders.UserViewHolder)holder).bind(items.get(position));
         }
     }
 
+    @Override
+    public void onViewAttachedToWindow(@NonNull RecyclerView.ViewHolder holder) {
+        super.onViewAttachedToWindow(holder);
+        // text metrics are only known once an assistant item has been bound
+        if (holder instanceof ChatViewHolders.AssistantViewHolder && !prefetched && textPrecomputer.hasParams()) {
+            prefetched = true;
+            textPrecomputer.prefetch(items);
+        }
+    }
+
+    public void release() {
+        textPrecomputer.release();
+    }
+
     public void addItem(ChatDataItem item) {
         items.add(item);
         notifyItemInserted(items.size() - 1);
     }
 
+    /**
+     * Insert older history right after the header and hello items.
+     */
+    public void prependItems(List<ChatDataItem> olderItems) {
+        int start = Math.min(2, items.size());
+        items.addAll(start, olderItems);
+        notifyItemRangeInserted(start, olderItems.size());
+        textPrecomputer.prefetch(olderItems);
+    }
+
     public ChatDataItem getRecentItem() {
         return !items.isEmpty() ? items.get(items.size() - 1) : null;
     }
 
     public void updateRecentItem(ChatDataItem item) {
-        notifyItemChanged(items.size() - 1, new Object());
+        notifyItemChanged(items.size() - 1, PAYLOAD_STREAMING);
+    }
+
+    /**
+     * Show or hide the benchmark line without rebinding message text.
+     */
+    public void refreshBenchmarkInfo() {
+        for (int i = 0; i < items.size(); i++) {
+            ChatDataItem item = items.get(i);
+            if (item.getType() == ASSISTANT && !TextUtils.isEmpty(item.getBenchmarkInfo())) {
+                notifyItemChanged(i, PAYLOAD_METRICS);
+            }
+        }
     }
 
     public boolean reset() {
@@ -0,0 +1,42 @@
+// Copyright (c) 2024 Alibaba Group Holding Limited All rights reserved.
+
+package com.alibaba.mnnllm.android.chat;
+
+/**
+ * A message matching a history search, with the session it belongs to.
+ */
+public class ChatSearchResult {
+    private final SessionItem session;
+    private final long chatId;
+    private final double score;
+    private String snippet;
+
+    ChatSearchResult(SessionItem session, long chatId, double score) {
+        this.session = session;
+        this.chatId = chatId;
+        this.score = score;
+    }
+
+    public SessionItem getSession() {
+        return session;
+    }
+
+    public long getChatId() {
+        return chatId;
+    }
+
+    /**
+     * bm25 relevance, higher is better
+     */
+    public double getScore() {
+        return score;
+    }
+
+    public String getSnippet() {
+        return snippet;
+    }
+
+    void setSnippet(String snippet) {
+        this.snippet = snippet;
+    }
+}
@@ -0,0 +1,141 @@
+// Copyright (c) 2024 Alibaba Group Holding Limited All rights reserved.
+
+package com.alibaba.mnnllm.android.chat;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.text.Spanned;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.TextView;
+
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.noties.markwon.Markwon;
+
+/**
+ * Parses finished assistant messages and measures their text on a background thread, so binding
+ * a long message while scrolling only sets the precomputed text. Results are cached per item for
+ * the text metrics of the assistant TextView; measured text does not depend on the view width,
+ * only line breaking does, and that is cheap once glyph widths are known.
+ */
+public class ChatTextPrecomputer {
+    private static final String TAG = "ChatTextPrecomputer";
+    // cache size in chars of markdown source
+    private static final int CACHE_MAX_CHARS = 512 * 1024;
+
+    public interface OnReadyListener {
+        void onPrecomputed(ChatDataItem item);
+    }
+
+    private static class Entry {
+        final String source;
+        final PrecomputedTextCompat text;
+
+        Entry(String source, PrecomputedTextCompat text) {
+            this.source = source;
+            this.text = text;
+        }
+    }
+
+    private final Markwon markwon;
+    private final ExecutorService executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<ChatDataItem, Entry> cache = new LruCache<ChatDataItem, Entry>(CACHE_MAX_CHARS) {
+        @Override
+        protected int sizeOf(ChatDataItem key, Entry value) {
+            return Math.max(1, value.source.length());
+        }
+    };
+    // touched on the main thread only
+    private final Set<ChatDataItem> inFlight = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final OnReadyListener listener;
+    // known after the first assistant TextView is bound
+    private volatile PrecomputedTextCompat.Params params;
+
+    public ChatTextPrecomputer(Context context, OnReadyListener listener) {
+        this.markwon = Markwon.create(context);
+        this.listener = listener;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+        }, "ChatTextPrecompute"));
+    }
+
+    /**
+     * The precomputed text of item for textView, or null after scheduling it.
+     */
+    public PrecomputedTextCompat get(ChatDataItem item, TextView textView) {
+        PrecomputedTextCompat.Params viewParams = TextViewCompat.getTextMetricsParams(textView);
+        if (!viewParams.equals(params)) {
+            // a different text appearance invalidates every measurement
+            params = viewParams;
+            cache.evictAll();
+        }
+        String source = item.getDisplayText();
+        Entry entry = cache.get(item);
+        if (entry != null && TextUtils.equals(entry.source, source)) {
+            return entry.text;
+        }
+        request(item);
+        return null;
+    }
+
+    public void prefetch(List<ChatDataItem> items) {
+        if (params == null) {
+            return;
+        }
+        for (ChatDataItem item : items) {
+            if (item.getType() == ChatViewHolders.ASSISTANT && cache.get(item) == null) {
+                request(item);
+            }
+        }
+    }
+
+    public boolean hasParams() {
+        return params != null;
+    }
+
+    private void request(ChatDataItem item) {
+        String source = item.getDisplayText();
+        PrecomputedTextCompat.Params requestParams = params;
+        if (TextUtils.isEmpty(source) || requestParams == null || !inFlight.add(item)) {
+            return;
+        }
+        executor.execute(() -> {
+            PrecomputedTextCompat text = null;
+            try {
+                Spanned spanned = markwon.toMarkdown(source);
+                text = PrecomputedTextCompat.create(spanned, requestParams);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "precompute failed", e);
+            }
+            PrecomputedTextCompat result = text;
+            mainHandler.post(() -> {
+                inFlight.remove(item);
+                // a response that kept streaming or a metrics change makes the result stale
+                if (result == null || !requestParams.equals(params) || !TextUtils.equals(source, item.getDisplayText())) {
+                    return;
+                }
+                cache.put(item, new Entry(source, result));
+                listener.onPrecomputed(item);
+            });
+        });
+    }
+
+    public void release() {
+        executor.shutdownNow();
+        cache.evictAll();
+    }
+}
@@ -19,6 +19,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.core.text.PrecomputedTextCompat;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.alibaba.mnnllm.android.utils.ClipboardUtils;
@@ -122,16 +123,20 @@ public class ChatViewHolders {
         private final ImageView headerIcon;
 
         private final ImageView imageGenerated;
-        private final Markwon markdown;
+        private final MarkdownStreamRenderer markdownRenderer;
+        private final ChatTextPrecomputer textPrecomputer;
         public View viewAssistantLoading;
 
         private int lastTouchX = 0;
         private int lastTouchY = 0;
 
         @SuppressLint("ClickableViewAccessibility")
-        public AssistantViewHolder(@NonNull View view) {
+        public AssistantViewHolder(@NonNull View view, ChatTextPrecomputer textPrecomputer) {
             super(view);
-            markdown = Markwon.create(itemView.getContext());
+            this.textPrecomputer = textPrecomputer;
+            markdownRenderer = new MarkdownStreamRenderer(Markwon.builder(itemView.getContext())
+                    .bufferType(TextView.BufferType.EDITABLE)
+                    .build());
             viewText = view.findViewById(R.id.tv_chat_text);
             headerIcon = view.findViewById(R.id.ic_header);
             viewAssistantLoading = view.findViewById(R.id.view_assistant_loading);
@@ -155,18 +160,51 @@ public class ChatViewHolders {
         }
 
         public void bind(ChatDataItem data, String modelName, List<Object> payloads) {
-            if (payloads != null && !payloads.isEmpty()) {
-                markdown.setMarkdown(viewText, data.getDisplayText());
+            boolean streaming = payloads != null && payloads.contains(ChatRecyclerViewAdapter.PAYLOAD_STREAMING);
+            if (payloads != null && !payloads.isEmpty() && !streaming) {
+                if (payloads.contains(ChatRecyclerViewAdapter.PAYLOAD_PRECOMPUTED)) {
+                    bindText(data, false);
+                }
+                bindBenchmarkInfo(data);
+                return;
+            }
+            bindText(data, streaming);
+            bindBenchmarkInfo(data);
+            imageGenerated.setVisibility(data.getImageUri() != null ? View.VISIBLE : View.GONE);
+            if (data.getImageUri() != null) {
+                imageGenerated.setImageURI(data.getImageUri());
+            }
+            if (streaming) {
                 return;
             }
+            int drawableId = ModelUtils.getDrawableId(modelName);
+            headerIcon.setImageResource(drawableId > 0 ? drawableId : R.drawable.ic_launcher);
+            imageGenerated.setTag(data);
+            viewText.setTag(data);
+        }
+
+        /**
+         * A streaming response is rendered incrementally, a finished one uses the text precomputed
+         * in the background and falls back to rendering here until it is ready.
+         */
+        private void bindText(ChatDataItem data, boolean streaming) {
             if (TextUtils.isEmpty(data.getDisplayText())) {
                 viewAssistantLoading.setVisibility(View.VISIBLE);
                 viewText.setVisibility(View.GONE);
+                return;
+            }
+            PrecomputedTextCompat precomputed = streaming || textPrecomputer == null ?
+                    null : textPrecomputer.get(data, viewText);
+            if (precomputed != null) {
+                markdownRenderer.setPrecomputed(viewText, precomputed);
             } else {
-                markdown.setMarkdown(viewText, data.getDisplayText());
-                viewText.setVisibility(View.VISIBLE);
-                viewAssistantLoading.setVisibility(View.GONE);
+                markdownRenderer.render(viewText, data.getDisplayText());
             }
+            viewText.setVisibility(View.VISIBLE);
+            viewAssistantLoading.setVisibility(View.GONE);
+        }
+
+        private void bindBenchmarkInfo(ChatDataItem data) {
             boolean showMetrics = PreferenceUtils.getBoolean(itemView.getContext(), PreferenceUtils.KEY_SHOW_PERFORMACE_METRICS, true);
             if (showMetrics && !TextUtils.isEmpty(data.getBenchmarkInfo())) {
                 benchmarkInfo.setVisibility(View.VISIBLE);
@@ -174,14 +212,6 @@ public class ChatViewHolders {
             } else {
                 benchmarkInfo.setVisibility(View.GONE);
             }
-            imageGenerated.setVisibility(data.getImageUri() != null ? View.VISIBLE : View.GONE);
-            if (data.getImageUri() != null) {
-                imageGenerated.setImageURI(data.getImageUri());
-            }
-            int drawableId = ModelUtils.getDrawableId(modelName);
-            headerIcon.setImageResource(drawableId > 0 ? drawableId : R.drawable.ic_launcher);
-            imageGenerated.setTag(data);
-            viewText.setTag(data);
         }
 
         @Override
@@ -0,0 +1,40 @@
+// Copyright (c) 2024 Alibaba Group Holding Limited All rights reserved.
+
+package com.alibaba.mnnllm.android.chat;
+
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a UI update at most once per frame however often it is requested. markDirty() may be
+ * called from any thread, the update runs on the main thread at the next vsync.
+ */
+public class FrameUpdateCoalescer {
+    private final Choreographer choreographer;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Choreographer.FrameCallback frameCallback;
+
+    /**
+     * Must be created on the main thread, Choreographer instances belong to a looper.
+     */
+    public FrameUpdateCoalescer(Runnable update) {
+        choreographer = Choreographer.getInstance();
+        frameCallback = frameTimeNanos -> {
+            // cleared first, changes made while updating schedule the next frame
+            scheduled.set(false);
+            update.run();
+        };
+    }
+
+    public void markDirty() {
+        if (scheduled.compareAndSet(false, true)) {
+            choreographer.postFrameCallback(frameCallback);
+        }
+    }
+
+    public void cancel() {
+        choreographer.removeFrameCallback(frameCallback);
+        scheduled.set(false);
+    }
+}
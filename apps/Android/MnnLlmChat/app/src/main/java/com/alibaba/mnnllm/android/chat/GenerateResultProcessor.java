@@ -3,12 +3,17 @@
 
 package com.alibaba.mnnllm.android.chat;
 
+/**
+ * The results are live views of the processor's buffers, not copies. process() runs on the
+ * generation thread, so a reader on another thread copies them while holding the processor's
+ * monitor, and process() is called holding it as well.
+ */
 public interface GenerateResultProcessor {
 
     void process(String progress);
-    String getDisplayResult();
+    CharSequence getDisplayResult();
 
-    String getRawResult();
+    CharSequence getRawResult();
     void generateBegin();
 
     class NormalGenerateResultProcessor implements GenerateResultProcessor {
@@ -26,13 +31,13 @@ public interface GenerateResultProcessor {
         }
 
         @Override
-        public String getDisplayResult() {
-            return rawStringBuilder.toString();
+        public CharSequence getDisplayResult() {
+            return rawStringBuilder;
         }
 
         @Override
-        public String getRawResult() {
-            return rawStringBuilder.toString();
+        public CharSequence getRawResult() {
+            return rawStringBuilder;
         }
 
         @Override
@@ -41,28 +46,31 @@ public interface GenerateResultProcessor {
         }
     }
 
+    /**
+     * Keeps the display text as segments: a header that switches from the thinking message to
+     * the elapsed time, the quoted reasoning and the answer. Fragments are scanned once and
+     * appended to their segment, nothing is rewritten, and the display string is built only
+     * when asked for and cached until the next fragment. A tag split across fragments is held
+     * back until the next fragment completes or breaks it.
+     */
     class R1GenerateResultProcessor extends NormalGenerateResultProcessor  {
+        private static final String THINK_OPEN = "<think>";
+        private static final String THINK_CLOSE = "</think>";
 
-        private final String thinkingPrefix;
-        private long generateBeginTime;
-        private boolean hasThinkProcessed;
         private final String thinkCompletePrefix;
-
-        private StringBuilder displayStringBuilder;
-        private boolean thinkStarted;
-
-        private boolean processEnded = false;
+        private long generateBeginTime;
+        private String header;
+        private final StringBuilder thinkBuilder = new StringBuilder();
+        private final StringBuilder answerBuilder = new StringBuilder();
+        private final DisplayText displayText = new DisplayText();
+        private String displayCache;
+        // a possible tag prefix at the end of the last fragment
+        private String pendingTag = "";
+        private boolean thinkEnded = false;
 
         public R1GenerateResultProcessor(String thinkingPrefix, String thinkCompletePrefix) {
-            displayStringBuilder = new StringBuilder();
-            displayStringBuilder.append(thinkingPrefix).append("\n");
             this.thinkCompletePrefix = thinkCompletePrefix;
-            this.thinkingPrefix = thinkingPrefix;
-        }
-
-        @Override
-        public String getRawResult() {
-            return super.getRawResult();
+            this.header = thinkingPrefix;
         }
 
         @Override
@@ -72,36 +80,127 @@ public interface GenerateResultProcessor {
         }
 
         @Override
-        public String getDisplayResult() {
-            return displayStringBuilder.toString();
+        public CharSequence getDisplayResult() {
+            return displayText;
         }
 
         @Override
         public void process(String progress) {
             if (progress == null) {
-                processEnded = true;
+                // generation ended, a held back prefix was plain text
+                append(pendingTag, 0, pendingTag.length());
+                pendingTag = "";
+                return;
+            }
+            String text = pendingTag.isEmpty() ? progress : pendingTag + progress;
+            pendingTag = "";
+            int start = 0;
+            int length = text.length();
+            while (start < length) {
+                int tag = text.indexOf('<', start);
+                if (tag < 0) {
+                    append(text, start, length);
+                    break;
+                }
+                append(text, start, tag);
+                if (text.startsWith(THINK_OPEN, tag)) {
+                    start = tag + THINK_OPEN.length();
+                } else if (text.startsWith(THINK_CLOSE, tag)) {
+                    endThink();
+                    start = tag + THINK_CLOSE.length();
+                } else if (isTagPrefix(text, tag)) {
+                    pendingTag = text.substring(tag);
+                    break;
+                } else {
+                    append(text, tag, tag + 1);
+                    start = tag + 1;
+                }
+            }
+        }
+
+        private static boolean isTagPrefix(String text, int from) {
+            int length = text.length() - from;
+            return (length < THINK_OPEN.length() && THINK_OPEN.regionMatches(0, text, from, length))
+                    || (length < THINK_CLOSE.length() && THINK_CLOSE.regionMatches(0, text, from, length));
+        }
+
+        private void append(String text, int start, int end) {
+            if (start >= end) {
+                return;
+            }
+            displayCache = null;
+            rawStringBuilder.append(text, start, end);
+            if (thinkEnded) {
+                answerBuilder.append(text, start, end);
                 return;
             }
-            if (progress.contains("<think>")) {
-                progress = progress.replace("<think>", "");
+            // everything before </think> is reasoning, shown as a quote
+            if (thinkBuilder.length() == 0) {
+                thinkBuilder.append("> ");
             }
-            rawStringBuilder.append(progress);
-            if (progress.contains("</think>")) {
-                progress = progress.replace("</think>", "\n");
-                long thinkTime = (System.currentTimeMillis() - this.generateBeginTime) / 1000;
-                displayStringBuilder.replace(0, thinkingPrefix.length(),
-                        thinkCompletePrefix.replace("ss", String.valueOf(thinkTime)));
-                hasThinkProcessed = true;
-            } else if (!hasThinkProcessed) {
-                if (!thinkStarted) {
-                    displayStringBuilder.append("> ");
-                    thinkStarted = true;
+            for (int i = start; i < end; i++) {
+                char c = text.charAt(i);
+                thinkBuilder.append(c);
+                if (c == '\n') {
+                    thinkBuilder.append("> ");
                 }
-                if (progress.contains("\n")) {
-                    progress = progress.replace("\n", "\n> ");
+            }
+        }
+
+        private void endThink() {
+            displayCache = null;
+            rawStringBuilder.append(THINK_CLOSE);
+            if (thinkEnded) {
+                // a later close tag only breaks the answer, the header keeps the first time
+                answerBuilder.append('\n');
+                return;
+            }
+            thinkEnded = true;
+            long thinkTime = (System.currentTimeMillis() - this.generateBeginTime) / 1000;
+            header = thinkCompletePrefix.replace("ss", String.valueOf(thinkTime));
+            answerBuilder.append('\n');
+        }
+
+        /**
+         * header + "\n" + reasoning + answer, without copying until toString()
+         */
+        private class DisplayText implements CharSequence {
+            @Override
+            public int length() {
+                return header.length() + 1 + thinkBuilder.length() + answerBuilder.length();
+            }
+
+            @Override
+            public char charAt(int index) {
+                if (index < header.length()) {
+                    return header.charAt(index);
+                }
+                index -= header.length();
+                if (index == 0) {
+                    return '\n';
+                }
+                index -= 1;
+                if (index < thinkBuilder.length()) {
+                    return thinkBuilder.charAt(index);
+                }
+                return answerBuilder.charAt(index - thinkBuilder.length());
+            }
+
+            @Override
+            public CharSequence subSequence(int start, int end) {
+                return toString().subSequence(start, end);
+            }
+
+            @Override
+            public String toString() {
+                if (displayCache == null) {
+                    displayCache = new StringBuilder(length())
+                            .append(header).append('\n')
+                            .append(thinkBuilder).append(answerBuilder)
+                            .toString();
                 }
+                return displayCache;
             }
-            displayStringBuilder.append(progress);
         }
     }
 
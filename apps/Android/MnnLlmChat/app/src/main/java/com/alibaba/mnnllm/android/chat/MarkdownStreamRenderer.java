@@ -0,0 +1,153 @@
+// Copyright (c) 2024 Alibaba Group Holding Limited All rights reserved.
+
+package com.alibaba.mnnllm.android.chat;
+
+import android.text.Editable;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.method.LinkMovementMethod;
+import android.widget.TextView;
+
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
+
+import io.noties.markwon.Markwon;
+import io.noties.markwon.core.spans.OrderedListItemSpan;
+import io.noties.markwon.core.spans.TextViewSpan;
+
+/**
+ * Renders a markdown text that grows while a response streams. The text is split at block
+ * boundaries that cannot change any more (a blank line followed by an unindented line outside
+ * a code fence, inside a blockquote the same with the quote markers stripped, so a quoted
+ * response such as R1's reasoning splits per paragraph); blocks before the last boundary are parsed once and kept in the TextView,
+ * only the tail is parsed again and replaced in place, so the layout is rebuilt for the
+ * last paragraph only. A text that does not extend the previous one is rendered from scratch.
+ */
+public class MarkdownStreamRenderer {
+    private final Markwon markwon;
+    private TextView textView;
+    private Editable editable;
+    private String source = "";
+    // source[0, stableEnd) is rendered into editable[0, stableLength) and never touched again
+    private int stableEnd = 0;
+    private int stableLength = 0;
+
+    public MarkdownStreamRenderer(Markwon markwon) {
+        this.markwon = markwon;
+    }
+
+    public void render(TextView view, String markdown) {
+        if (markdown == null) {
+            markdown = "";
+        }
+        if (view != textView || editable == null || view.getText() != editable
+                || !markdown.regionMatches(0, source, 0, stableEnd)) {
+            reset(view);
+        }
+        source = markdown;
+        int newStableEnd = findStableEnd(markdown, stableEnd);
+        if (newStableEnd > stableEnd) {
+            replaceTail(markdown.substring(stableEnd, newStableEnd));
+            stableLength = editable.length();
+            stableEnd = newStableEnd;
+        }
+        replaceTail(markdown.substring(stableEnd));
+    }
+
+    /**
+     * Show text parsed and measured off the main thread, the next render() starts from scratch.
+     */
+    public void setPrecomputed(TextView view, PrecomputedTextCompat text) {
+        textView = null;
+        editable = null;
+        OrderedListItemSpan.measure(view, text);
+        TextViewSpan.applyTo(text, view);
+        // an editable buffer would copy the text and drop the measurements
+        view.setText("", TextView.BufferType.NORMAL);
+        TextViewCompat.setPrecomputedText(view, text);
+        if (view.getMovementMethod() == null) {
+            view.setMovementMethod(LinkMovementMethod.getInstance());
+        }
+    }
+
+    private void reset(TextView view) {
+        textView = view;
+        // the markwon instance uses BufferType.EDITABLE, so the view keeps a mutable copy
+        markwon.setParsedMarkdown(view, new SpannableStringBuilder());
+        editable = (Editable) view.getText();
+        source = "";
+        stableEnd = 0;
+        stableLength = 0;
+    }
+
+    private void replaceTail(String markdown) {
+        Spanned rendered = markdown.trim().isEmpty() ? new SpannableStringBuilder() : markwon.toMarkdown(markdown);
+        // what markwon's core plugin does before setText, limited to the new part
+        OrderedListItemSpan.measure(textView, rendered);
+        if (rendered instanceof Spannable) {
+            TextViewSpan.applyTo((Spannable) rendered, textView);
+        }
+        CharSequence replacement = rendered;
+        if (stableLength > 0 && rendered.length() > 0) {
+            replacement = new SpannableStringBuilder("\n\n").append(rendered);
+        }
+        editable.replace(stableLength, editable.length(), replacement);
+    }
+
+    /**
+     * Start of the last block in markdown that begins at or after from, or from when there is none.
+     */
+    static int findStableEnd(String markdown, int from) {
+        int stable = from;
+        boolean inFence = false;
+        String fence = null;
+        boolean afterBlank = false;
+        int pos = from;
+        while (pos < markdown.length()) {
+            int eol = markdown.indexOf('\n', pos);
+            String line = markdown.substring(pos, eol < 0 ? markdown.length() : eol);
+            String content = stripQuoteMarkers(line);
+            String trimmed = content.trim();
+            if (inFence) {
+                if (trimmed.startsWith(fence)) {
+                    inFence = false;
+                }
+            } else if (trimmed.isEmpty()) {
+                afterBlank = true;
+            } else {
+                if (afterBlank && !Character.isWhitespace(content.charAt(0))) {
+                    stable = pos;
+                }
+                afterBlank = false;
+                if (trimmed.startsWith("```") || trimmed.startsWith("~~~")) {
+                    inFence = true;
+                    fence = trimmed.substring(0, 3);
+                }
+            }
+            if (eol < 0) {
+                break;
+            }
+            pos = eol + 1;
+        }
+        return stable;
+    }
+
+    // the line without its leading "> " markers, unchanged when it is not quoted
+    private static String stripQuoteMarkers(String line) {
+        int start = 0;
+        while (true) {
+            int marker = start;
+            while (marker < line.length() && marker - start < 3 && line.charAt(marker) == ' ') {
+                marker++;
+            }
+            if (marker >= line.length() || line.charAt(marker) != '>') {
+                return line.substring(start);
+            }
+            start = marker + 1;
+            if (start < line.length() && line.charAt(start) == ' ') {
+                start++;
+            }
+        }
+    }
+}
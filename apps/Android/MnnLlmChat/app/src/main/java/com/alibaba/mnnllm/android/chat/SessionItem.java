@@ -7,6 +7,8 @@ public class SessionItem {
     private final String sessionId;
     private final String modelId;
     private String title;
+    private long lastMessageTime;
+    private int messageCount;
 
     public SessionItem(String sessionId, String modelId, String title) {
         this.sessionId = sessionId;
@@ -14,6 +16,12 @@ public class SessionItem {
         this.title = title;
     }
 
+    public SessionItem(String sessionId, String modelId, String title, long lastMessageTime, int messageCount) {
+        this(sessionId, modelId, title);
+        this.lastMessageTime = lastMessageTime;
+        this.messageCount = messageCount;
+    }
+
     public String getSessionId() {
         return sessionId;
     }
@@ -29,4 +37,12 @@ public class SessionItem {
     public void setTitle(String title) {
         this.title = title;
     }
+
+    public long getLastMessageTime() {
+        return lastMessageTime;
+    }
+
+    public int getMessageCount() {
+        return messageCount;
+    }
 }
\ No newline at end of file
@@ -12,16 +12,20 @@ import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.appcompat.widget.SearchView;
 import androidx.fragment.app.Fragment;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.alibaba.mnnllm.android.R;
 import com.alibaba.mnnllm.android.chat.ChatDataManager;
+import com.alibaba.mnnllm.android.chat.ChatPersistenceQueue;
 import com.alibaba.mnnllm.android.chat.SessionItem;
 import com.alibaba.mnnllm.android.MainActivity;
 
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ChatHistoryFragment extends Fragment {
 
@@ -31,6 +35,17 @@ public class ChatHistoryFragment extends Fragment {
 
     private HistoryListAdapter chatListAdapter;
     private ChatDataManager chatDataManager;
+    private static final int SESSION_PAGE_SIZE = 50;
+    private boolean hasMoreSessions = false;
+    // database reads run here, results are applied on the main thread
+    private final ExecutorService queryExecutor = Executors.newSingleThreadExecutor();
+    private boolean loadingMoreSessions = false;
+    // bumped by every reload, a page read for an older list is dropped
+    private int loadGeneration = 0;
+    private String searchQuery = "";
+    // typing only searches once the query has settled
+    private static final long SEARCH_DEBOUNCE_MS = 300;
+    private final Runnable searchRunnable = this::onLoad;
 
     @Nullable
     @Override
@@ -41,6 +56,30 @@ public class ChatHistoryFragment extends Fragment {
         chatListRecyclerView.setLayoutManager(new LinearLayoutManager(getContext(), LinearLayoutManager.VERTICAL, false));
         chatListAdapter = new HistoryListAdapter();
         chatDataManager = ChatDataManager.getInstance(getContext());
+        // starts indexing messages saved before search existed
+        ChatPersistenceQueue.getInstance(getContext());
+        SearchView searchView = view.findViewById(R.id.search_history);
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                searchQuery = query.trim();
+                chatListRecyclerView.removeCallbacks(searchRunnable);
+                onLoad();
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String query) {
+                String trimmed = query.trim();
+                if (trimmed.equals(searchQuery)) {
+                    return true;
+                }
+                searchQuery = trimmed;
+                chatListRecyclerView.removeCallbacks(searchRunnable);
+                chatListRecyclerView.postDelayed(searchRunnable, SEARCH_DEBOUNCE_MS);
+                return true;
+            }
+        });
         chatListAdapter.setOnHistoryClick(new HistoryListAdapter.OnHistoryCallback() {
             @Override
             public void onSessionHistoryClick(SessionItem sessionItem) {
@@ -54,6 +93,16 @@ public class ChatHistoryFragment extends Fragment {
             }
         });
         chatListRecyclerView.setAdapter(chatListAdapter);
+        chatListRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+                if (dy > 0 && layoutManager != null
+                        && layoutManager.findLastVisibleItemPosition() >= chatListAdapter.getItemCount() - 5) {
+                    loadMoreSessions();
+                }
+            }
+        });
         return view;
     }
 
@@ -63,13 +112,66 @@ public class ChatHistoryFragment extends Fragment {
         onLoad();
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        chatListRecyclerView.removeCallbacks(searchRunnable);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        queryExecutor.shutdownNow();
+    }
+
     public void onLoad() {
-        List<SessionItem> historySessionList = chatDataManager.getAllSessions();
-        chatListAdapter.updateItems(historySessionList);
-        if (historySessionList.isEmpty()) {
-            textNoHistory.setVisibility(View.VISIBLE);
-        } else {
-            textNoHistory.setVisibility(View.GONE);
+        if (getView() == null) {
+            return;
         }
+        chatListRecyclerView.removeCallbacks(searchRunnable);
+        int generation = ++loadGeneration;
+        loadingMoreSessions = false;
+        // no paging until the first page of this list is in
+        hasMoreSessions = false;
+        String query = searchQuery;
+        queryExecutor.execute(() -> {
+            List<SessionItem> historySessionList = query.isEmpty()
+                    ? chatDataManager.getSessions(SESSION_PAGE_SIZE, null)
+                    : chatDataManager.searchSessions(query, SESSION_PAGE_SIZE);
+            chatListRecyclerView.post(() -> {
+                if (generation != loadGeneration || getView() == null) {
+                    return;
+                }
+                hasMoreSessions = query.isEmpty() && historySessionList.size() == SESSION_PAGE_SIZE;
+                chatListAdapter.updateItems(historySessionList);
+                textNoHistory.setText(query.isEmpty() ? R.string.no_history : R.string.no_search_result);
+                if (historySessionList.isEmpty()) {
+                    textNoHistory.setVisibility(View.VISIBLE);
+                } else {
+                    textNoHistory.setVisibility(View.GONE);
+                }
+            });
+        });
+    }
+
+    private void loadMoreSessions() {
+        SessionItem last = chatListAdapter.getLastItem();
+        if (!hasMoreSessions || loadingMoreSessions || last == null) {
+            return;
+        }
+        // one page in flight, further scroll events must not fetch the same page again
+        loadingMoreSessions = true;
+        int generation = loadGeneration;
+        queryExecutor.execute(() -> {
+            List<SessionItem> more = chatDataManager.getSessions(SESSION_PAGE_SIZE, last);
+            chatListRecyclerView.post(() -> {
+                if (generation != loadGeneration || getView() == null) {
+                    return;
+                }
+                loadingMoreSessions = false;
+                hasMoreSessions = more.size() == SESSION_PAGE_SIZE;
+                chatListAdapter.addItems(more);
+            });
+        });
     }
 }
@@ -71,6 +71,20 @@ public class HistoryListAdapter extends RecyclerView.Adapter<RecyclerView.ViewHo
         notifyDataSetChanged();
     }
 
+    public void addItems(List<SessionItem> moreSessions) {
+        if (this.historySessionList == null || moreSessions.isEmpty()) {
+            return;
+        }
+        int start = this.historySessionList.size();
+        this.historySessionList.addAll(moreSessions);
+        notifyItemRangeInserted(start, moreSessions.size());
+    }
+
+    public SessionItem getLastItem() {
+        return this.historySessionList == null || this.historySessionList.isEmpty() ?
+                null : this.historySessionList.get(this.historySessionList.size() - 1);
+    }
+
     public static class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
 
         public View itemView;
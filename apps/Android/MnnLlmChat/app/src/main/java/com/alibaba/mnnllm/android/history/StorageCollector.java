@@ -0,0 +1,335 @@
+// Copyright (c) 2024 Alibaba Group Holding Limited All rights reserved.
+
+package com.alibaba.mnnllm.android.history;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import com.alibaba.mls.api.download.DownloadFileUtils;
+import com.alibaba.mnnllm.android.chat.ChatDataManager;
+import com.alibaba.mnnllm.android.chat.SessionItem;
+import com.alibaba.mnnllm.android.utils.ModelUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import ddlx.api.ImageFileManager;
+
+/**
+ * Keeps the app's storage bounded. A run reconciles chat.db with the session folders, deleting
+ * folders of sessions that no longer exist and session files no message refers to, then trims
+ * each cache category to its quota, oldest first. Chat media still referenced by a message is
+ * user data and never evicted. Anything written within the grace period is left alone, so files
+ * of a message that is not saved yet and caches of a model in use survive a run. Runs happen
+ * periodically on a background thread and on demand from settings, and report the bytes used
+ * per category, session and model.
+ */
+public class StorageCollector {
+    private static final String TAG = "StorageCollector";
+    private static final long INITIAL_DELAY_MINUTES = 2;
+    private static final long PERIOD_HOURS = 6;
+    private static final long GRACE_MS = TimeUnit.HOURS.toMillis(24);
+    private static final long IN_USE_MS = TimeUnit.HOURS.toMillis(1);
+    private static final long MB = 1024 * 1024;
+    // session ids are timestamps, imported ones may carry a suffix, see ChatArchive
+    private static final Pattern SESSION_DIR = Pattern.compile("\\d+(_\\d+)?");
+
+    public enum Category {
+        // referenced chat media has no quota
+        CHAT_MEDIA(null, 0),
+        IMAGE_CACHE("storage_quota_image_cache", 256),
+        MMAP_CACHE("storage_quota_mmap_cache", 4096),
+        VISION_CACHE("storage_quota_vision_cache", 512);
+
+        public final String quotaKey;
+        public final long defaultQuotaMb;
+
+        Category(String quotaKey, long defaultQuotaMb) {
+            this.quotaKey = quotaKey;
+            this.defaultQuotaMb = defaultQuotaMb;
+        }
+    }
+
+    public static class Report {
+        public final Map<Category, Long> categoryBytes = new EnumMap<>(Category.class);
+        public final Map<String, Long> sessionBytes = new HashMap<>();
+        // keyed by ModelUtils.safeModelId, the name of the per-model cache folders
+        public final Map<String, Long> modelBytes = new HashMap<>();
+        public int deletedFiles;
+        public long reclaimedBytes;
+        // files a message refers to that are gone from disk
+        public int missingFiles;
+
+        private void add(Map<String, Long> map, String key, long bytes) {
+            if (key != null && bytes > 0) {
+                map.put(key, map.getOrDefault(key, 0L) + bytes);
+            }
+        }
+    }
+
+    // a file or folder evicted as a whole
+    private static class Unit {
+        final File file;
+        final long size;
+        final long lastModified;
+
+        Unit(File file, long size, long lastModified) {
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static StorageCollector sInstance;
+
+    private final Context context;
+    private final ScheduledExecutorService executor;
+    private boolean scheduled = false;
+
+    private StorageCollector(Context context) {
+        this.context = context;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+        }, "StorageCollector"));
+    }
+
+    public static synchronized StorageCollector getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new StorageCollector(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    public synchronized void schedule() {
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                Report report = collect();
+                Log.d(TAG, "reclaimed " + report.reclaimedBytes + " bytes in " + report.deletedFiles + " files");
+            } catch (RuntimeException e) {
+                // an exception would cancel the periodic task
+                Log.e(TAG, "storage collection failed", e);
+            }
+        }, INITIAL_DELAY_MINUTES, TimeUnit.HOURS.toMinutes(PERIOD_HOURS), TimeUnit.MINUTES);
+    }
+
+    /**
+     * Run a collection now, after any run in progress.
+     */
+    public Future<Report> runNow() {
+        return executor.submit(this::collect);
+    }
+
+    public static long getQuotaBytes(Context context, Category category) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        String value = preferences.getString(category.quotaKey, null);
+        try {
+            return (value != null ? Long.parseLong(value) : category.defaultQuotaMb) * MB;
+        } catch (NumberFormatException e) {
+            return category.defaultQuotaMb * MB;
+        }
+    }
+
+    private Report collect() {
+        Report report = new Report();
+        long now = System.currentTimeMillis();
+        collectSessions(report, now);
+        ImageFileManager imageFileManager = ImageFileManager.getInstance(context);
+        imageFileManager.cleanupCache();
+        trim(report, Category.IMAGE_CACHE, listUnits(imageFileManager.getCacheDirectory()), now);
+        // both caches keep one folder per model named after the safe model id, see FileUtils
+        List<Unit> mmapUnits = listUnits(new File(context.getFilesDir(), "tmps"));
+        trim(report, Category.MMAP_CACHE, mmapUnits, now);
+        List<Unit> visionUnits = listUnits(new File(context.getCacheDir(), "vision_cache"));
+        trim(report, Category.VISION_CACHE, visionUnits, now);
+        addModelBytes(report, mmapUnits);
+        addModelBytes(report, visionUnits);
+        return report;
+    }
+
+    private static void addModelBytes(Report report, List<Unit> units) {
+        for (Unit unit : units) {
+            if (unit.file.exists()) {
+                report.add(report.modelBytes, unit.file.getName(), unit.size);
+            }
+        }
+    }
+
+    private void collectSessions(Report report, long now) {
+        ChatDataManager chatDataManager = ChatDataManager.getInstance(context);
+        Map<String, String> sessionModels = new HashMap<>();
+        for (SessionItem session : chatDataManager.getAllSessions()) {
+            sessionModels.put(session.getSessionId(), session.getModelId());
+        }
+        List<File> sessionDirs = new ArrayList<>();
+        File[] dirs = context.getFilesDir().listFiles();
+        for (File dir : dirs != null ? dirs : new File[0]) {
+            if (!dir.isDirectory() || !SESSION_DIR.matcher(dir.getName()).matches()) {
+                continue;
+            }
+            if (sessionModels.containsKey(dir.getName())) {
+                sessionDirs.add(dir);
+            } else if (now - newestModified(dir) > GRACE_MS) {
+                // younger folders may belong to a session whose row is not written yet
+                long size = sizeOf(dir);
+                if (DownloadFileUtils.deleteDirectoryRecursively(dir)) {
+                    report.deletedFiles++;
+                    report.reclaimedBytes += size;
+                }
+            }
+        }
+
+        Set<String> referenced = new HashSet<>();
+        for (String uri : chatDataManager.getReferencedResourceUris()) {
+            String path = localPath(uri);
+            if (path != null) {
+                referenced.add(path);
+            }
+        }
+        Set<String> found = new HashSet<>();
+        for (File dir : sessionDirs) {
+            String sessionId = dir.getName();
+            List<File> files = new ArrayList<>();
+            listFiles(dir, files);
+            long sessionSize = 0;
+            for (File file : files) {
+                long size = file.length();
+                String path = file.getAbsolutePath();
+                if (referenced.contains(path) || now - file.lastModified() <= GRACE_MS) {
+                    found.add(path);
+                    add(report, Category.CHAT_MEDIA, size);
+                    sessionSize += size;
+                } else if (file.delete()) {
+                    report.deletedFiles++;
+                    report.reclaimedBytes += size;
+                }
+            }
+            report.add(report.sessionBytes, sessionId, sessionSize);
+            String modelId = sessionModels.get(sessionId);
+            report.add(report.modelBytes, modelId != null ? ModelUtils.safeModelId(modelId) : null, sessionSize);
+        }
+        String filesDir = context.getFilesDir().getAbsolutePath() + File.separator;
+        for (String path : referenced) {
+            // paths outside the files dir are content uris or paths of another device
+            if (path.startsWith(filesDir) && !found.contains(path)) {
+                report.missingFiles++;
+            }
+        }
+    }
+
+    /**
+     * Deletes the oldest units until the category fits its quota. Units used recently stay, and
+     * so does the newest one, it most likely belongs to the open chat or the loaded model.
+     */
+    private void trim(Report report, Category category, List<Unit> units, long now) {
+        long total = 0;
+        for (Unit unit : units) {
+            total += unit.size;
+        }
+        long quota = getQuotaBytes(context, category);
+        if (total > quota) {
+            units.sort((a, b) -> Long.compare(a.lastModified, b.lastModified));
+            for (int i = 0; i < units.size() - 1 && total > quota; i++) {
+                Unit unit = units.get(i);
+                if (now - unit.lastModified < IN_USE_MS) {
+                    break;
+                }
+                boolean deleted = unit.file.isDirectory() ?
+                        DownloadFileUtils.deleteDirectoryRecursively(unit.file) : unit.file.delete();
+                if (deleted) {
+                    Log.d(TAG, "evicted " + unit.file + " from " + category);
+                    total -= unit.size;
+                    report.deletedFiles++;
+                    report.reclaimedBytes += unit.size;
+                }
+            }
+        }
+        add(report, category, total);
+    }
+
+    // children of root, each evicted as a whole
+    private static List<Unit> listUnits(File root) {
+        List<Unit> units = new ArrayList<>();
+        File[] children = root.listFiles();
+        for (File child : children != null ? children : new File[0]) {
+            units.add(new Unit(child, sizeOf(child), newestModified(child)));
+        }
+        return units;
+    }
+
+    private static void add(Report report, Category category, long bytes) {
+        report.categoryBytes.put(category, report.categoryBytes.getOrDefault(category, 0L) + bytes);
+    }
+
+    // messages store file uris, diffusion output stores the plain path
+    private static String localPath(String uriString) {
+        Uri uri = Uri.parse(uriString);
+        String scheme = uri.getScheme();
+        if ((scheme != null && !"file".equals(scheme)) || uri.getPath() == null) {
+            return null;
+        }
+        return new File(uri.getPath()).getAbsolutePath();
+    }
+
+    private static void listFiles(File dir, List<File> out) {
+        File[] children = dir.listFiles();
+        for (File child : children != null ? children : new File[0]) {
+            if (Files.isSymbolicLink(child.toPath())) {
+                continue;
+            }
+            if (child.isDirectory()) {
+                listFiles(child, out);
+            } else {
+                out.add(child);
+            }
+        }
+    }
+
+    // symlinks are not followed, model folders link into the download cache
+    private static long sizeOf(File file) {
+        if (Files.isSymbolicLink(file.toPath())) {
+            return 0;
+        }
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        long size = 0;
+        File[] children = file.listFiles();
+        for (File child : children != null ? children : new File[0]) {
+            size += sizeOf(child);
+        }
+        return size;
+    }
+
+    private static long newestModified(File file) {
+        long newest = file.lastModified();
+        if (file.isDirectory() && !Files.isSymbolicLink(file.toPath())) {
+            File[] children = file.listFiles();
+            for (File child : children != null ? children : new File[0]) {
+                newest = Math.max(newest, newestModified(child));
+            }
+        }
+        return newest;
+    }
+}
@@ -2,15 +2,23 @@
 // Copyright (c) 2024 Alibaba Group Holding Limited All rights reserved.
 
 package com.alibaba.mnnllm.android.settings
+import android.app.AlertDialog
+import android.content.Context
 import android.os.Bundle
+import android.text.format.Formatter
+import android.util.Log
 import android.widget.Toast
 import androidx.preference.ListPreference
 import androidx.preference.Preference
 import androidx.preference.PreferenceFragmentCompat
 import com.alibaba.mnnllm.android.R
+import com.alibaba.mnnllm.android.chat.ChatDataManager
+import com.alibaba.mnnllm.android.history.StorageCollector
 import com.alibaba.mnnllm.android.update.UpdateChecker
 import com.alibaba.mnnllm.android.utils.AppUtils
 import com.alibaba.mnnllm.android.utils.PreferenceUtils
+import ddlx.api.ApiLog
+import ddlx.api.OpenAICompatibleService
 
 class MainSettingsFragment : PreferenceFragmentCompat() {
     override fun onCreatePreferences(savedInstanceState: Bundle?, rootKey: String?) {
@@ -28,6 +36,16 @@ class MainSettingsFragment : PreferenceFragmentCompat() {
             }
         }
 
+        findPreference<ListPreference>(OpenAICompatibleService.KEY_LOG_LEVEL)?.setOnPreferenceChangeListener { _, newValue ->
+            // a running API server picks up the level without a restart
+            ApiLog.setLevel(ApiLog.parseLevel(newValue.toString(), ApiLog.INFO))
+            true
+        }
+
+        findPreference<Preference>("storage_usage")?.setOnPreferenceClickListener {
+            showStorageUsage()
+            true
+        }
 
         val downloadProviderPref = findPreference<ListPreference>("download_provider")
         downloadProviderPref?.apply {
@@ -54,4 +72,73 @@ class MainSettingsFragment : PreferenceFragmentCompat() {
             }
         }
     }
-}
\ No newline at end of file
+
+    private fun showStorageUsage() {
+        val context = requireContext().applicationContext
+        Toast.makeText(context, R.string.storage_collecting, Toast.LENGTH_SHORT).show()
+        val result = StorageCollector.getInstance(context).runNow()
+        Thread {
+            val message = try {
+                formatReport(context, result.get())
+            } catch (e: Exception) {
+                Log.e(TAG, "storage collection failed", e)
+                null
+            }
+            activity?.runOnUiThread {
+                if (!isAdded) {
+                    return@runOnUiThread
+                }
+                if (message == null) {
+                    Toast.makeText(context, R.string.storage_collect_failed, Toast.LENGTH_LONG).show()
+                    return@runOnUiThread
+                }
+                AlertDialog.Builder(requireContext())
+                    .setTitle(R.string.storage_usage)
+                    .setMessage(message)
+                    .setPositiveButton(android.R.string.ok, null)
+                    .show()
+            }
+        }.start()
+    }
+
+    // runs off the main thread, session names come from the database
+    private fun formatReport(context: Context, report: StorageCollector.Report): String {
+        fun size(bytes: Long) = Formatter.formatShortFileSize(context, bytes)
+        val text = StringBuilder()
+        for (category in StorageCollector.Category.values()) {
+            val label = when (category) {
+                StorageCollector.Category.CHAT_MEDIA -> R.string.storage_category_chat_media
+                StorageCollector.Category.IMAGE_CACHE -> R.string.storage_category_image_cache
+                StorageCollector.Category.MMAP_CACHE -> R.string.storage_category_mmap_cache
+                StorageCollector.Category.VISION_CACHE -> R.string.storage_category_vision_cache
+            }
+            text.append(context.getString(label)).append(": ").append(size(report.categoryBytes[category] ?: 0L))
+            if (category.quotaKey != null) {
+                text.append(" / ").append(size(StorageCollector.getQuotaBytes(context, category)))
+            }
+            text.append('\n')
+        }
+        text.append('\n').append(context.getString(R.string.storage_report_models)).append('\n')
+        report.modelBytes.entries.sortedByDescending { it.value }.take(REPORT_TOP_ENTRIES).forEach {
+            text.append(it.key).append(": ").append(size(it.value)).append('\n')
+        }
+        val chatDataManager = ChatDataManager.getInstance(context)
+        text.append('\n').append(context.getString(R.string.storage_report_sessions)).append('\n')
+        report.sessionBytes.entries.sortedByDescending { it.value }.take(REPORT_TOP_ENTRIES).forEach {
+            val name = chatDataManager.getSessionName(it.key) ?: it.key
+            text.append(name.take(REPORT_NAME_LENGTH)).append(": ").append(size(it.value)).append('\n')
+        }
+        text.append('\n').append(context.getString(R.string.storage_report_reclaimed,
+            size(report.reclaimedBytes), report.deletedFiles))
+        if (report.missingFiles > 0) {
+            text.append('\n').append(context.getString(R.string.storage_report_missing, report.missingFiles))
+        }
+        return text.toString()
+    }
+
+    companion object {
+        const val TAG = "MainSettingsFragment"
+        private const val REPORT_TOP_ENTRIES = 5
+        private const val REPORT_NAME_LENGTH = 24
+    }
+}
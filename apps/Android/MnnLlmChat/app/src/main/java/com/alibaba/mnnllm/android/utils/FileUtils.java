@@ -134,6 +134,14 @@ public class FileUtils {
         }
         return rootCacheDir;
     }
+    /**
+     * Spill directory of the native vision encoder cache, under the cache dir so the
+     * system may reclaim it.
+     */
+    public static String getVisionCacheDir(String modelId) {
+        return ApplicationProvider.get().getCacheDir() + "/vision_cache/" + ModelUtils.safeModelId(modelId);
+    }
+
     public static void clearMmapCache(String modelId) {
         DownloadFileUtils.deleteDirectoryRecursively(new File(getMmapDir(modelId, true)));
         DownloadFileUtils.deleteDirectoryRecursively(new File(getMmapDir(modelId, false)));
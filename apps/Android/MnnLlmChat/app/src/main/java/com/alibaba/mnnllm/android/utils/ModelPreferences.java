@@ -14,6 +14,7 @@ public class ModelPreferences {
     public static final String KEY_USE_MMAP = "USE_MMAP";
     public static final String KEY_BACKEND = "BACKEND";
     public static final String KEY_SAMPLER = "SAMPLER";
+    public static final String KEY_WARM_UP = "WARM_UP";
 
 
     public static void setBoolean(Context context,String modelId, String key , boolean value) {
@@ -71,8 +71,6 @@ public class ModelUtils {
 
     private static final Set<String> blackList = new HashSet<>();
     static {
-        blackList.add("taobao-mnn/bge-large-zh-MNN");//embedding
-        blackList.add("taobao-mnn/gte_sentence-embedding_multilingual-base-MNN");//embedding
         blackList.add("taobao-mnn/QwQ-32B-Preview-MNN");//too big
         blackList.add("taobao-mnn/codegeex2-6b-MNN");//not for chat
         blackList.add("taobao-mnn/chatglm-6b-MNN");//deprecated
@@ -80,6 +78,17 @@ public class ModelUtils {
         blackList.add("taobao-mnn/stable-diffusion-v1-5-mnn-general");//in android, we use opencl version
     }
 
+    // embedding models are not for chat, they are loaded as the embedding backend of the api service
+    private static final Set<String> embeddingList = new HashSet<>();
+    static {
+        embeddingList.add("taobao-mnn/bge-large-zh-MNN");
+        embeddingList.add("taobao-mnn/gte_sentence-embedding_multilingual-base-MNN");
+    }
+
+    public static boolean isEmbeddingModel(String modelId) {
+        return modelId != null && (embeddingList.contains(modelId) || modelId.toLowerCase().contains("embedding"));
+    }
+
     private static final Set<String> hotList = new HashSet<>();
     static {
         hotList.add("taobao-mnn/DeepSeek-R1-7B-Qwen-MNN");
@@ -0,0 +1,65 @@
+package ddlx.api;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * 固定容量的访问日志环形缓冲区，每个请求只记录一条摘要，按需导出，
+ * 平时不写 logcat。
+ */
+public class AccessLog {
+    private final String[] methods;
+    private final String[] uris;
+    private final int[] statuses;
+    private final long[] timestamps;
+    private final long[] durationsMs;
+    private final String[] remotes;
+    private int next = 0;
+    private long total = 0;
+
+    public AccessLog(int capacity) {
+        int size = Math.max(1, capacity);
+        methods = new String[size];
+        uris = new String[size];
+        statuses = new int[size];
+        timestamps = new long[size];
+        durationsMs = new long[size];
+        remotes = new String[size];
+    }
+
+    public synchronized void record(String method, String uri, int status, long durationMs, String remote) {
+        methods[next] = method;
+        uris[next] = uri;
+        statuses[next] = status;
+        timestamps[next] = System.currentTimeMillis();
+        durationsMs[next] = durationMs;
+        remotes[next] = remote;
+        next = (next + 1) % methods.length;
+        total++;
+    }
+
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    /**
+     * 按时间顺序导出缓冲区中的记录，每行一条
+     */
+    public synchronized String dump() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        int size = (int) Math.min(total, methods.length);
+        int start = total > methods.length ? next : 0;
+        StringBuilder builder = new StringBuilder(size * 80);
+        for (int i = 0; i < size; i++) {
+            int index = (start + i) % methods.length;
+            builder.append(format.format(new Date(timestamps[index]))).append(' ')
+                    .append(remotes[index]).append(' ')
+                    .append(methods[index]).append(' ')
+                    .append(uris[index]).append(' ')
+                    .append(statuses[index]).append(' ')
+                    .append(durationsMs[index]).append("ms\n");
+        }
+        return builder.toString();
+    }
+}
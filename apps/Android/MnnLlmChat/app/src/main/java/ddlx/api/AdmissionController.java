@@ -0,0 +1,135 @@
+package ddlx.api;
+
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 请求准入控制：限制同时执行的请求数、排队深度、最长等待时间以及单个 API Key 的并发数。
+ * 超出限制的请求直接拒绝，由调用方返回 429 和 Retry-After。
+ */
+public class AdmissionController {
+    private static final String TAG = "AdmissionController";
+
+    private final Semaphore permits;
+    private final int maxQueueDepth;
+    private final long maxWaitMs;
+    private final int maxPerKey;
+    private final AtomicInteger waiting = new AtomicInteger(0);
+    private final AtomicInteger running = new AtomicInteger(0);
+    private final ConcurrentHashMap<String, AtomicInteger> perKeyInFlight = new ConcurrentHashMap<>();
+    // 最近一次请求的平均占用时长，用于估算 Retry-After
+    private volatile long averageHoldMs = 5000;
+
+    public AdmissionController(int maxConcurrent, int maxQueueDepth, long maxWaitMs, int maxPerKey) {
+        this.permits = new Semaphore(Math.max(1, maxConcurrent), true);
+        this.maxQueueDepth = Math.max(0, maxQueueDepth);
+        this.maxWaitMs = Math.max(0, maxWaitMs);
+        this.maxPerKey = Math.max(1, maxPerKey);
+    }
+
+    /**
+     * 请求被拒绝时抛出，携带建议的重试秒数
+     */
+    public static class RejectedException extends Exception {
+        private final int retryAfterSeconds;
+
+        public RejectedException(String message, int retryAfterSeconds) {
+            super(message);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public int getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    /**
+     * 准入凭证，请求处理完成（包括流式生成结束）后必须调用 release
+     */
+    public class Ticket {
+        private final String apiKey;
+        private final long acquiredAt = System.currentTimeMillis();
+        private final long waitedMs;
+        private boolean released = false;
+
+        private Ticket(String apiKey, long waitedMs) {
+            this.apiKey = apiKey;
+            this.waitedMs = waitedMs;
+        }
+
+        public long getWaitedMs() {
+            return waitedMs;
+        }
+
+        public synchronized void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            long heldMs = System.currentTimeMillis() - acquiredAt;
+            averageHoldMs = (averageHoldMs * 3 + heldMs) / 4;
+            running.decrementAndGet();
+            permits.release();
+            decrementKey(apiKey);
+        }
+    }
+
+    public Ticket acquire(String apiKey) throws RejectedException, InterruptedException {
+        String key = apiKey == null ? "" : apiKey;
+        AtomicInteger keyCount = perKeyInFlight.computeIfAbsent(key, k -> new AtomicInteger(0));
+        if (keyCount.incrementAndGet() > maxPerKey) {
+            decrementKey(key);
+            throw new RejectedException("Too many concurrent requests for this API key", retryAfterSeconds(1));
+        }
+        long start = System.currentTimeMillis();
+        if (waiting.get() == 0 && permits.tryAcquire()) {
+            running.incrementAndGet();
+            return new Ticket(key, 0);
+        }
+        if (waiting.incrementAndGet() > maxQueueDepth) {
+            waiting.decrementAndGet();
+            decrementKey(key);
+            throw new RejectedException("Server is busy, request queue is full", retryAfterSeconds(maxQueueDepth + 1));
+        }
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            decrementKey(key);
+            throw e;
+        } finally {
+            waiting.decrementAndGet();
+        }
+        if (!acquired) {
+            decrementKey(key);
+            throw new RejectedException("Server is busy, timed out waiting in queue", retryAfterSeconds(waiting.get() + 1));
+        }
+        running.incrementAndGet();
+        long waited = System.currentTimeMillis() - start;
+        ApiLog.d(TAG, "request admitted after waiting %dms", waited);
+        return new Ticket(key, waited);
+    }
+
+    public int getWaitingCount() {
+        return waiting.get();
+    }
+
+    public int getRunningCount() {
+        return running.get();
+    }
+
+    private void decrementKey(String key) {
+        AtomicInteger count = perKeyInFlight.get(key);
+        if (count != null) {
+            count.decrementAndGet();
+        }
+    }
+
+    private int retryAfterSeconds(int queuedAhead) {
+        long seconds = (averageHoldMs * queuedAhead + 999) / 1000;
+        return (int) Math.max(1, Math.min(seconds, 300));
+    }
+}
@@ -0,0 +1,154 @@
+package ddlx.api;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * API 服务使用的分级日志。低于当前级别的调用在格式化之前直接返回，
+ * 参数以 format 形式延迟拼接，热路径上不再产生字符串拼接和 logcat 写入。
+ */
+public final class ApiLog {
+    public static final int VERBOSE = Log.VERBOSE;
+    public static final int DEBUG = Log.DEBUG;
+    public static final int INFO = Log.INFO;
+    public static final int WARN = Log.WARN;
+    public static final int ERROR = Log.ERROR;
+    // 关闭全部日志
+    public static final int OFF = Log.ASSERT + 1;
+
+    private static volatile int level = INFO;
+
+    private ApiLog() {
+    }
+
+    public static void setLevel(int newLevel) {
+        level = newLevel;
+    }
+
+    public static int getLevel() {
+        return level;
+    }
+
+    /**
+     * 将设置中保存的级别名（verbose/debug/info/warn/error/off）转换为级别，无法识别时返回 defaultLevel
+     */
+    public static int parseLevel(String name, int defaultLevel) {
+        if (name == null) {
+            return defaultLevel;
+        }
+        switch (name) {
+            case "verbose":
+                return VERBOSE;
+            case "debug":
+                return DEBUG;
+            case "info":
+                return INFO;
+            case "warn":
+                return WARN;
+            case "error":
+                return ERROR;
+            case "off":
+                return OFF;
+            default:
+                return defaultLevel;
+        }
+    }
+
+    public static boolean isLoggable(int priority) {
+        return priority >= level;
+    }
+
+    public static void d(String tag, String message) {
+        if (isLoggable(DEBUG)) {
+            Log.d(tag, message);
+        }
+    }
+
+    public static void d(String tag, String format, Object arg) {
+        if (isLoggable(DEBUG)) {
+            Log.d(tag, String.format(format, arg));
+        }
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(DEBUG)) {
+            Log.d(tag, String.format(format, arg1, arg2));
+        }
+    }
+
+    public static void i(String tag, String message) {
+        if (isLoggable(INFO)) {
+            Log.i(tag, message);
+        }
+    }
+
+    public static void i(String tag, String format, Object arg) {
+        if (isLoggable(INFO)) {
+            Log.i(tag, String.format(format, arg));
+        }
+    }
+
+    public static void i(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(INFO)) {
+            Log.i(tag, String.format(format, arg1, arg2));
+        }
+    }
+
+    public static void w(String tag, String message) {
+        if (isLoggable(WARN)) {
+            Log.w(tag, message);
+        }
+    }
+
+    public static void w(String tag, String format, Object arg) {
+        if (isLoggable(WARN)) {
+            Log.w(tag, String.format(format, arg));
+        }
+    }
+
+    public static void e(String tag, String message) {
+        if (isLoggable(ERROR)) {
+            Log.e(tag, message);
+        }
+    }
+
+    public static void e(String tag, String format, Object arg) {
+        if (isLoggable(ERROR)) {
+            Log.e(tag, String.format(format, arg));
+        }
+    }
+
+    /**
+     * 采样器：每 N 次调用只放行一次，用于逐 token 之类的高频日志
+     */
+    public static final class Sampler {
+        private final int every;
+        private final AtomicLong counter = new AtomicLong();
+
+        public Sampler(int every) {
+            this.every = Math.max(1, every);
+        }
+
+        /**
+         * 当前调用是否应当输出，级别未开启时不计数
+         */
+        public boolean sample(int priority) {
+            return isLoggable(priority) && counter.getAndIncrement() % every == 0;
+        }
+
+        public long getCount() {
+            return counter.get();
+        }
+    }
+
+    /**
+     * 截断过长的内容（例如包含 base64 图片的请求体），只保留开头部分和总长度
+     */
+    public static String abbreviate(String text, int maxChars) {
+        if (text == null || text.length() <= maxChars) {
+            return text;
+        }
+        return text.substring(0, maxChars) + "...(" + text.length() + " chars)";
+    }
+}
@@ -11,13 +11,17 @@ import android.content.SharedPreferences;
 import androidx.preference.PreferenceManager;
 
 import com.alibaba.mnnllm.android.ChatSession;
+import com.alibaba.mnnllm.android.EmbeddingSession;
 
 public class ApiManager implements ServiceConnection {
     private static final String TAG = "ApiManager";
     private static volatile ApiManager instance;
     private final Context applicationContext;
     private boolean isModelLoaded = false;
+    private volatile ChatSession.LoadStage loadStage = ChatSession.LoadStage.IDLE;
+    private volatile float loadProgress = 0f;
     private ChatSession currentSession;
+    private volatile EmbeddingSession embeddingSession;
     private ApiStatusView statusView;
     private OpenAICompatibleService.ApiServiceBinder serviceBinder;
     private boolean isServiceBound = false;
@@ -118,6 +122,22 @@ public class ApiManager implements ServiceConnection {
         return isModelLoaded;
     }
 
+    /**
+     * 更新模型加载阶段和进度，供 /v1/status 查询
+     */
+    public void setLoadProgress(ChatSession.LoadStage stage, float progress) {
+        this.loadStage = stage;
+        this.loadProgress = progress;
+    }
+
+    public ChatSession.LoadStage getLoadStage() {
+        return loadStage;
+    }
+
+    public float getLoadProgress() {
+        return loadProgress;
+    }
+
     public void setCurrentSession(ChatSession session) {
         this.currentSession = session;
     }
@@ -126,6 +146,24 @@ public class ApiManager implements ServiceConnection {
         return currentSession;
     }
 
+    /**
+     * 设置 /v1/embeddings 使用的向量模型会话，旧会话会被释放
+     */
+    public void setEmbeddingSession(EmbeddingSession session) {
+        EmbeddingSession oldSession = this.embeddingSession;
+        this.embeddingSession = session;
+        if (oldSession != null && oldSession != session) {
+            oldSession.release();
+        }
+        if (session != null && !isServiceBound) {
+            startApiService();
+        }
+    }
+
+    public EmbeddingSession getEmbeddingSession() {
+        return embeddingSession;
+    }
+
     private Context getApplicationContext() {
         return getApplicationContextStatic();
     }
@@ -143,6 +181,8 @@ public class ApiManager implements ServiceConnection {
             return;
         }
         setCurrentSession(chatSession);
+        // 图像按当前模型视觉编码器的输入尺寸降采样
+        ImageFileManager.getInstance(applicationContext).setModelConfig(chatSession.getConfigPath());
         setModelLoaded(true);
     }
 
@@ -167,7 +207,7 @@ public class ApiManager implements ServiceConnection {
             return;
         }
 
-        if (!isModelLoaded) {
+        if (!isModelLoaded && embeddingSession == null) {
             Log.e(TAG, "Model not loaded yet");
             return;
         }
@@ -185,7 +225,12 @@ public class ApiManager implements ServiceConnection {
             Log.i(TAG, "Available endpoints:");
             Log.i(TAG, "  GET /v1/status - Check server and model status");
             Log.i(TAG, "  GET /v1/models - List available models");
+            Log.i(TAG, "  GET /metrics - Prometheus metrics");
+            Log.i(TAG, "  GET /debug/access_log - Recent access log");
             Log.i(TAG, "  POST /v1/chat/completions - Chat completion endpoint");
+            Log.i(TAG, "  POST /v1/tokenize - Tokenize text or messages and count tokens");
+            Log.i(TAG, "  POST /v1/embeddings - Embedding endpoint");
+            Log.i(TAG, "  POST /v1/batches - Submit a JSONL batch of chat completions");
         } catch (Exception e) {
             Log.e(TAG, "Failed to start API service: " + e.getMessage());
             isModelLoaded = false;
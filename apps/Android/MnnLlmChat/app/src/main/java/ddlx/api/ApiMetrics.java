@@ -0,0 +1,124 @@
+package ddlx.api;
+
+import android.os.Debug;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * API 服务的运行指标，生成时的记录路径只做原子操作，/metrics 请求时再格式化为 Prometheus 文本
+ */
+public class ApiMetrics {
+    private static final String TAG = "ApiMetrics";
+
+    public final LatencyHistogram queueWait = new LatencyHistogram();
+    public final LatencyHistogram timeToFirstToken = new LatencyHistogram();
+    public final LatencyHistogram interTokenLatency = new LatencyHistogram();
+    public final LatencyHistogram requestDuration = new LatencyHistogram();
+
+    private final LongAdder promptTokens = new LongAdder();
+    private final LongAdder decodeTokens = new LongAdder();
+    private final LongAdder prefillMicros = new LongAdder();
+    private final LongAdder decodeMicros = new LongAdder();
+    // 最近一次请求的速度，单位 tokens/s * 1000
+    private final AtomicLong lastPrefillMilliTps = new AtomicLong();
+    private final AtomicLong lastDecodeMilliTps = new AtomicLong();
+
+    /**
+     * 记录单次生成的原生统计结果（ChatSession.generate 返回的 metrics）
+     */
+    public void recordGeneration(Map<String, Object> result) {
+        if (result == null) {
+            return;
+        }
+        long prompt = getLong(result, "prompt_len");
+        long decode = getLong(result, "decode_len");
+        long prefillUs = getLong(result, "prefill_time");
+        long decodeUs = getLong(result, "decode_time");
+        promptTokens.add(prompt);
+        decodeTokens.add(decode);
+        prefillMicros.add(prefillUs);
+        decodeMicros.add(decodeUs);
+        if (prefillUs > 0) {
+            lastPrefillMilliTps.set(prompt * 1_000_000_000L / prefillUs);
+        }
+        if (decodeUs > 0) {
+            lastDecodeMilliTps.set(decode * 1_000_000_000L / decodeUs);
+        }
+    }
+
+    /**
+     * completionCache 为 null 表示未开启补全缓存，命中与未命中数输出为 0
+     */
+    public String toPrometheus(int totalRequests, int successRequests, int failedRequests,
+                               int runningRequests, int waitingRequests, boolean modelLoaded,
+                               CompletionCache completionCache) {
+        StringBuilder builder = new StringBuilder(8 * 1024);
+        writeCounter(builder, "mnn_api_requests_total", "Total number of API requests", totalRequests);
+        writeCounter(builder, "mnn_api_requests_success_total", "Number of successful API requests", successRequests);
+        writeCounter(builder, "mnn_api_requests_failed_total", "Number of failed API requests", failedRequests);
+        writeGauge(builder, "mnn_api_requests_running", "Requests currently holding the model", runningRequests);
+        writeGauge(builder, "mnn_api_requests_waiting", "Requests waiting in the admission queue", waitingRequests);
+        writeGauge(builder, "mnn_model_loaded", "Whether a chat model is loaded", modelLoaded ? 1 : 0);
+        writeCounter(builder, "mnn_api_completion_cache_hits_total", "Completions served from the completion cache",
+                completionCache != null ? completionCache.getHits() : 0);
+        writeCounter(builder, "mnn_api_completion_cache_misses_total", "Cacheable completions not found in the completion cache",
+                completionCache != null ? completionCache.getMisses() : 0);
+
+        queueWait.writePrometheus(builder, "mnn_api_queue_wait_seconds", "Time spent waiting for admission");
+        timeToFirstToken.writePrometheus(builder, "mnn_llm_time_to_first_token_seconds", "Time from start of generation to first streamed token");
+        interTokenLatency.writePrometheus(builder, "mnn_llm_inter_token_latency_seconds", "Latency between streamed tokens");
+        requestDuration.writePrometheus(builder, "mnn_llm_request_duration_seconds", "Time from start to end of generation");
+
+        writeCounter(builder, "mnn_llm_prompt_tokens_total", "Prompt tokens prefilled", promptTokens.sum());
+        writeCounter(builder, "mnn_llm_decode_tokens_total", "Tokens decoded", decodeTokens.sum());
+        writeCounter(builder, "mnn_llm_prefill_seconds_total", "Time spent in prefill", prefillMicros.sum() / 1_000_000.0);
+        writeCounter(builder, "mnn_llm_decode_seconds_total", "Time spent in decode", decodeMicros.sum() / 1_000_000.0);
+        writeGauge(builder, "mnn_llm_prefill_tokens_per_second", "Prefill speed of the last request", lastPrefillMilliTps.get() / 1000.0);
+        writeGauge(builder, "mnn_llm_decode_tokens_per_second", "Decode speed of the last request", lastDecodeMilliTps.get() / 1000.0);
+
+        writeGauge(builder, "mnn_process_resident_memory_bytes", "Resident set size of the process", readResidentBytes());
+        writeGauge(builder, "mnn_process_native_heap_allocated_bytes", "Allocated native heap, includes model buffers", Debug.getNativeHeapAllocatedSize());
+        return builder.toString();
+    }
+
+    private static void writeCounter(StringBuilder builder, String name, String help, double value) {
+        builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(name).append(" counter\n");
+        builder.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void writeGauge(StringBuilder builder, String name, String help, double value) {
+        builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(name).append(" gauge\n");
+        builder.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static long getLong(Map<String, Object> result, String key) {
+        Object value = result.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    /**
+     * 读取 /proc/self/status 中的 VmRSS，包含 mmap 映射进内存的模型权重
+     */
+    private static long readResidentBytes() {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    String[] parts = line.trim().split("\\s+");
+                    return Long.parseLong(parts[1]) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Failed to read resident memory: " + e.getMessage());
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,399 @@
+package ddlx.api;
+
+import android.content.Context;
+
+import com.alibaba.mnnllm.android.ChatSession;
+import com.alibaba.mnnllm.android.SamplingParams;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 离线批量推理任务（接口风格参考 OpenAI /v1/batches）。
+ * 输入为 JSONL，每行 {"custom_id": ..., "body": {chat completions 请求}}，
+ * 提交时边读边写入磁盘，内存中只保留每行的偏移；任务在单独的线程中逐条执行，结果逐行写入输出 JSONL。
+ * 每条请求持有准入凭证后在当前会话上执行，只使用会话的 system prompt，不改动会话的聊天历史，
+ * 不会额外加载模型实例。
+ * 相同 system prompt 的请求会被排在一起，连续执行时复用公共前缀的 KV cache。
+ */
+public class BatchManager {
+    private static final String TAG = "BatchManager";
+    private static final String BATCH_DIR = "api_batches";
+    private static final int MAX_JOBS = 16;
+    private static final int DEFAULT_MAX_TOKENS = 2048;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    public static final String STATUS_IN_PROGRESS = "in_progress";
+    public static final String STATUS_COMPLETED = "completed";
+    public static final String STATUS_FAILED = "failed";
+    public static final String STATUS_CANCELLING = "cancelling";
+    public static final String STATUS_CANCELLED = "cancelled";
+
+    /**
+     * 将请求体转换为提示词，复用 chat completions 的解析逻辑
+     */
+    public interface PromptBuilder {
+        String build(JSONObject body) throws Exception;
+    }
+
+    public class BatchJob {
+        private final String id;
+        private final String apiKey;
+        private final long createdAt = System.currentTimeMillis() / 1000;
+        private final File inputFile;
+        private final File outputFile;
+        private int total;
+        private volatile String status = STATUS_IN_PROGRESS;
+        private volatile int completed = 0;
+        private volatile int failed = 0;
+        private volatile long cachedTokens = 0;
+        private volatile long completedAt = 0;
+        private volatile boolean cancelRequested = false;
+
+        BatchJob(String id, String apiKey) {
+            this.id = id;
+            this.apiKey = apiKey;
+            this.inputFile = new File(batchDir, id + "_input.jsonl");
+            this.outputFile = new File(batchDir, id + "_output.jsonl");
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public File getOutputFile() {
+            return outputFile;
+        }
+
+        public boolean isFinished() {
+            return STATUS_COMPLETED.equals(status) || STATUS_FAILED.equals(status)
+                    || STATUS_CANCELLED.equals(status);
+        }
+
+        public JSONObject toJson() throws JSONException {
+            return new JSONObject()
+                    .put("id", id)
+                    .put("object", "batch")
+                    .put("endpoint", "/v1/chat/completions")
+                    .put("status", status)
+                    .put("created_at", createdAt)
+                    .put("completed_at", completedAt > 0 ? completedAt : JSONObject.NULL)
+                    .put("output_file", "/v1/batches/" + id + "/output")
+                    .put("request_counts", new JSONObject()
+                            .put("total", total)
+                            .put("completed", completed)
+                            .put("failed", failed))
+                    .put("cached_prompt_tokens", cachedTokens);
+        }
+    }
+
+    private final File batchDir;
+    private final AdmissionController admissionController;
+    private final PromptBuilder promptBuilder;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ApiBatchWorker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LinkedHashMap<String, BatchJob> jobs = new LinkedHashMap<>();
+
+    public BatchManager(Context context, AdmissionController admissionController, PromptBuilder promptBuilder) {
+        this.batchDir = new File(context.getFilesDir(), BATCH_DIR);
+        this.admissionController = admissionController;
+        this.promptBuilder = promptBuilder;
+    }
+
+    /**
+     * 从请求体读取 length 字节的 JSONL 并提交任务。输入边读边写入任务目录并逐行校验，
+     * 只记录每行的偏移和长度，输入格式错误时抛出 IllegalArgumentException
+     */
+    public BatchJob submit(InputStream input, long length, String apiKey) throws IOException {
+        if (!batchDir.exists() && !batchDir.mkdirs()) {
+            throw new IOException("Failed to create " + batchDir);
+        }
+        BatchJob job = new BatchJob("batch_" + UUID.randomUUID().toString().replace("-", ""), apiKey);
+        List<long[]> lines;
+        try {
+            lines = copyAndIndex(input, length, job.inputFile);
+        } catch (IllegalArgumentException | IOException e) {
+            job.inputFile.delete();
+            throw e;
+        }
+        job.total = lines.size();
+        synchronized (jobs) {
+            jobs.put(job.id, job);
+            evictFinishedJobs();
+        }
+        executor.execute(() -> run(job, lines));
+        return job;
+    }
+
+    /**
+     * 将输入复制到 file，返回按 system prompt 分组排序后的各行 {偏移, 长度}
+     */
+    private static List<long[]> copyAndIndex(InputStream input, long length, File file) throws IOException {
+        // 相同 system prompt 的行相邻，让共享前缀的请求连续执行
+        Map<String, List<long[]>> groups = new LinkedHashMap<>();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        long offset = 0;
+        long lineStart = 0;
+        int lineNumber = 0;
+        int count = 0;
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(file))) {
+            while (offset < length) {
+                int read = input.read(buffer, 0, (int) Math.min(buffer.length, length - offset));
+                if (read < 0) {
+                    break;
+                }
+                output.write(buffer, 0, read);
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        line.write(buffer, start, i - start);
+                        count += indexLine(groups, line, lineStart, ++lineNumber);
+                        line.reset();
+                        start = i + 1;
+                        lineStart = offset + start;
+                    }
+                }
+                line.write(buffer, start, read - start);
+                offset += read;
+            }
+        }
+        count += indexLine(groups, line, lineStart, ++lineNumber);
+        if (count == 0) {
+            throw new IllegalArgumentException("Batch input is empty");
+        }
+        List<long[]> ordered = new ArrayList<>(count);
+        for (List<long[]> group : groups.values()) {
+            ordered.addAll(group);
+        }
+        return ordered;
+    }
+
+    private static int indexLine(Map<String, List<long[]>> groups, ByteArrayOutputStream line,
+                                 long offset, int lineNumber) {
+        String text = new String(line.toByteArray(), StandardCharsets.UTF_8).trim();
+        if (text.isEmpty()) {
+            return 0;
+        }
+        JSONObject item;
+        try {
+            item = new JSONObject(text);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Line " + lineNumber + " is not valid JSON");
+        }
+        if (!item.has("body")) {
+            throw new IllegalArgumentException("Line " + lineNumber + " has no 'body'");
+        }
+        String key = systemPromptKey(item);
+        List<long[]> group = groups.get(key);
+        if (group == null) {
+            group = new ArrayList<>();
+            groups.put(key, group);
+        }
+        group.add(new long[]{offset, line.size()});
+        return 1;
+    }
+
+    public BatchJob getJob(String id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    public List<BatchJob> listJobs() {
+        synchronized (jobs) {
+            return new ArrayList<>(jobs.values());
+        }
+    }
+
+    public BatchJob cancel(String id) {
+        BatchJob job = getJob(id);
+        if (job != null && !job.isFinished()) {
+            job.cancelRequested = true;
+            job.status = STATUS_CANCELLING;
+        }
+        return job;
+    }
+
+    public void shutdown() {
+        synchronized (jobs) {
+            for (BatchJob job : jobs.values()) {
+                job.cancelRequested = true;
+            }
+        }
+        executor.shutdownNow();
+    }
+
+    private void evictFinishedJobs() {
+        Iterator<BatchJob> iterator = jobs.values().iterator();
+        while (jobs.size() > MAX_JOBS && iterator.hasNext()) {
+            BatchJob job = iterator.next();
+            if (job.isFinished()) {
+                job.inputFile.delete();
+                job.outputFile.delete();
+                iterator.remove();
+            }
+        }
+    }
+
+    private static String systemPromptKey(JSONObject item) {
+        JSONObject body = item.optJSONObject("body");
+        JSONArray messages = body != null ? body.optJSONArray("messages") : null;
+        if (messages != null && messages.length() > 0) {
+            JSONObject first = messages.optJSONObject(0);
+            if (first != null && "system".equals(first.optString("role"))) {
+                return String.valueOf(first.opt("content"));
+            }
+        }
+        return "";
+    }
+
+    private void run(BatchJob job, List<long[]> lines) {
+        try (RandomAccessFile input = new RandomAccessFile(job.inputFile, "r");
+             Writer writer = new BufferedWriter(new OutputStreamWriter(
+                     new FileOutputStream(job.outputFile), StandardCharsets.UTF_8))) {
+            int index = 0;
+            for (long[] ref : lines) {
+                if (job.cancelRequested) {
+                    break;
+                }
+                byte[] bytes = new byte[(int) ref[1]];
+                input.seek(ref[0]);
+                input.readFully(bytes);
+                JSONObject item = new JSONObject(new String(bytes, StandardCharsets.UTF_8).trim());
+                JSONObject line = runItem(job, item, index++);
+                writer.write(line.toString());
+                writer.write('\n');
+                writer.flush();
+            }
+            job.status = job.cancelRequested ? STATUS_CANCELLED : STATUS_COMPLETED;
+        } catch (Exception e) {
+            ApiLog.e(TAG, "Batch failed: %s", e.getMessage());
+            job.status = STATUS_FAILED;
+        } finally {
+            job.inputFile.delete();
+            job.completedAt = System.currentTimeMillis() / 1000;
+        }
+        ApiLog.i(TAG, "Batch %s finished: %s", job.id, job.status);
+    }
+
+    private JSONObject runItem(BatchJob job, JSONObject item, int index)
+            throws JSONException, InterruptedException {
+        JSONObject line = new JSONObject()
+                .put("id", job.id + "_req_" + index)
+                .put("custom_id", item.opt("custom_id"));
+        String errorMessage;
+        AdmissionController.Ticket ticket = null;
+        try {
+            JSONObject body = item.getJSONObject("body");
+            String prompt = promptBuilder.build(body);
+            SamplingParams params = OpenAICompatibleService.parseSamplingParams(body);
+            if (params.getMaxTokens() == 0) {
+                params.setMaxTokens(DEFAULT_MAX_TOKENS);
+            }
+            // 与交互请求共用准入控制，批量任务不会独占模型
+            ticket = acquireTicket(job);
+            // 每条请求重新获取当前会话，任务执行期间可能切换了模型
+            ChatSession chatSession = ApiManager.getInstance().getCurrentSession();
+            if (chatSession == null) {
+                throw new IllegalStateException("No active chat session available");
+            }
+            StringBuilder content = new StringBuilder();
+            HashMap<String, Object> result = chatSession.generateSharedPrefix(prompt, params, progress -> {
+                if (progress != null) {
+                    content.append(progress);
+                }
+                return job.cancelRequested;
+            });
+            if (result == null) {
+                throw new IllegalStateException("Generation failed");
+            }
+            long promptLen = getLong(result, "prompt_len");
+            long cachedLen = getLong(result, "cached_len");
+            long decodeLen = getLong(result, "decode_len");
+            job.cachedTokens += cachedLen;
+            JSONObject completion = new JSONObject()
+                    .put("id", "chatcmpl-" + System.currentTimeMillis())
+                    .put("object", "chat.completion")
+                    .put("created", System.currentTimeMillis() / 1000)
+                    .put("model", "mnn-local")
+                    .put("choices", new JSONArray().put(new JSONObject()
+                            .put("index", 0)
+                            .put("message", new JSONObject()
+                                    .put("role", "assistant")
+                                    .put("content", content.toString()))
+                            .put("finish_reason", OpenAICompatibleService.isLengthLimited(result) ? "length" : "stop")))
+                    .put("usage", new JSONObject()
+                            .put("prompt_tokens", promptLen + cachedLen)
+                            .put("completion_tokens", decodeLen)
+                            .put("total_tokens", promptLen + cachedLen + decodeLen)
+                            .put("prompt_tokens_details", new JSONObject().put("cached_tokens", cachedLen)));
+            job.completed++;
+            return line.put("response", new JSONObject()
+                            .put("status_code", 200)
+                            .put("body", completion))
+                    .put("error", JSONObject.NULL);
+        } catch (AdmissionController.RejectedException e) {
+            errorMessage = e.getMessage();
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            errorMessage = e.getMessage();
+        } finally {
+            if (ticket != null) {
+                ticket.release();
+            }
+        }
+        job.failed++;
+        return line.put("response", JSONObject.NULL)
+                .put("error", new JSONObject().put("message", errorMessage));
+    }
+
+    /**
+     * 队列满时等待后重试，而不是像交互请求那样直接失败
+     */
+    private AdmissionController.Ticket acquireTicket(BatchJob job)
+            throws AdmissionController.RejectedException, InterruptedException {
+        while (true) {
+            try {
+                return admissionController.acquire(job.apiKey);
+            } catch (AdmissionController.RejectedException e) {
+                if (job.cancelRequested) {
+                    throw e;
+                }
+                Thread.sleep(e.getRetryAfterSeconds() * 1000L);
+            }
+        }
+    }
+
+    private static long getLong(Map<String, Object> result, String key) {
+        Object value = result.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+}
@@ -0,0 +1,92 @@
+package ddlx.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * 替换 NanoHTTPD 默认的“每个连接一个新线程”的执行器：连接交给有上限的线程池处理，
+ * 空闲线程复用，超出线程数和排队数的连接直接关闭，避免大量短轮询请求各自占用一个线程。
+ * 工作线程数只决定能同时服务多少个连接，模型生成仍只有一个会话，
+ * 同时生成的请求数由 AdmissionController 限制为 1。
+ */
+public class BoundedAsyncRunner implements NanoHTTPD.AsyncRunner {
+    private static final String TAG = "BoundedAsyncRunner";
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor executor;
+    private final List<NanoHTTPD.ClientHandler> running =
+            Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger rejectedConnections = new AtomicInteger(0);
+
+    public BoundedAsyncRunner(int maxWorkers, int maxPendingConnections) {
+        int workers = Math.max(2, maxWorkers);
+        AtomicInteger threadCount = new AtomicInteger(0);
+        ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(runnable, "ApiWorker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        executor = new ThreadPoolExecutor(workers, workers,
+                IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, maxPendingConnections)), factory);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void exec(NanoHTTPD.ClientHandler clientHandler) {
+        running.add(clientHandler);
+        try {
+            executor.execute(clientHandler);
+        } catch (RejectedExecutionException e) {
+            running.remove(clientHandler);
+            rejectedConnections.incrementAndGet();
+            ApiLog.w(TAG, "Connection rejected, %d workers busy", executor.getActiveCount());
+            clientHandler.close();
+        }
+    }
+
+    @Override
+    public void closed(NanoHTTPD.ClientHandler clientHandler) {
+        running.remove(clientHandler);
+    }
+
+    @Override
+    public void closeAll() {
+        List<NanoHTTPD.ClientHandler> handlers;
+        synchronized (running) {
+            handlers = new ArrayList<>(running);
+        }
+        for (NanoHTTPD.ClientHandler handler : handlers) {
+            handler.close();
+        }
+    }
+
+    /**
+     * 停止服务时调用，关闭所有连接并回收线程
+     */
+    public void shutdown() {
+        closeAll();
+        executor.shutdownNow();
+    }
+
+    public int getOpenConnections() {
+        return running.size();
+    }
+
+    public int getActiveWorkers() {
+        return executor.getActiveCount();
+    }
+
+    public int getRejectedConnections() {
+        return rejectedConnections.get();
+    }
+}
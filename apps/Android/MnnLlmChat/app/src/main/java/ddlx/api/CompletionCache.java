@@ -0,0 +1,119 @@
+package ddlx.api;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 确定性（greedy 采样）补全结果的缓存，按 (模型, 采样配置, 提示词) 的哈希索引。
+ * 按总字符数做 LRU 淘汰，并带 TTL，命中时直接回放已生成的 token 片段。
+ */
+public class CompletionCache {
+    private final long maxChars;
+    private final long ttlMs;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalChars = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    public static class Entry {
+        private final List<String> chunks;
+        private final String finishReason;
+        private final long createdAt;
+        private final long chars;
+
+        Entry(List<String> chunks, String finishReason, long chars) {
+            this.chunks = Collections.unmodifiableList(chunks);
+            this.finishReason = finishReason;
+            this.createdAt = System.currentTimeMillis();
+            this.chars = chars;
+        }
+
+        public List<String> getChunks() {
+            return chunks;
+        }
+
+        public String getFinishReason() {
+            return finishReason;
+        }
+    }
+
+    public CompletionCache(long maxChars, long ttlMs) {
+        this.maxChars = maxChars;
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * samplerConfig 需包含所有影响输出的参数（采样配置、max_tokens、stop）
+     */
+    public static String key(String modelId, String samplerConfig, String prompt) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : new String[]{modelId, samplerConfig, prompt}) {
+                byte[] bytes = (part == null ? "" : part).getBytes(StandardCharsets.UTF_8);
+                digest.update(bytes);
+                digest.update((byte) 0);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && System.currentTimeMillis() - entry.createdAt > ttlMs) {
+            entries.remove(key);
+            totalChars -= entry.chars;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    public synchronized void put(String key, List<String> chunks, String finishReason) {
+        long chars = 0;
+        for (String chunk : chunks) {
+            chars += chunk.length();
+        }
+        if (chars > maxChars) {
+            return;
+        }
+        Entry old = entries.put(key, new Entry(chunks, finishReason, chars));
+        if (old != null) {
+            totalChars -= old.chars;
+        }
+        totalChars += chars;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (totalChars > maxChars && iterator.hasNext()) {
+            totalChars -= iterator.next().getValue().chars;
+            iterator.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        totalChars = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,195 @@
+package ddlx.api;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import okhttp3.Cache;
+import okhttp3.ConnectionPool;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * 图片 URL 下载器：共享连接池复用 keep-alive 连接，磁盘 HTTP 缓存按 ETag/Last-Modified
+ * 重新验证，一个请求中的所有图片并行下载，单张图片超过上限时立即中止。
+ * 跟随重定向，响应的 Content-Type 不是图片时拒绝（未声明或 application/octet-stream 时交给解码校验）。
+ */
+public class ImageFetcher {
+    private static final String TAG = "ImageFetcher";
+    private static final String CACHE_DIR = "api_image_http";
+    private static final long CACHE_MAX_BYTES = 64L * 1024 * 1024;
+    static final int MAX_IMAGE_BYTES = 20 * 1024 * 1024;
+    private static final int FETCH_THREADS = 4;
+    private static final int TIMEOUT_SECONDS = 15;
+    private static ImageFetcher instance;
+
+    private final OkHttpClient client;
+    private final ExecutorService executor;
+    private final int timeoutSeconds;
+
+    /**
+     * 图片超过 MAX_IMAGE_BYTES
+     */
+    public static class ImageTooLargeException extends IOException {
+        ImageTooLargeException(String url) {
+            super("Image exceeds " + (MAX_IMAGE_BYTES / (1024 * 1024)) + " MB: " + ApiLog.abbreviate(url, 128));
+        }
+    }
+
+    /**
+     * 响应的 Content-Type 不是图片
+     */
+    public static class UnsupportedContentTypeException extends IOException {
+        UnsupportedContentTypeException(String url, MediaType type) {
+            super("Unsupported content type " + type + " for " + ApiLog.abbreviate(url, 128));
+        }
+    }
+
+    private ImageFetcher(Context context) {
+        this(new File(context.getCacheDir(), CACHE_DIR), TIMEOUT_SECONDS);
+    }
+
+    // 测试使用，传入缓存目录和超时
+    ImageFetcher(File cacheDir, int timeoutSeconds) {
+        this.timeoutSeconds = timeoutSeconds;
+        client = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(FETCH_THREADS, 5, TimeUnit.MINUTES))
+                .cache(new Cache(cacheDir, CACHE_MAX_BYTES))
+                .connectTimeout(timeoutSeconds, TimeUnit.SECONDS)
+                .readTimeout(timeoutSeconds, TimeUnit.SECONDS)
+                .build();
+        AtomicInteger threadCount = new AtomicInteger(0);
+        executor = Executors.newFixedThreadPool(FETCH_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "ApiImageFetch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static synchronized ImageFetcher getInstance(Context context) {
+        if (instance == null) {
+            instance = new ImageFetcher(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * 下载单张图片，非 2xx 响应、非图片类型或超过大小上限时抛出 IOException
+     */
+    public byte[] fetch(String url) throws IOException {
+        Request request = new Request.Builder().url(url).get().build();
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                throw new IOException("HTTP " + response.code() + " for " + ApiLog.abbreviate(url, 128));
+            }
+            ResponseBody body = response.body();
+            if (body == null) {
+                throw new IOException("Empty response for " + ApiLog.abbreviate(url, 128));
+            }
+            MediaType type = body.contentType();
+            if (type != null && !"image".equals(type.type())
+                    && !("application".equals(type.type()) && "octet-stream".equals(type.subtype()))) {
+                throw new UnsupportedContentTypeException(url, type);
+            }
+            long contentLength = body.contentLength();
+            if (contentLength > MAX_IMAGE_BYTES) {
+                throw new ImageTooLargeException(url);
+            }
+            ApiLog.d(TAG, "Fetched %s (cache: %s)", url, response.cacheResponse() != null ? "hit" : "miss");
+            return readLimited(body.byteStream(), contentLength, url);
+        }
+    }
+
+    /**
+     * 并行下载，结果按 URL 去重并保持顺序；任意一张失败则取消其余下载并抛出异常
+     */
+    public Map<String, byte[]> fetchAll(List<String> urls) throws IOException {
+        Map<String, Future<byte[]>> futures = new LinkedHashMap<>();
+        for (String url : urls) {
+            if (!futures.containsKey(url)) {
+                futures.put(url, executor.submit(() -> fetch(url)));
+            }
+        }
+        Map<String, byte[]> results = new LinkedHashMap<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds * 2L);
+        try {
+            for (Map.Entry<String, Future<byte[]>> entry : futures.entrySet()) {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                results.put(entry.getKey(), entry.getValue().get(remaining, TimeUnit.NANOSECONDS));
+            }
+            return results;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out downloading images");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted downloading images");
+        } finally {
+            for (Future<byte[]> future : futures.values()) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static byte[] readLimited(InputStream input, long contentLength, String url) throws IOException {
+        // 多留一个字节，读满即说明超出声明的长度
+        byte[] buffer = new byte[contentLength > 0 ? (int) contentLength + 1 : 64 * 1024];
+        int size = 0;
+        int read;
+        while ((read = input.read(buffer, size, buffer.length - size)) != -1) {
+            size += read;
+            if (size > MAX_IMAGE_BYTES) {
+                throw new ImageTooLargeException(url);
+            }
+            if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.min(MAX_IMAGE_BYTES + 1, buffer.length * 2));
+            }
+        }
+        return Arrays.copyOf(buffer, size);
+    }
+
+    /**
+     * 收集请求中所有 http(s) 图片 URL，供 fetchAll 一次性并行下载
+     */
+    static List<String> collectImageUrls(JSONArray messages) {
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < messages.length(); i++) {
+            JSONObject message = messages.optJSONObject(i);
+            JSONArray content = message != null ? message.optJSONArray("content") : null;
+            if (content == null) {
+                continue;
+            }
+            for (int j = 0; j < content.length(); j++) {
+                JSONObject item = content.optJSONObject(j);
+                JSONObject imageUrl = item != null ? item.optJSONObject("image_url") : null;
+                String url = imageUrl != null ? imageUrl.optString("url", "") : "";
+                if (url.startsWith("http://") || url.startsWith("https://")) {
+                    urls.add(url);
+                }
+            }
+        }
+        return urls;
+    }
+}
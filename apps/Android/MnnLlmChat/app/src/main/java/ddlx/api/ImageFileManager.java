@@ -1,39 +1,59 @@
 package ddlx.api;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
 import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
 /**
- * 图像文件管理器，负责处理图像文件的存储、缓存和哈希映射
+ * 图像文件管理器，负责处理图像文件的存储、缓存和哈希映射。
+ * 图像只解码一次：先读取尺寸，再用 inSampleSize 降采样解码到目标分辨率附近，
+ * 按 EXIF 方向摆正后统一写成 JPEG 文件，视觉编码器的内存占用和预处理耗时都与输入像素数相关。
+ * 文件先写入临时文件再重命名，缓存目录中只会出现完整的图像。
  */
 public class ImageFileManager {
     private static final String TAG = "ImageFileManager";
+    /**
+     * 模型配置中没有 image_size 时写入文件的最长边
+     */
+    private static final int DEFAULT_MAX_SIDE = 1024;
+    private static final int JPEG_QUALITY = 90;
     private static ImageFileManager instance;
     private final Context context;
-    private final Map<String, String> hashToPathMap = new HashMap<>();
+    private final Map<String, String> hashToPathMap = new ConcurrentHashMap<>();
     private final String cacheDir;
-    
+    // 写入文件的最长边，取当前模型视觉编码器的输入尺寸，编码器不会用到更多像素
+    private volatile int targetMaxSide = DEFAULT_MAX_SIDE;
+
     private ImageFileManager(Context context) {
         this.context = context.getApplicationContext();
         this.cacheDir = context.getExternalFilesDir(null).getAbsolutePath() + "/image_cache";
         ensureCacheDirExists();
     }
-    
+
     public static synchronized ImageFileManager getInstance(Context context) {
         if (instance == null) {
             instance = new ImageFileManager(context);
         }
         return instance;
     }
-    
+
     private void ensureCacheDirExists() {
         File dir = new File(cacheDir);
         if (!dir.exists()) {
@@ -42,109 +62,225 @@ public class ImageFileManager {
             }
         }
     }
-    
+
+    /**
+     * 从模型的 config.json 找到 llm_config.json，读取其中视觉编码器的 image_size 作为写入文件的最长边，
+     * 与推理引擎的查找方式一致，读取失败时使用默认值
+     */
+    public void setModelConfig(String configPath) {
+        int maxSide = DEFAULT_MAX_SIDE;
+        if (configPath != null) {
+            try {
+                File configFile = new File(configPath);
+                JSONObject config = readJson(configFile);
+                String baseDir = config.optString("base_dir", configFile.getParent() + File.separator);
+                JSONObject llmConfig = readJson(new File(baseDir + config.optString("llm_config", "llm_config.json")));
+                int imageSize = llmConfig.optInt("image_size", 0);
+                if (imageSize > 0) {
+                    maxSide = imageSize;
+                }
+            } catch (IOException | JSONException e) {
+                Log.w(TAG, "Failed to read image size from " + configPath + ": " + e.getMessage());
+            }
+        }
+        targetMaxSide = maxSide;
+        ApiLog.i(TAG, "Image max side: %d", maxSide);
+    }
+
+    private static JSONObject readJson(File file) throws IOException, JSONException {
+        return new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+    }
+
     /**
      * 处理Base64编码的图像数据，保存为文件并返回文件路径
-     * 
+     *
      * @param base64Data Base64编码的图像数据
      * @return 保存的图像文件路径
      */
     public String processBase64Image(String base64Data) {
+        if (base64Data == null || base64Data.isEmpty()) {
+            Log.e(TAG, "Invalid base64 data: null or empty");
+            return null;
+        }
+        byte[] imageData;
+        try {
+            imageData = Base64.getDecoder().decode(base64Data);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Failed to decode base64 data: " + e.getMessage());
+            return null;
+        }
+        return processImageBytes(imageData);
+    }
+
+    /**
+     * 处理原始图像字节（URL 下载的图像直接走这里，不经过 Base64），
+     * 降采样后保存为文件并返回文件路径，数据无效时返回 null
+     */
+    public String processImageBytes(byte[] imageData) {
         if (context == null) {
             Log.e(TAG, "Context not initialized, cannot process image");
             return null;
         }
+        if (imageData == null || imageData.length == 0) {
+            Log.e(TAG, "Invalid image data: null or empty");
+            return null;
+        }
         try {
-            Log.d(TAG, "Starting to process base64 image data, length: " + base64Data.length());
-            
-            // 增加对 Base64 数据的初步校验
-            if (base64Data == null || base64Data.isEmpty()) {
-                Log.e(TAG, "Invalid base64 data: null or empty");
-                return null;
+            int maxSide = targetMaxSide;
+            // 不同模型的输入尺寸不同，缓存键和文件名都带上最长边
+            String hash = calculateSHA256(imageData).substring(0, 16) + "_" + maxSide;
+            String filePath = cacheDir + "/img_" + hash + ".jpg";
+
+            // 检查是否已缓存，进程重启后映射为空，但文件名由哈希决定，可以直接复用
+            String cachedPath = hashToPathMap.get(hash);
+            if (cachedPath == null && new File(filePath).exists()) {
+                cachedPath = filePath;
             }
-            
-            // 计算SHA-256哈希值
-            String hash = calculateSHA256(base64Data);
-            Log.d(TAG, "Calculated image hash: " + hash);
-            
-            // 检查是否已缓存
-            if (hashToPathMap.containsKey(hash)) {
-                String cachedPath = hashToPathMap.get(hash);
-                File cachedFile = new File(cachedPath);
-                if (cachedFile.exists()) {
-                    Log.d(TAG, "Found cached image: " + cachedPath);
+            if (cachedPath != null) {
+                if (new File(cachedPath).exists()) {
+                    hashToPathMap.put(hash, cachedPath);
+                    ApiLog.d(TAG, "Found cached image: %s", cachedPath);
                     return cachedPath;
-                } else {
-                    Log.w(TAG, "Cached file not found on disk: " + cachedPath);
                 }
+                Log.w(TAG, "Cached file not found on disk: " + cachedPath);
+                hashToPathMap.remove(hash);
             }
-            
-            // 解码Base64数据
-            Log.d(TAG, "Decoding base64 data");
-            byte[] imageData;
-            try {
-                imageData = Base64.getDecoder().decode(base64Data);
-                Log.d(TAG, "Successfully decoded base64 data, byte length: " + imageData.length);
-            } catch (IllegalArgumentException e) {
-                Log.e(TAG, "Failed to decode base64 data: " + e.getMessage());
+
+            // 只读取尺寸，同时完成有效性校验
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(imageData, 0, imageData.length, bounds);
+            if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+                Log.e(TAG, "Invalid image data");
                 return null;
             }
-            
-            // 创建图像文件
-            String fileName = "img_" + hash.substring(0, 8) + ".jpg";
-            String filePath = cacheDir + "/" + fileName;
-            Log.d(TAG, "Creating image file: " + filePath);
+
             File imageFile = new File(filePath);
-            
-            // 保存图像文件
-            try (FileOutputStream fos = new FileOutputStream(imageFile)) {
-                fos.write(imageData);
-                fos.flush();
-                Log.d(TAG, "Successfully saved image file");
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to save image file: " + e.getMessage());
-                return null;
-            }
-            
-            // 验证图像文件是否有效
-            if (isValidImageFile(filePath)) {
-                // 添加到缓存映射
-                hashToPathMap.put(hash, filePath);
-                Log.d(TAG, "Saved new image: " + filePath);
-                return filePath;
-            } else {
-                Log.e(TAG, "Invalid image data");
-                imageFile.delete();
-                return null;
+            int orientation = readOrientation(imageData);
+            // 写入同目录的临时文件，完整写完后再重命名，中途失败不会留下被当作缓存命中的残缺文件
+            File tmpFile = File.createTempFile("img_", ".tmp", new File(cacheDir));
+            try {
+                boolean upright = orientation == ExifInterface.ORIENTATION_NORMAL
+                        || orientation == ExifInterface.ORIENTATION_UNDEFINED;
+                if (Math.max(bounds.outWidth, bounds.outHeight) <= maxSide && upright
+                        && "image/jpeg".equals(bounds.outMimeType)) {
+                    // 尺寸和方向都合适的 JPEG 原样写入，避免重新编码损失画质
+                    try (FileOutputStream fos = new FileOutputStream(tmpFile)) {
+                        fos.write(imageData);
+                    }
+                } else if (!writeDownscaled(imageData, bounds, orientation, maxSide, tmpFile)) {
+                    return null;
+                }
+                // 并发写入同一图像时另一方可能已经重命名成功，内容相同直接复用
+                if (!tmpFile.renameTo(imageFile) && !imageFile.exists()) {
+                    Log.e(TAG, "Failed to move image into place: " + filePath);
+                    return null;
+                }
+            } finally {
+                tmpFile.delete();
             }
-            
+            hashToPathMap.put(hash, filePath);
+            ApiLog.d(TAG, "Saved new image: %s (%s)", filePath,
+                    bounds.outWidth + "x" + bounds.outHeight + " -> " + imageFile.length() + " bytes");
+            return filePath;
         } catch (Exception e) {
-            Log.e(TAG, "Error processing base64 image: " + e.getMessage());
+            Log.e(TAG, "Error processing image: " + e.getMessage());
             return null;
         }
     }
-    
+
     /**
-     * 验证图像文件是否有效
+     * 读取 EXIF 方向，非 JPEG 或没有 EXIF 时返回 ORIENTATION_UNDEFINED
      */
-    private boolean isValidImageFile(String filePath) {
+    private static int readOrientation(byte[] imageData) {
         try {
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inJustDecodeBounds = true;
-            BitmapFactory.decodeFile(filePath, options);
-            return options.outWidth > 0 && options.outHeight > 0;
-        } catch (Exception e) {
-            Log.e(TAG, "Error validating image: " + e.getMessage());
+            ExifInterface exif = new ExifInterface(new ByteArrayInputStream(imageData));
+            return exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
+        } catch (IOException e) {
+            return ExifInterface.ORIENTATION_UNDEFINED;
+        }
+    }
+
+    /**
+     * 按 EXIF 方向摆正图像的变换，重新编码的 JPEG 不再带 EXIF
+     */
+    private static Matrix orientationMatrix(int orientation) {
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(-90);
+                break;
+            default:
+                break;
+        }
+        return matrix;
+    }
+
+    /**
+     * 按 2 的幂降采样解码（不会小于目标尺寸），再精确缩放到目标最长边、按 EXIF 方向摆正并压缩为 JPEG
+     */
+    private boolean writeDownscaled(byte[] imageData, BitmapFactory.Options bounds, int orientation,
+                                    int targetMaxSide, File imageFile) throws Exception {
+        int maxSide = Math.max(bounds.outWidth, bounds.outHeight);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while (maxSide / (options.inSampleSize * 2) >= targetMaxSide) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap = BitmapFactory.decodeByteArray(imageData, 0, imageData.length, options);
+        if (bitmap == null) {
+            Log.e(TAG, "Failed to decode image");
             return false;
         }
+        try {
+            int decodedMax = Math.max(bitmap.getWidth(), bitmap.getHeight());
+            Matrix matrix = orientationMatrix(orientation);
+            if (decodedMax > targetMaxSide) {
+                float scale = (float) targetMaxSide / decodedMax;
+                matrix.preScale(scale, scale);
+            }
+            if (!matrix.isIdentity()) {
+                // 缩放和旋转在同一次变换中完成
+                Bitmap transformed = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+                if (transformed != bitmap) {
+                    bitmap.recycle();
+                    bitmap = transformed;
+                }
+            }
+            try (FileOutputStream fos = new FileOutputStream(imageFile)) {
+                return bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, fos);
+            }
+        } finally {
+            bitmap.recycle();
+        }
     }
-    
+
     /**
-     * 计算字符串的SHA-256哈希值
+     * 计算图像数据的SHA-256哈希值
      */
-    private String calculateSHA256(String input) throws NoSuchAlgorithmException {
+    private String calculateSHA256(byte[] input) throws NoSuchAlgorithmException {
         MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        byte[] hash = digest.digest(input.getBytes());
+        byte[] hash = digest.digest(input);
         StringBuilder hexString = new StringBuilder();
         for (byte b : hash) {
             String hex = Integer.toHexString(0xff & b);
@@ -153,7 +289,14 @@ public class ImageFileManager {
         }
         return hexString.toString();
     }
-    
+
+    /**
+     * 缓存目录，存储回收按配额淘汰其中最久未使用的文件
+     */
+    public File getCacheDirectory() {
+        return new File(cacheDir);
+    }
+
     /**
      * 清理过期的缓存文件
      */
@@ -164,22 +307,17 @@ public class ImageFileManager {
             if (files != null) {
                 long now = System.currentTimeMillis();
                 long maxAge = 24 * 60 * 60 * 1000; // 24小时
-                
+
                 for (File file : files) {
                     if (now - file.lastModified() > maxAge) {
                         if (file.delete()) {
                             Log.d(TAG, "Deleted expired cache file: " + file.getName());
                             // 从映射中移除
-                            for (Map.Entry<String, String> entry : hashToPathMap.entrySet()) {
-                                if (entry.getValue().equals(file.getAbsolutePath())) {
-                                    hashToPathMap.remove(entry.getKey());
-                                    break;
-                                }
-                            }
+                            hashToPathMap.values().remove(file.getAbsolutePath());
                         }
                     }
                 }
             }
         }
     }
-}
\ No newline at end of file
+}
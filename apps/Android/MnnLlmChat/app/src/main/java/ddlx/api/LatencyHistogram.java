@@ -0,0 +1,79 @@
+package ddlx.api;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无锁的对数-线性延迟直方图（类似 HdrHistogram 的分桶方式），单位为微秒。
+ * 每个 2 的幂区间再均分为 SUB_BUCKETS 个子桶，记录只需一次原子自增。
+ */
+public class LatencyHistogram {
+    // 8 个子桶，相对误差约 12.5%，足以区分 p50/p99
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // 最小区间 [0, 2^MIN_MAGNITUDE) 微秒，最大约 2^MAX_MAGNITUDE 微秒
+    private static final int MIN_MAGNITUDE = 7;
+    private static final int MAX_MAGNITUDE = 28;
+    private static final int BUCKET_COUNT = (MAX_MAGNITUDE - MIN_MAGNITUDE) * SUB_BUCKETS + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT + 1);
+    private final LongAdder sumMicros = new LongAdder();
+    private final LongAdder count = new LongAdder();
+
+    public void recordMicros(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        counts.incrementAndGet(bucketIndex(micros));
+        sumMicros.add(micros);
+        count.increment();
+    }
+
+    public void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    static int bucketIndex(long micros) {
+        if (micros < (1L << MIN_MAGNITUDE)) {
+            return 0;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        if (magnitude >= MAX_MAGNITUDE) {
+            return BUCKET_COUNT;
+        }
+        int sub = (int) ((micros >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return (magnitude - MIN_MAGNITUDE) * SUB_BUCKETS + sub + 1;
+    }
+
+    /**
+     * 第 index 个桶的上界（微秒，不含），最后一个桶为 +Inf
+     */
+    static long bucketUpperBoundMicros(int index) {
+        if (index == 0) {
+            return 1L << MIN_MAGNITUDE;
+        }
+        int magnitude = (index - 1) / SUB_BUCKETS + MIN_MAGNITUDE;
+        int sub = (index - 1) % SUB_BUCKETS;
+        long base = 1L << magnitude;
+        return base + (base >>> SUB_BUCKET_BITS) * (sub + 1);
+    }
+
+    /**
+     * 以 Prometheus histogram 格式输出，le 单位为秒
+     */
+    public void writePrometheus(StringBuilder builder, String name, String help) {
+        builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(name).append(" histogram\n");
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulative += counts.get(i);
+            builder.append(name).append("_bucket{le=\"")
+                    .append(bucketUpperBoundMicros(i) / 1_000_000.0)
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += counts.get(BUCKET_COUNT);
+        builder.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        builder.append(name).append("_sum ").append(sumMicros.sum() / 1_000_000.0).append('\n');
+        builder.append(name).append("_count ").append(count.sum()).append('\n');
+    }
+}
@@ -1,15 +1,24 @@
 package ddlx.api;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.ServiceInfo;
 import android.os.IBinder;
 import android.os.Binder;
@@ -23,7 +32,9 @@ import android.util.Log;
 import android.os.Process;
 
 import com.alibaba.mnnllm.android.ChatSession;
+import com.alibaba.mnnllm.android.EmbeddingSession;
 import com.alibaba.mnnllm.android.R;
+import com.alibaba.mnnllm.android.SamplingParams;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -36,6 +47,36 @@ public class OpenAICompatibleService extends Service {
     private static final int NOTIFICATION_ID = 1001;
     private static final String TAG = "OpenAICompatibleService";
 
+    // 请求准入控制配置项
+    public static final String KEY_MAX_QUEUE_DEPTH = "api_max_queue_depth";
+    public static final String KEY_MAX_WAIT_MS = "api_max_wait_ms";
+    public static final String KEY_MAX_PER_KEY = "api_max_per_key";
+    // 所有请求共用一个 ChatSession（生成加锁、reset 会清掉其他请求的历史），
+    // 在每个并发槽位拥有独立会话之前，同时只执行一个请求，不提供配置项
+    private static final int MAX_CONCURRENT = 1;
+    private static final long MAX_BODY_SIZE = 800L * 1024 * 1024;
+    private static final int ACCESS_LOG_CAPACITY = 256;
+    private static final int TOKEN_LOG_SAMPLE = 64;
+    private static final int LOG_BODY_MAX_CHARS = 512;
+    public static final String KEY_MAX_CONNECTIONS = "api_max_connections";
+    // 空闲 keep-alive 连接的读超时，超时后释放工作线程
+    private static final int KEEP_ALIVE_TIMEOUT_MS = 5000;
+    private static final int MAX_PENDING_CONNECTIONS = 32;
+    // 补全缓存默认关闭，需要时显式开启
+    public static final String KEY_COMPLETION_CACHE = "api_completion_cache";
+    // 取值见 ApiLog.parseLevel，设置页修改后立即生效
+    public static final String KEY_LOG_LEVEL = "api_log_level";
+    private static final long COMPLETION_CACHE_MAX_CHARS = 4L * 1024 * 1024;
+    private static final long COMPLETION_CACHE_TTL_MS = 10 * 60 * 1000L;
+    // 每个响应都要附加的 CORS 头，预先构造，避免逐个响应重复拼装
+    private static final String[][] CORS_HEADERS = {
+            {"Access-Control-Allow-Origin", "*"},
+            {"Access-Control-Allow-Methods", "*"},
+            {"Access-Control-Allow-Headers", "Content-Type, Authorization"},
+            {"Access-Control-Max-Age", "86400"},
+            {"Access-Control-Allow-Credentials", "true"},
+    };
+
     private void createNotificationChannel() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             NotificationChannel channel = new NotificationChannel(
@@ -97,7 +138,7 @@ public class OpenAICompatibleService extends Service {
 
             // 使用当前端口创建并启动新的服务器
             server = new ApiServer();
-            server.start();
+            server.start(KEEP_ALIVE_TIMEOUT_MS, true);
             Log.i(TAG, "API server started and bound to port " + port);
         } catch (IOException e) {
             Log.e(TAG, "Failed to start or bind API server: " + e.getMessage());
@@ -141,14 +182,129 @@ public class OpenAICompatibleService extends Service {
         return binder;
     }
 
+    /**
+     * 请求内容不合法或图片处理失败，携带返回给客户端的错误信息
+     */
+    private static class ChatRequestException extends Exception {
+        private final NanoHTTPD.Response.Status status;
+        private final String type;
+        private final String code;
+
+        ChatRequestException(NanoHTTPD.Response.Status status, String message, String type, String code) {
+            super(message);
+            this.status = status;
+            this.type = type;
+            this.code = code;
+        }
+    }
+
+    /**
+     * 读取请求中的采样参数：temperature、top_p、max_tokens（或 max_completion_tokens）、stop、seed、
+     * response_format，参数不合法时抛出 IllegalArgumentException
+     */
+    static SamplingParams parseSamplingParams(JSONObject request) throws JSONException {
+        SamplingParams params = new SamplingParams();
+        if (request.has("temperature") && !request.isNull("temperature")) {
+            double temperature = request.getDouble("temperature");
+            if (temperature < 0 || temperature > 2) {
+                throw new IllegalArgumentException("'temperature' must be between 0 and 2");
+            }
+            params.setTemperature((float) temperature);
+        }
+        if (request.has("top_p") && !request.isNull("top_p")) {
+            double topP = request.getDouble("top_p");
+            if (topP <= 0 || topP > 1) {
+                throw new IllegalArgumentException("'top_p' must be in (0, 1]");
+            }
+            params.setTopP((float) topP);
+        }
+        String maxTokensKey = request.has("max_completion_tokens") ? "max_completion_tokens" : "max_tokens";
+        if (request.has(maxTokensKey) && !request.isNull(maxTokensKey)) {
+            int maxTokens = request.getInt(maxTokensKey);
+            if (maxTokens <= 0) {
+                throw new IllegalArgumentException("'" + maxTokensKey + "' must be positive");
+            }
+            params.setMaxTokens(maxTokens);
+        }
+        if (request.has("seed") && !request.isNull("seed")) {
+            params.setSeed(request.getLong("seed"));
+        }
+        Object stop = request.opt("stop");
+        if (stop instanceof String) {
+            params.setStop(new String[]{(String) stop});
+        } else if (stop instanceof JSONArray) {
+            JSONArray stopArray = (JSONArray) stop;
+            if (stopArray.length() > 4) {
+                throw new IllegalArgumentException("'stop' supports at most 4 sequences");
+            }
+            String[] sequences = new String[stopArray.length()];
+            for (int i = 0; i < sequences.length; i++) {
+                sequences[i] = stopArray.getString(i);
+            }
+            params.setStop(sequences);
+        }
+        params.setJsonRoot(parseJsonRoot(request.optJSONObject("response_format")));
+        return params;
+    }
+
+    /**
+     * response_format 转换为约束解码的根类型：json_object 要求根为对象；
+     * json_schema 只约束 JSON 语法和 schema 顶层的 type，不校验字段
+     */
+    private static String parseJsonRoot(JSONObject responseFormat) {
+        if (responseFormat == null) {
+            return null;
+        }
+        String type = responseFormat.optString("type", "text");
+        switch (type) {
+            case "text":
+                return null;
+            case "json_object":
+                return "object";
+            case "json_schema":
+                JSONObject jsonSchema = responseFormat.optJSONObject("json_schema");
+                JSONObject schema = jsonSchema != null ? jsonSchema.optJSONObject("schema") : null;
+                String rootType = schema != null ? schema.optString("type", "object") : "object";
+                return "object".equals(rootType) || "array".equals(rootType) ? rootType : "any";
+            default:
+                throw new IllegalArgumentException("Unsupported 'response_format' type: " + type);
+        }
+    }
+
+    static boolean isLengthLimited(Map<String, Object> result) {
+        Object value = result != null ? result.get("length_limited") : null;
+        return value instanceof Number && ((Number) value).longValue() != 0;
+    }
+
     private class ApiServer extends NanoHTTPD {
     private final AtomicInteger totalRequests = new AtomicInteger(0);
     private final AtomicInteger successRequests = new AtomicInteger(0);
     private final AtomicInteger failedRequests = new AtomicInteger(0);
-    private final Object chatLock = new Object();
+    private final AdmissionController admissionController;
+    private final ApiMetrics metrics = new ApiMetrics();
+    private final AccessLog accessLog = new AccessLog(ACCESS_LOG_CAPACITY);
+    // 逐 token 日志按 1/TOKEN_LOG_SAMPLE 采样
+    private final ApiLog.Sampler tokenLogSampler = new ApiLog.Sampler(TOKEN_LOG_SAMPLE);
+    private final BoundedAsyncRunner asyncRunner;
+    // 为 null 表示未开启补全缓存
+    private final CompletionCache completionCache;
+    private final BatchManager batchManager;
 
     public ApiServer() throws IOException {
            super("0.0.0.0", port);
+           SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+           ApiLog.setLevel(ApiLog.parseLevel(prefs.getString(KEY_LOG_LEVEL, null), ApiLog.INFO));
+           admissionController = new AdmissionController(
+                   MAX_CONCURRENT,
+                   prefs.getInt(KEY_MAX_QUEUE_DEPTH, 8),
+                   prefs.getLong(KEY_MAX_WAIT_MS, 30_000L),
+                   prefs.getInt(KEY_MAX_PER_KEY, 2));
+           // 连接由有上限的线程池处理，状态轮询和流式请求共用复用的工作线程
+           asyncRunner = new BoundedAsyncRunner(prefs.getInt(KEY_MAX_CONNECTIONS, 16), MAX_PENDING_CONNECTIONS);
+           setAsyncRunner(asyncRunner);
+           completionCache = prefs.getBoolean(KEY_COMPLETION_CACHE, false)
+                   ? new CompletionCache(COMPLETION_CACHE_MAX_CHARS, COMPLETION_CACHE_TTL_MS) : null;
+           batchManager = new BatchManager(context, admissionController, this::buildChatPrompt);
     }
 
     @Override
@@ -160,6 +316,8 @@ public class OpenAICompatibleService extends Service {
     public void stop() {
         try {
             super.stop();
+            asyncRunner.shutdown();
+            batchManager.shutdown();
         } catch (Exception e) {
             Log.e(TAG, "Error stopping server: " + e.getMessage());
         }
@@ -167,13 +325,24 @@ public class OpenAICompatibleService extends Service {
 
     @Override
     public Response serve(IHTTPSession session) {
+        long startMs = System.currentTimeMillis();
+        Response response = serveInner(session);
+        accessLog.record(session.getMethod().name(), session.getUri(),
+                response.getStatus().getRequestStatus(),
+                System.currentTimeMillis() - startMs, session.getRemoteIpAddress());
+        return response;
+    }
+
+    private Response serveInner(IHTTPSession session) {
         String uri = session.getUri();
         Method method = session.getMethod();
-        Log.i(TAG, String.format("Incoming request: %s %s", method, uri));
-        Map<String, String> headers = session.getHeaders();
-        Log.d(TAG, "Request Headers:");
-        for (Map.Entry<String, String> header : headers.entrySet()) {
-            Log.d(TAG, String.format("%s: %s", header.getKey(), header.getValue()));
+        ApiLog.d(TAG, "Incoming request: %s %s", method, uri);
+        if (ApiLog.isLoggable(ApiLog.VERBOSE)) {
+            for (Map.Entry<String, String> header : session.getHeaders().entrySet()) {
+                if (!"authorization".equals(header.getKey())) {
+                    Log.v(TAG, header.getKey() + ": " + header.getValue());
+                }
+            }
         }
 
         totalRequests.incrementAndGet();
@@ -182,46 +351,34 @@ public class OpenAICompatibleService extends Service {
         if (Method.OPTIONS.equals(method)) {
             Response response = super.newFixedLengthResponse(Response.Status.OK, "application/json", "");
             addCorsHeaders(response);
-            response.addHeader("Connection", "keep-alive");
-            response.addHeader("Keep-Alive", "timeout=5, max=100");
             successRequests.incrementAndGet();
             return response;
         }
 
         try {
-            // 增加请求体大小限制
-            int maxBodySize = 800*1024 * 1024; // 假设最大请求体大小为1MB
-            if (session.getInputStream().available() > maxBodySize) {
+            // 按 Content-Length 限制请求体大小，socket 流的 available() 无法反映实际长度
+            if (getContentLength(session) > MAX_BODY_SIZE) {
                 failedRequests.incrementAndGet();
                 return createErrorResponse(Response.Status.PAYLOAD_TOO_LARGE, "Request body too large",
                         "invalid_request_error", "payload_too_large");
             }
 
+            // Connection 头由 NanoHTTPD 按请求的 keep-alive 状态自动填写
             Response response = handleRequest(session, uri);
             addCorsHeaders(response);
-
-            if (uri.equals("/v1/chat/completions")) {
-                response.addHeader("Content-Type", "text/event-stream");
-                response.addHeader("Cache-Control", "no-cache");
-                response.addHeader("Connection", "keep-alive");
-            }
             return response;
         } catch (JSONException e) {
             failedRequests.incrementAndGet();
-            Log.e(TAG, "JSON exception in serve method: " + e.getMessage());
+            ApiLog.e(TAG, "JSON exception in serve method: %s", e.getMessage());
             return super.newFixedLengthResponse(Response.Status.INTERNAL_ERROR, "application/json",
                     "{\"error\": \"Internal server error: " + e.getMessage() + "\"}");
-        } catch (IOException e) {
-            throw new RuntimeException(e);
         }
     }
 
     private void addCorsHeaders(Response response) {
-        response.addHeader("Access-Control-Allow-Origin", "*");
-        response.addHeader("Access-Control-Allow-Methods", "*");
-        response.addHeader("Access-Control-Allow-Headers", "Content-Type, Authorization");
-        response.addHeader("Access-Control-Max-Age", "86400");
-        response.addHeader("Access-Control-Allow-Credentials", "true");
+        for (String[] header : CORS_HEADERS) {
+            response.addHeader(header[0], header[1]);
+        }
     }
 
     private Response handleRequest(IHTTPSession session, String uri) throws JSONException {
@@ -233,7 +390,18 @@ public class OpenAICompatibleService extends Service {
                     return handleModels(session);
                 case "/v1/status":
                     return handleStatus(session);
+                case "/metrics":
+                    return handleMetrics(session);
+                case "/debug/access_log":
+                    return handleAccessLog(session);
+                case "/v1/tokenize":
+                    return handleTokenize(session);
+                case "/v1/embeddings":
+                    return handleEmbeddings(session);
                 default:
+                    if (uri.startsWith("/v1/batches")) {
+                        return handleBatches(session, uri);
+                    }
                     failedRequests.incrementAndGet();
                     return super.newFixedLengthResponse(Response.Status.NOT_FOUND, "application/json",
                             new JSONObject().put("error", "Not found").toString());
@@ -251,11 +419,370 @@ private Response handleStatus(IHTTPSession session) throws JSONException {
                 new JSONObject().put("error", "Method not allowed").toString());
     }
 
+    ApiManager apiManager = ApiManager.getInstance();
     JSONObject status = new JSONObject()
-            .put("model_loaded", ApiManager.getInstance().isModelLoaded());
+            .put("model_loaded", apiManager.isModelLoaded())
+            .put("load_stage", apiManager.getLoadStage().name().toLowerCase())
+            .put("load_progress", apiManager.getLoadProgress())
+            .put("queue_running", admissionController.getRunningCount())
+            .put("queue_waiting", admissionController.getWaitingCount())
+            .put("open_connections", asyncRunner.getOpenConnections());
     successRequests.incrementAndGet();
     return super.newFixedLengthResponse(Response.Status.OK, "application/json", status.toString());
 }
+    /**
+     * 对输入文本或消息进行分词，返回每段的 token 与数量，便于客户端提前裁剪上下文。
+     * messages 按模型的对话模板整体分词（含生成提示），结果只有一项
+     */
+    private Response handleTokenize(IHTTPSession session) throws JSONException {
+        if (!Method.POST.equals(session.getMethod())) {
+            failedRequests.incrementAndGet();
+            return createErrorResponse(Response.Status.METHOD_NOT_ALLOWED, "Method not allowed",
+                    "invalid_request_error", null);
+        }
+        ChatSession chatSession = ApiManager.getInstance().getCurrentSession();
+        if (!ApiManager.getInstance().isModelLoaded() || chatSession == null) {
+            failedRequests.incrementAndGet();
+            return createErrorResponse(Response.Status.SERVICE_UNAVAILABLE, "Model not loaded yet",
+                    "server_error", "service_unavailable");
+        }
+        JSONObject request;
+        try {
+            request = new JSONObject(readRequestBody(session));
+        } catch (IOException | JSONException e) {
+            failedRequests.incrementAndGet();
+            return createErrorResponse(Response.Status.BAD_REQUEST, "Invalid request body",
+                    "invalid_request_error", null);
+        }
+
+        // 支持 input（字符串或字符串数组）以及与 chat/completions 相同格式的 messages
+        List<String> fragments = new ArrayList<>();
+        List<int[]> tokenized;
+        if (request.has("messages")) {
+            JSONArray messages = request.getJSONArray("messages");
+            String[] roles = new String[messages.length()];
+            String[] contents = new String[messages.length()];
+            for (int i = 0; i < messages.length(); i++) {
+                JSONObject message = messages.getJSONObject(i);
+                roles[i] = message.getString("role");
+                Object content = message.opt("content");
+                StringBuilder text = new StringBuilder();
+                if (content instanceof JSONArray) {
+                    JSONArray contentArray = (JSONArray) content;
+                    for (int j = 0; j < contentArray.length(); j++) {
+                        JSONObject contentItem = contentArray.getJSONObject(j);
+                        if ("text".equals(contentItem.optString("type"))) {
+                            text.append(contentItem.getString("text"));
+                        }
+                    }
+                } else if (content != null && content != JSONObject.NULL) {
+                    text.append(content);
+                }
+                contents[i] = text.toString();
+            }
+            tokenized = new ArrayList<>();
+            tokenized.add(chatSession.encodeChat(roles, contents));
+        } else if (request.opt("input") instanceof JSONArray) {
+            JSONArray input = request.getJSONArray("input");
+            for (int i = 0; i < input.length(); i++) {
+                fragments.add(input.getString(i));
+            }
+            tokenized = chatSession.encodeBatch(fragments);
+        } else if (request.has("input")) {
+            fragments.add(request.getString("input"));
+            tokenized = chatSession.encodeBatch(fragments);
+        } else {
+            failedRequests.incrementAndGet();
+            return createErrorResponse(Response.Status.BAD_REQUEST, "Required parameter 'input' or 'messages' is missing",
+                    "invalid_request_error", "input");
+        }
+
+        boolean returnTokens = request.optBoolean("return_tokens", true);
+        JSONArray data = new JSONArray();
+        int totalTokens = 0;
+        for (int i = 0; i < tokenized.size(); i++) {
+            int[] tokens = tokenized.get(i);
+            if (tokens == null) {
+                failedRequests.incrementAndGet();
+                return createErrorResponse(Response.Status.SERVICE_UNAVAILABLE, "Tokenizer not available",
+                        "server_error", "service_unavailable");
+            }
+            JSONObject item = new JSONObject()
+                    .put("index", i)
+                    .put("count", tokens.length);
+            if (returnTokens) {
+                JSONArray tokenArray = new JSONArray();
+                for (int token : tokens) {
+                    tokenArray.put(token);
+                }
+                item.put("tokens", tokenArray);
+            }
+            data.put(item);
+            totalTokens += tokens.length;
+        }
+        JSONObject response = new JSONObject()
+                .put("object", "list")
+                .put("model", "mnn-local")
+                .put("data", data)
+                .put("total_tokens", totalTokens);
+        successRequests.incrementAndGet();
+        return super.newFixedLengthResponse(Response.Status.OK, "application/json", response.toString());
+    }
+
+    /**
+     * OpenAI 兼容的向量接口，需要 API Key 并经过排队，一次请求中的所有输入通过一次调用交给向量模型，
+     * 模型内仍逐条前向
+     */
+    private Response handleEmbeddings(IHTTPSession session) throws JSONException {
+        if (!Method.POST.equals(session.getMethod())) {
+            failedRequests.incrementAndGet();
+            return createErrorResponse(Response.Status.METHOD_NOT_ALLOWED, "Method not allowed",
+                    "invalid_request_error", null);
+        }
+        String authHeader = session.getHeaders().get("authorization");
+        if (authHeader == null || authHeader.isEmpty()) {
+            failedRequests.incrementAndGet();
+            return createErrorResponse(Response.Status.UNAUTHORIZED, "You didn't provide an API key.",
+                    "invalid_request_error", "invalid_api_key");
+        }
+        EmbeddingSession embeddingSession = ApiManager.getInstance().getEmbeddingSession();
+        if (embeddingSession == null || !embeddingSession.isLoaded()) {
+            failedRequests.incrementAndGet();
+            return createErrorResponse(Response.Status.SERVICE_UNAVAILABLE, "Embedding model not loaded",
+                    "server_error", "service_unavailable");
+        }
+        JSONObject request;
+        try {
+            request = new JSONObject(readRequestBody(session));
+        } catch (IOException | JSONException e) {
+            failedRequests.incrementAndGet();
+            return createErrorResponse(Response.Status.BAD_REQUEST, "Invalid request body",
+                    "invalid_request_error", null);
+        }
+        List<String> inputs = new ArrayList<>();
+        Object input = request.opt("input");
+        if (input instanceof JSONArray) {
+            JSONArray inputArray = (JSONArray) input;
+            for (int i = 0; i < inputArray.length(); i++) {
+                inputs.add(inputArray.getString(i));
+            }
+        } else if (input instanceof String) {
+            inputs.add((String) input);
+        }
+        if (inputs.isEmpty()) {
+            failedRequests.incrementAndGet();
+            return createErrorResponse(Response.Status.BAD_REQUEST, "Required parameter 'input' is missing",
+                    "invalid_request_error", "input");
+        }
+        boolean base64 = "base64".equals(request.optString("encoding_format", "float"));
+
+        // 向量模型与对话模型共用设备算力，同样排队并受单 Key 并发限制
+        AdmissionController.Ticket ticket;
+        try {
+            ticket = admissionController.acquire(authHeader);
+            metrics.queueWait.recordMicros(ticket.getWaitedMs() * 1000);
+        } catch (AdmissionController.RejectedException e) {
+            failedRequests.incrementAndGet();
+            ApiLog.w(TAG, "Embedding request rejected: %s", e.getMessage());
+            Response response = createErrorResponse(Response.Status.TOO_MANY_REQUESTS, e.getMessage(),
+                    "rate_limit_error", "rate_limit_exceeded");
+            response.addHeader("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+            return response;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failedRequests.incrementAndGet();
+            return createErrorResponse(Response.Status.SERVICE_UNAVAILABLE, "Request interrupted",
+                    "server_error", "service_unavailable");
+        }
+        float[][] vectors;
+        int promptTokens;
+        try {
+            synchronized (embeddingSession) {
+                vectors = embeddingSession.embed(inputs);
+                promptTokens = embeddingSession.getLastTotalTokens();
+            }
+        } finally {
+            ticket.release();
+        }
+        if (vectors == null) {
+            failedRequests.incrementAndGet();
+            return createErrorResponse(Response.Status.INTERNAL_ERROR, "Failed to compute embeddings",
+                    "server_error", null);
+        }
+        JSONArray data = new JSONArray();
+        for (int i = 0; i < vectors.length; i++) {
+            JSONObject item = new JSONObject()
+                    .put("object", "embedding")
+                    .put("index", i);
+            if (base64) {
+                ByteBuffer buffer = ByteBuffer.allocate(vectors[i].length * 4).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.asFloatBuffer().put(vectors[i]);
+                item.put("embedding", android.util.Base64.encodeToString(buffer.array(), android.util.Base64.NO_WRAP));
+            } else {
+                JSONArray values = new JSONArray();
+                for (float value : vectors[i]) {
+                    values.put((double) value);
+                }
+                item.put("embedding", values);
+            }
+            data.put(item);
+        }
+        JSONObject response = new JSONObject()
+                .put("object", "list")
+                .put("data", data)
+                .put("model", embeddingSession.getModelId())
+                .put("usage", new JSONObject()
+                        .put("prompt_tokens", promptTokens)
+                        .put("total_tokens", promptTokens));
+        successRequests.incrementAndGet();
+        return super.newFixedLengthResponse(Response.Status.OK, "application/json", response.toString());
+    }
+
+    private long getContentLength(IHTTPSession session) {
+        String contentLength = session.getHeaders().get("content-length");
+        if (contentLength == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private String readRequestBody(IHTTPSession session) throws IOException {
+        // 按 Content-Length 完整读取原始字节数据并解码为UTF-8字符串
+        int length = (int) Math.min(getContentLength(session), MAX_BODY_SIZE);
+        byte[] bodyBytes = new byte[length];
+        InputStream inputStream = session.getInputStream();
+        int offset = 0;
+        while (offset < length) {
+            int read = inputStream.read(bodyBytes, offset, length - offset);
+            if (read < 0) {
+                break;
+            }
+            offset += read;
+        }
+        return new String(bodyBytes, 0, offset, StandardCharsets.UTF_8);
+    }
+
+    private Response handleMetrics(IHTTPSession session) throws JSONException {
+        if (!Method.GET.equals(session.getMethod())) {
+            failedRequests.incrementAndGet();
+            return super.newFixedLengthResponse(Response.Status.METHOD_NOT_ALLOWED, "application/json",
+                    new JSONObject().put("error", "Method not allowed").toString());
+        }
+        successRequests.incrementAndGet();
+        String body = metrics.toPrometheus(totalRequests.get(), successRequests.get(), failedRequests.get(),
+                admissionController.getRunningCount(), admissionController.getWaitingCount(),
+                ApiManager.getInstance().isModelLoaded(), completionCache);
+        return super.newFixedLengthResponse(Response.Status.OK, "text/plain; version=0.0.4; charset=utf-8", body);
+    }
+
+    /**
+     * 导出访问日志环形缓冲区，纯文本，每行一个请求
+     */
+    private Response handleAccessLog(IHTTPSession session) throws JSONException {
+        if (!Method.GET.equals(session.getMethod())) {
+            failedRequests.incrementAndGet();
+            return super.newFixedLengthResponse(Response.Status.METHOD_NOT_ALLOWED, "application/json",
+                    new JSONObject().put("error", "Method not allowed").toString());
+        }
+        // 日志包含客户端地址和请求路径，与补全接口一样要求携带 API Key
+        String authHeader = session.getHeaders().get("authorization");
+        if (authHeader == null || authHeader.isEmpty()) {
+            failedRequests.incrementAndGet();
+            return createErrorResponse(Response.Status.UNAUTHORIZED, "You didn't provide an API key.",
+                    "invalid_request_error", "invalid_api_key");
+        }
+        successRequests.incrementAndGet();
+        return super.newFixedLengthResponse(Response.Status.OK, "text/plain; charset=utf-8", accessLog.dump());
+    }
+
+    /**
+     * 批量推理：POST /v1/batches 提交 JSONL，GET /v1/batches[/{id}] 查询进度，
+     * GET /v1/batches/{id}/output 下载结果，POST /v1/batches/{id}/cancel 取消
+     */
+    private Response handleBatches(IHTTPSession session, String uri) throws JSONException {
+        String authHeader = session.getHeaders().get("authorization");
+        if (authHeader == null || authHeader.isEmpty()) {
+            failedRequests.incrementAndGet();
+            return createErrorResponse(Response.Status.UNAUTHORIZED, "You didn't provide an API key.",
+                    "invalid_request_error", "invalid_api_key");
+        }
+        String[] parts = uri.substring("/v1/batches".length()).split("/");
+        // parts[0] 为空字符串，parts[1] 为任务 id，parts[2] 为子操作
+        String batchId = parts.length > 1 ? parts[1] : null;
+        String action = parts.length > 2 ? parts[2] : null;
+
+        if (batchId == null) {
+            if (Method.POST.equals(session.getMethod())) {
+                if (!ApiManager.getInstance().isModelLoaded()) {
+                    failedRequests.incrementAndGet();
+                    return createErrorResponse(Response.Status.SERVICE_UNAVAILABLE, "Model not loaded yet",
+                            "server_error", "service_unavailable");
+                }
+                try {
+                    // JSONL 可能很大，直接从请求流写入磁盘，不整体读入内存
+                    BatchManager.BatchJob job = batchManager.submit(session.getInputStream(),
+                            Math.min(getContentLength(session), MAX_BODY_SIZE), authHeader);
+                    successRequests.incrementAndGet();
+                    return super.newFixedLengthResponse(Response.Status.OK, "application/json", job.toJson().toString());
+                } catch (IllegalArgumentException e) {
+                    failedRequests.incrementAndGet();
+                    return createErrorResponse(Response.Status.BAD_REQUEST, e.getMessage(),
+                            "invalid_request_error", null);
+                } catch (IOException e) {
+                    failedRequests.incrementAndGet();
+                    return createErrorResponse(Response.Status.INTERNAL_ERROR, "Failed to create batch: " + e.getMessage(),
+                            "server_error", null);
+                }
+            }
+            if (Method.GET.equals(session.getMethod())) {
+                JSONArray data = new JSONArray();
+                for (BatchManager.BatchJob job : batchManager.listJobs()) {
+                    data.put(job.toJson());
+                }
+                successRequests.incrementAndGet();
+                return super.newFixedLengthResponse(Response.Status.OK, "application/json",
+                        new JSONObject().put("object", "list").put("data", data).toString());
+            }
+        } else {
+            BatchManager.BatchJob job = batchManager.getJob(batchId);
+            if (job == null) {
+                failedRequests.incrementAndGet();
+                return createErrorResponse(Response.Status.NOT_FOUND, "No batch found with id " + batchId,
+                        "invalid_request_error", null);
+            }
+            if (action == null && Method.GET.equals(session.getMethod())) {
+                successRequests.incrementAndGet();
+                return super.newFixedLengthResponse(Response.Status.OK, "application/json", job.toJson().toString());
+            }
+            if ("cancel".equals(action) && Method.POST.equals(session.getMethod())) {
+                batchManager.cancel(batchId);
+                successRequests.incrementAndGet();
+                return super.newFixedLengthResponse(Response.Status.OK, "application/json", job.toJson().toString());
+            }
+            if ("output".equals(action) && Method.GET.equals(session.getMethod())) {
+                // 任务进行中也可以下载，得到的是已完成部分
+                File output = job.getOutputFile();
+                try {
+                    Response response = super.newFixedLengthResponse(Response.Status.OK, "application/jsonl",
+                            new FileInputStream(output), output.length());
+                    successRequests.incrementAndGet();
+                    return response;
+                } catch (IOException e) {
+                    failedRequests.incrementAndGet();
+                    return createErrorResponse(Response.Status.NOT_FOUND, "Batch output is not available yet",
+                            "invalid_request_error", null);
+                }
+            }
+        }
+        failedRequests.incrementAndGet();
+        return createErrorResponse(Response.Status.METHOD_NOT_ALLOWED, "Method not allowed",
+                "invalid_request_error", null);
+    }
+
     private Response handleModels(IHTTPSession session) throws JSONException {
         if (!Method.GET.equals(session.getMethod())) {
             failedRequests.incrementAndGet();
@@ -278,9 +805,8 @@ private Response handleStatus(IHTTPSession session) throws JSONException {
     }
 
     private Response handleChatCompletions(IHTTPSession session) throws JSONException {
-    Log.i(TAG, "Handling chat completions request");
     if (!Method.POST.equals(session.getMethod())) {
-        Log.w(TAG, "Invalid method for chat completions: " + session.getMethod());
+        ApiLog.w(TAG, "Invalid method for chat completions: %s", session.getMethod());
         failedRequests.incrementAndGet();
         return createErrorResponse(Response.Status.METHOD_NOT_ALLOWED, "Method not allowed",
                 "invalid_request_error", "invalid_api_key");
@@ -292,135 +818,192 @@ private Response handleStatus(IHTTPSession session) throws JSONException {
                 "server_error", "service_unavailable");
     }
 
-    synchronized (chatLock) {
-        String authHeader = session.getHeaders().get("authorization");
-        if (authHeader == null || authHeader.isEmpty()) {
-            failedRequests.incrementAndGet();
-            return createErrorResponse(Response.Status.UNAUTHORIZED, "You didn't provide an API key.",
-                    "invalid_request_error", "invalid_api_key");
+    String authHeader = session.getHeaders().get("authorization");
+    if (authHeader == null || authHeader.isEmpty()) {
+        failedRequests.incrementAndGet();
+        return createErrorResponse(Response.Status.UNAUTHORIZED, "You didn't provide an API key.",
+                "invalid_request_error", "invalid_api_key");
+    }
+
+    // 请求解析和图片处理在排队之前完成，不占用模型
+    String prompt;
+    SamplingParams params;
+    try {
+        String requestBody = readRequestBody(session);
+        if (ApiLog.isLoggable(ApiLog.DEBUG)) {
+            Log.d(TAG, "Chat completion request received: " + ApiLog.abbreviate(requestBody, LOG_BODY_MAX_CHARS));
         }
+        JSONObject request = new JSONObject(requestBody);
+        params = parseSamplingParams(request);
+        prompt = buildChatPrompt(request);
+    } catch (IllegalArgumentException e) {
+        failedRequests.incrementAndGet();
+        return createErrorResponse(Response.Status.BAD_REQUEST, e.getMessage(), "invalid_request_error", null);
+    } catch (IOException e) {
+        failedRequests.incrementAndGet();
+        return createErrorResponse(Response.Status.INTERNAL_ERROR, "Failed to process request: " + e.getMessage(),
+                "server_error", null);
+    } catch (ChatRequestException e) {
+        failedRequests.incrementAndGet();
+        return createErrorResponse(e.status, e.getMessage(), e.type, e.code);
+    }
 
-        try {
-            // 直接读取原始字节数据并解码为UTF-8字符串
-            byte[] bodyBytes = new byte[session.getInputStream().available()];
-            session.getInputStream().read(bodyBytes);
-            String requestBody = new String(bodyBytes, StandardCharsets.UTF_8);
+    ChatSession chatSession = ApiManager.getInstance().getCurrentSession();
+    if (chatSession == null) {
+        failedRequests.incrementAndGet();
+        return createErrorResponse(Response.Status.SERVICE_UNAVAILABLE, "No active chat session available",
+                "server_error", "service_unavailable");
+    }
 
-            Log.i(TAG, "Chat completion request received: " + requestBody);
+    // greedy 采样下相同的请求结果相同，命中缓存时直接回放，不需要排队
+    String cacheKey = null;
+    if (completionCache != null && params.isDeterministic(chatSession.getSampler())) {
+        cacheKey = CompletionCache.key(chatSession.getModelId(), params.cacheKey(chatSession.getSampler()), prompt);
+        CompletionCache.Entry cached = completionCache.get(cacheKey);
+        if (cached != null) {
+            successRequests.incrementAndGet();
+            return createCachedStreamResponse(cached);
+        }
+    }
 
-            JSONObject request = new JSONObject(requestBody);
-            if (!request.has("model")) {
-                failedRequests.incrementAndGet();
-                return createErrorResponse(Response.Status.BAD_REQUEST, "Required parameter 'model' is missing",
-                        "invalid_request_error", "model");
-            }
+    // 排队等待模型空闲，超出队列深度、等待时间或单 Key 并发时返回 429
+    AdmissionController.Ticket ticket;
+    try {
+        ticket = admissionController.acquire(authHeader);
+        metrics.queueWait.recordMicros(ticket.getWaitedMs() * 1000);
+    } catch (AdmissionController.RejectedException e) {
+        failedRequests.incrementAndGet();
+        ApiLog.w(TAG, "Request rejected: %s", e.getMessage());
+        Response response = createErrorResponse(Response.Status.TOO_MANY_REQUESTS, e.getMessage(),
+                "rate_limit_error", "rate_limit_exceeded");
+        response.addHeader("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+        return response;
+    } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failedRequests.incrementAndGet();
+        return createErrorResponse(Response.Status.SERVICE_UNAVAILABLE, "Request interrupted",
+                "server_error", "service_unavailable");
+    }
 
-            JSONArray messages = request.getJSONArray("messages");
-            if (messages.length() == 0) {
-                failedRequests.incrementAndGet();
-                return createErrorResponse(Response.Status.BAD_REQUEST, "Messages array is empty",
-                        "invalid_request_error", "messages");
+    try {
+        chatSession.reset(); // 确保清空之前的对话状态
+        Response response = handleStreamingResponse(chatSession, prompt, params, ticket, cacheKey);
+        // 流式响应成功时由生成线程释放凭证，其余情况在此释放
+        if (response.getStatus() != Response.Status.OK) {
+            ticket.release();
+        }
+        return response;
+    } catch (RuntimeException e) {
+        ticket.release();
+        throw e;
+    }
+}
+
+    /**
+     * 解析请求并构建提示词，图片在此下载并落盘，整个过程不占用模型
+     */
+    private String buildChatPrompt(JSONObject request) throws JSONException, ChatRequestException {
+        if (!request.has("model")) {
+            throw new ChatRequestException(Response.Status.BAD_REQUEST, "Required parameter 'model' is missing",
+                    "invalid_request_error", "model");
+        }
+
+        JSONArray messages = request.getJSONArray("messages");
+        if (messages.length() == 0) {
+            throw new ChatRequestException(Response.Status.BAD_REQUEST, "Messages array is empty",
+                    "invalid_request_error", "messages");
+        }
+
+        // 先并行下载所有 URL 图片，避免逐张串行下载
+        Map<String, byte[]> downloadedImages = new HashMap<>();
+        List<String> imageUrls = ImageFetcher.collectImageUrls(messages);
+        if (!imageUrls.isEmpty()) {
+            try {
+                downloadedImages = ImageFetcher.getInstance(context).fetchAll(imageUrls);
+            } catch (ImageFetcher.ImageTooLargeException | ImageFetcher.UnsupportedContentTypeException e) {
+                throw new ChatRequestException(Response.Status.BAD_REQUEST, e.getMessage(),
+                        "invalid_request_error", null);
+            } catch (IOException e) {
+                ApiLog.e(TAG, "Failed to download image from URL: %s", e.getMessage());
+                throw new ChatRequestException(Response.Status.INTERNAL_ERROR,
+                        "Failed to process image: " + e.getMessage(), "server_error", null);
             }
+        }
 
-            // 构建完整的上下文字符串，支持多模态内容
-            StringBuilder contextBuilder = new StringBuilder();
-            StringBuilder imgTags = new StringBuilder();
+        // 构建完整的上下文字符串，支持多模态内容
+        StringBuilder contextBuilder = new StringBuilder();
+        StringBuilder imgTags = new StringBuilder();
 
-            for (int i = 0; i < messages.length(); i++) {
-                JSONObject message = messages.getJSONObject(i);
-                String role = message.getString("role");
-                
-                // 检查是否包含多模态内容
-                if (message.has("content") && message.get("content") instanceof JSONArray) {
-                    // 处理多模态内容数组
-                    JSONArray contentArray = message.getJSONArray("content");
-                    for (int j = 0; j < contentArray.length(); j++) {
-                        JSONObject contentItem = contentArray.getJSONObject(j);
-                        String type = contentItem.getString("type");
+        for (int i = 0; i < messages.length(); i++) {
+            JSONObject message = messages.getJSONObject(i);
+            String role = message.getString("role");
+            
+            // 检查是否包含多模态内容
+            if (message.has("content") && message.get("content") instanceof JSONArray) {
+                // 处理多模态内容数组
+                JSONArray contentArray = message.getJSONArray("content");
+                for (int j = 0; j < contentArray.length(); j++) {
+                    JSONObject contentItem = contentArray.getJSONObject(j);
+                    String type = contentItem.getString("type");
+                    
+                    if ("text".equals(type)) {
+                        // 处理文本内容
+                        contextBuilder.append(role).append(": ").append(contentItem.getString("text")).append("\n");
+                    } else if ("image_url".equals(type)) {
+                        // 处理图像内容
+                        JSONObject imageUrl = contentItem.getJSONObject("image_url");
+                        String imageData = null;
                         
-                        if ("text".equals(type)) {
-                            // 处理文本内容
-                            contextBuilder.append(role).append(": ").append(contentItem.getString("text")).append("\n");
-                        } else if ("image_url".equals(type)) {
-                            // 处理图像内容
-                            JSONObject imageUrl = contentItem.getJSONObject("image_url");
-                            String imageData = null;
+                        if (imageUrl.has("url")) {
+                            String url = imageUrl.getString("url");
+                            byte[] imageBytes = null;
                             
-                            if (imageUrl.has("url")) {
-                                String url = imageUrl.getString("url");
-                                String base64Data = null;
-                                
-                                if (url.startsWith("data:image/")) {
-                                    // 处理base64编码的图像
-                                    Log.d(TAG, "Processing base64 encoded image data");
-                                    base64Data = url.substring(url.indexOf(",") + 1);
-                                    Log.d(TAG, "Base64 data length: " + base64Data.length());
-                                } else if (url.startsWith("http://") || url.startsWith("https://")) {
-                                    // 处理URL引用的图像
-                                    Log.d(TAG, "Downloading image from URL: " + url);
-                                    try {
-                                        base64Data = NetworkUtils.downloadImageAsBase64(url);
-                                        Log.d(TAG, "Successfully downloaded and encoded image, length: " + base64Data.length());
-                                    } catch (Exception e) {
-                                        Log.e(TAG, "Failed to download image from URL: " + e.getMessage());
-                                        // 增加异常处理，返回错误响应
-                                        return createErrorResponse(Response.Status.INTERNAL_ERROR, 
-                                                "Failed to process image: " + e.getMessage(),
-                                                "server_error", null);
-                                    }
-                                } else {
-                                    Log.w(TAG, "Unsupported image URL format: " + url);
+                            if (url.startsWith("data:image/")) {
+                                // 处理base64编码的图像
+                                String base64Data = url.substring(url.indexOf(",") + 1);
+                                ApiLog.d(TAG, "Base64 image data length: %d", base64Data.length());
+                                try {
+                                    imageBytes = java.util.Base64.getDecoder().decode(base64Data);
+                                } catch (IllegalArgumentException e) {
+                                    throw new ChatRequestException(Response.Status.BAD_REQUEST,
+                                            "Invalid base64 image data", "invalid_request_error", null);
                                 }
-                                
-                                // 统一处理base64图像数据
-                                if (base64Data != null) {
-                                    Log.d(TAG, "Processing base64 image data with ImageFileManager");
-                                    String imagePath = ImageFileManager.getInstance(context).processBase64Image(base64Data);
-                                    if (imagePath != null) {
-                                        Log.d(TAG, "Image processed successfully, path: " + imagePath);
-                                        // 在图片标签前后添加空格，确保与文本内容有良好的分隔
-                                        imgTags.append("<img>").append(imagePath).append("</img> ");
-                                    } else {
-                                        Log.e(TAG, "Failed to process image: ImageFileManager returned null path");
-                                        // 增加异常处理，返回错误响应
-                                        return createErrorResponse(Response.Status.INTERNAL_ERROR, 
-                                                "Failed to process image: Invalid image data",
-                                                "server_error", null);
-                                    }
+                            } else if (url.startsWith("http://") || url.startsWith("https://")) {
+                                // URL引用的图像已在上面并行下载，字节直接解码，不经过 Base64
+                                imageBytes = downloadedImages.get(url);
+                            } else {
+                                ApiLog.w(TAG, "Unsupported image URL format: %s", ApiLog.abbreviate(url, 64));
+                            }
+                            
+                            // 统一降采样并保存图像
+                            if (imageBytes != null) {
+                                String imagePath = ImageFileManager.getInstance(context).processImageBytes(imageBytes);
+                                if (imagePath != null) {
+                                    ApiLog.d(TAG, "Image processed successfully, path: %s", imagePath);
+                                    // 在图片标签前后添加空格，确保与文本内容有良好的分隔
+                                    imgTags.append("<img>").append(imagePath).append("</img> ");
                                 } else {
-                                    Log.w(TAG, "No valid base64 data to process");
+                                    ApiLog.e(TAG, "Failed to process image: ImageFileManager returned null path");
+                                    // 增加异常处理，返回错误响应
+                                    throw new ChatRequestException(Response.Status.INTERNAL_ERROR, 
+                                            "Failed to process image: Invalid image data",
+                                            "server_error", null);
                                 }
+                            } else {
+                                ApiLog.w(TAG, "No valid image data to process");
                             }
                         }
                     }
-                } else if (message.has("content")) {
-                    // 处理纯文本内容
-                    contextBuilder.append(role).append(": ").append(message.getString("content")).append("\n");
                 }
+            } else if (message.has("content")) {
+                // 处理纯文本内容
+                contextBuilder.append(role).append(": ").append(message.getString("content")).append("\n");
             }
-
-            // 将所有<img>标签放在最前面
-            String context = imgTags.toString() + contextBuilder.toString();
-
-            ChatSession chatSession = ApiManager.getInstance().getCurrentSession();
-            if (chatSession == null) {
-                failedRequests.incrementAndGet();
-                return createErrorResponse(Response.Status.SERVICE_UNAVAILABLE, "No active chat session available",
-                        "server_error", "service_unavailable");
-            }
-
-            chatSession.reset(); // 确保清空之前的对话状态
-            Response response = handleStreamingResponse(chatSession, context);
-            chatSession.reset(); // 请求处理完成后再次调用reset()确保状态清除
-            return response;
-
-        } catch (IOException e) {
-            failedRequests.incrementAndGet();
-            return createErrorResponse(Response.Status.INTERNAL_ERROR, "Failed to process request: " + e.getMessage(),
-                    "server_error", null);
         }
+
+        // 将所有<img>标签放在最前面
+        return imgTags.toString() + contextBuilder.toString();
     }
-}
 
 
     private Response createErrorResponse(Response.Status status, String message, String type, String code) throws JSONException {
@@ -434,52 +1017,98 @@ private Response handleStatus(IHTTPSession session) throws JSONException {
                 new JSONObject().put("error", error).toString());
     }
 
-    private Response handleStreamingResponse(ChatSession chatSession, String userMessage) {
-    Log.i(TAG, "Starting streaming response");
+    /**
+     * 以 SSE 回放缓存的 token 片段，数据已全部就绪，直接按定长响应发送
+     */
+    private Response createCachedStreamResponse(CompletionCache.Entry cached) throws JSONException {
+        String responseId = "chatcmpl-" + System.currentTimeMillis();
+        long created = System.currentTimeMillis() / 1000;
+        StringBuilder body = new StringBuilder();
+        for (String chunk : cached.getChunks()) {
+            body.append("data: ").append(createDeltaResponse(responseId, created, chunk).toString()).append("\n\n");
+        }
+        body.append("data: ").append(createFinishResponse(responseId, created, cached.getFinishReason()).toString()).append("\n\n");
+        body.append("data: [DONE]\n\n");
+        Response response = super.newFixedLengthResponse(Response.Status.OK, "text/event-stream; charset=utf-8", body.toString());
+        response.addHeader("Cache-Control", "no-cache");
+        response.addHeader("X-Cache", "HIT");
+        return response;
+    }
+
+    private Response handleStreamingResponse(ChatSession chatSession, String userMessage, SamplingParams params,
+                                             AdmissionController.Ticket ticket, String cacheKey) {
     try {
         PipedInputStream in = new PipedInputStream();
         PipedOutputStream out = new PipedOutputStream();
         in.connect(out);
 
-        Response streamResponse = super.newChunkedResponse(Response.Status.OK, "text/event-stream", in);
+        Response streamResponse = super.newChunkedResponse(Response.Status.OK, "text/event-stream; charset=utf-8", in);
         streamResponse.addHeader("X-Accel-Buffering", "no");
-        streamResponse.addHeader("Content-Type", "text/event-stream; charset=utf-8");
+        streamResponse.addHeader("Cache-Control", "no-cache");
 
         Thread generationThread = new Thread(() -> {
             Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
             try {
                 String responseId = "chatcmpl-" + System.currentTimeMillis();
                 long created = System.currentTimeMillis() / 1000;
+                long startNanos = System.nanoTime();
+                long[] lastTokenNanos = {0};
+                // 需要写入缓存时记录全部片段，客户端中途断开则不缓存
+                List<String> chunks = cacheKey != null ? new ArrayList<>() : null;
+                boolean[] aborted = {false};
 
-                chatSession.generate(userMessage, progress -> {
+                HashMap<String, Object> result = chatSession.generate(userMessage, params, progress -> {
                     try {
                         if (progress != null) {
-                            Log.d(TAG, "Generated progress: " + progress);
+                            long now = System.nanoTime();
+                            if (lastTokenNanos[0] == 0) {
+                                metrics.timeToFirstToken.recordNanos(now - startNanos);
+                            } else {
+                                metrics.interTokenLatency.recordNanos(now - lastTokenNanos[0]);
+                            }
+                            lastTokenNanos[0] = now;
+                            if (chunks != null) {
+                                chunks.add(progress);
+                            }
+                            if (tokenLogSampler.sample(ApiLog.VERBOSE)) {
+                                Log.v(TAG, "Sent chunk #" + tokenLogSampler.getCount() + ": " + progress);
+                            }
                             JSONObject delta = createDeltaResponse(responseId, created, progress);
                             String sseMessage = "data: " + delta.toString() + "\n\n";
                             out.write(sseMessage.getBytes(StandardCharsets.UTF_8));
                             out.flush();
-                            Log.d(TAG, "Sent chunk: " + progress);
                         }
                     } catch (Exception e) {
-                        Log.e(TAG, "Error writing to stream: " + e.getMessage());
+                        ApiLog.w(TAG, "Error writing to stream: %s", e.getMessage());
+                        aborted[0] = true;
                         return true; // 停止生成
                     }
                     return false; // 继续生成
                 });
 
-                // 发送完成标记
-                out.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+                metrics.requestDuration.recordNanos(System.nanoTime() - startNanos);
+                metrics.recordGeneration(result);
+                String finishReason = isLengthLimited(result) ? "length" : "stop";
+                if (chunks != null && !aborted[0]) {
+                    completionCache.put(cacheKey, chunks, finishReason);
+                }
+
+                // 发送结束原因和完成标记
+                String finishMessage = "data: " + createFinishResponse(responseId, created, finishReason).toString() + "\n\n"
+                        + "data: [DONE]\n\n";
+                out.write(finishMessage.getBytes(StandardCharsets.UTF_8));
                 out.flush();
-                Log.i(TAG, "Streaming response completed");
+                ApiLog.d(TAG, "Streaming response completed");
             } catch (Exception e) {
-                Log.e(TAG, "Error in generation process: " + e.getMessage());
+                ApiLog.e(TAG, "Error in generation process: %s", e.getMessage());
             } finally {
                 try {
                     out.close();
                 } catch (IOException e) {
-                    Log.w(TAG, "Error closing output stream: " + e.getMessage());
+                    ApiLog.w(TAG, "Error closing output stream: %s", e.getMessage());
                 }
+                chatSession.reset(); // 请求处理完成后再次调用reset()确保状态清除
+                ticket.release();
             }
         });
         generationThread.start();
@@ -498,6 +1127,22 @@ private Response handleStatus(IHTTPSession session) throws JSONException {
     }
 }
 
+    /**
+     * 流的最后一个数据块，delta 为空，携带 finish_reason（stop 或 length）
+     */
+    private JSONObject createFinishResponse(String responseId, long created, String finishReason) throws JSONException {
+        return new JSONObject()
+                .put("id", responseId)
+                .put("object", "chat.completion.chunk")
+                .put("created", created)
+                .put("model", "mnn-local")
+                .put("choices", new JSONArray()
+                        .put(new JSONObject()
+                                .put("delta", new JSONObject())
+                                .put("finish_reason", finishReason)
+                                .put("index", 0)));
+    }
+
     private JSONObject createDeltaResponse(String responseId, long created, String content) throws JSONException {
         String safeContent = content;
         try {
@@ -507,7 +1152,7 @@ private Response handleStatus(IHTTPSession session) throws JSONException {
                 safeContent = new String(bytes, StandardCharsets.UTF_8);
             }
         } catch (Exception e) {
-            Log.w(TAG, "Error encoding content: " + e.getMessage());
+            ApiLog.w(TAG, "Error encoding content: %s", e.getMessage());
             // 如果编码失败，尝试移除不可打印字符
             safeContent = content != null ? content.replaceAll("[^\\p{Print}\\s]", "") : "";
         }
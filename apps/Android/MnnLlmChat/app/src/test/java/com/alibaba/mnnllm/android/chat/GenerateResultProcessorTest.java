@@ -0,0 +1,117 @@
+package com.alibaba.mnnllm.android.chat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Display and raw text built by the R1 processor's think tag state machine.
+ */
+public class GenerateResultProcessorTest {
+    private static final String THINKING = "Thinking";
+    private static final String THOUGHT = "Thought for ss s";
+
+    private GenerateResultProcessor.R1GenerateResultProcessor processor;
+
+    @Before
+    public void setUp() {
+        processor = new GenerateResultProcessor.R1GenerateResultProcessor(THINKING, THOUGHT);
+        processor.generateBegin();
+    }
+
+    private void feed(String... fragments) {
+        for (String fragment : fragments) {
+            processor.process(fragment);
+        }
+    }
+
+    // display text without the header line, the think time in it depends on the clock
+    private String body() {
+        String display = processor.getDisplayResult().toString();
+        return display.substring(display.indexOf('\n') + 1);
+    }
+
+    @Test
+    public void quotesReasoningUntilThinkEnds() {
+        feed("<think>", "first line\nsecond", " line");
+        assertEquals(THINKING + "\n> first line\n> second line", processor.getDisplayResult().toString());
+        assertEquals("first line\nsecond line", processor.getRawResult().toString());
+
+        feed("</think>", "Answer\nmore");
+        assertTrue(processor.getDisplayResult().toString().matches("Thought for \\d+ s\n[\\s\\S]*"));
+        assertEquals("> first line\n> second line\nAnswer\nmore", body());
+        assertEquals("first line\nsecond line</think>Answer\nmore", processor.getRawResult().toString());
+    }
+
+    @Test
+    public void handlesTagsSplitAcrossFragments() {
+        feed("<th", "ink>reason", "ing</", "thi", "nk>ans", "wer");
+        assertEquals("> reasoning\nanswer", body());
+        assertEquals("reasoning</think>answer", processor.getRawResult().toString());
+    }
+
+    @Test
+    public void handlesTagsInsideOneFragment() {
+        feed("<think>reasoning</think>answer");
+        assertEquals("> reasoning\nanswer", body());
+        assertEquals("reasoning</think>answer", processor.getRawResult().toString());
+    }
+
+    @Test
+    public void holdsBackPartialTagUntilBroken() {
+        feed("<think>a <t");
+        assertEquals("a ", processor.getRawResult().toString());
+        feed("ag> b");
+        assertEquals("a <tag> b", processor.getRawResult().toString());
+        assertEquals("> a <tag> b", body());
+    }
+
+    @Test
+    public void flushesPartialTagWhenGenerationEnds() {
+        feed("<think>x</think>1 <", null);
+        assertEquals("x</think>1 <", processor.getRawResult().toString());
+        assertEquals("> x\n1 <", body());
+    }
+
+    @Test
+    public void keepsLessThanThatIsNoTag() {
+        feed("<think>a<b", " and c < d</think>e<f");
+        assertEquals("a<b and c < d</think>e<f", processor.getRawResult().toString());
+        assertEquals("> a<b and c < d\ne<f", body());
+    }
+
+    @Test
+    public void keepsLaterTurnsInAnswer() {
+        feed("<think>first</think>one", "<think>second</think>two");
+        assertEquals("first</think>onesecond</think>two", processor.getRawResult().toString());
+        assertEquals("> first\nonesecond\ntwo", body());
+    }
+
+    @Test
+    public void cachesDisplayStringUntilNextFragment() {
+        feed("<think>reasoning");
+        CharSequence display = processor.getDisplayResult();
+        String first = display.toString();
+        assertSame(first, display.toString());
+
+        feed(" more");
+        String second = display.toString();
+        assertNotSame(first, second);
+        assertEquals(THINKING + "\n> reasoning more", second);
+        assertSame(second, processor.getDisplayResult().toString());
+        assertEquals(second.length(), display.length());
+        assertEquals(second.charAt(THINKING.length() + 2), display.charAt(THINKING.length() + 2));
+    }
+
+    @Test
+    public void rawResultIsLiveBuffer() {
+        CharSequence raw = processor.getRawResult();
+        feed("<think>a</think>b");
+        assertSame(raw, processor.getRawResult());
+        assertEquals("a</think>b", raw.toString());
+    }
+}
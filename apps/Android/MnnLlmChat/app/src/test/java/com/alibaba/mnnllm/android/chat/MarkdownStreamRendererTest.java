@@ -0,0 +1,66 @@
+package com.alibaba.mnnllm.android.chat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Block boundaries found by MarkdownStreamRenderer.findStableEnd while a response streams.
+ */
+public class MarkdownStreamRendererTest {
+
+    @Test
+    public void splitsAtBlankLineBeforeUnindentedLine() {
+        String markdown = "first paragraph\n\nsecond paragraph";
+        assertEquals(markdown.indexOf("second"), MarkdownStreamRenderer.findStableEnd(markdown, 0));
+    }
+
+    @Test
+    public void keepsIndentedContinuationInBlock() {
+        String markdown = "- item\n\n  continued";
+        assertEquals(0, MarkdownStreamRenderer.findStableEnd(markdown, 0));
+    }
+
+    @Test
+    public void splitsQuoteAtQuotedBlankLine() {
+        String markdown = "> first thought\n>\n> second thought\n>\n> third";
+        assertEquals(markdown.indexOf("> third"), MarkdownStreamRenderer.findStableEnd(markdown, 0));
+    }
+
+    @Test
+    public void splitsQuoteWithTrailingSpaceMarker() {
+        String markdown = "> first thought\n> \n> second thought";
+        assertEquals(markdown.indexOf("> second"), MarkdownStreamRenderer.findStableEnd(markdown, 0));
+    }
+
+    @Test
+    public void splitsAnswerAfterQuote() {
+        String markdown = "> thinking\n\nanswer";
+        assertEquals(markdown.indexOf("answer"), MarkdownStreamRenderer.findStableEnd(markdown, 0));
+    }
+
+    @Test
+    public void keepsFenceWhole() {
+        String markdown = "intro\n\n```\nline one\n\nline two\n```\nafter";
+        assertEquals(markdown.indexOf("```"), MarkdownStreamRenderer.findStableEnd(markdown, 0));
+    }
+
+    @Test
+    public void keepsQuotedFenceWhole() {
+        String markdown = "> intro\n>\n> ```\n> line one\n>\n> line two\n> ```";
+        assertEquals(markdown.indexOf("> ```"), MarkdownStreamRenderer.findStableEnd(markdown, 0));
+    }
+
+    @Test
+    public void splitsAfterClosedFence() {
+        String markdown = "```\ncode\n```\n\nnext";
+        assertEquals(markdown.indexOf("next"), MarkdownStreamRenderer.findStableEnd(markdown, 0));
+    }
+
+    @Test
+    public void returnsFromWithoutBoundary() {
+        String markdown = "one\n\ntwo still streaming";
+        int from = markdown.indexOf("two");
+        assertEquals(from, MarkdownStreamRenderer.findStableEnd(markdown, from));
+    }
+}
@@ -0,0 +1,181 @@
+package ddlx.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用本地 HTTP 服务验证 ImageFetcher 的大小上限、超时、重定向和 Content-Type 校验
+ */
+public class ImageFetcherTest {
+    private static final byte[] IMAGE = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 1, 2, 3, 4};
+    private static final int TIMEOUT_SECONDS = 1;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private StandInServer server;
+    private ImageFetcher fetcher;
+
+    /**
+     * 按路径返回不同响应的图片服务
+     */
+    private static class StandInServer extends NanoHTTPD {
+        StandInServer() {
+            super("127.0.0.1", 0);
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            switch (session.getUri()) {
+                case "/image.jpg":
+                    return newFixedLengthResponse(Response.Status.OK, "image/jpeg",
+                            new ByteArrayInputStream(IMAGE), IMAGE.length);
+                case "/octet":
+                    return newFixedLengthResponse(Response.Status.OK, "application/octet-stream",
+                            new ByteArrayInputStream(IMAGE), IMAGE.length);
+                case "/redirect":
+                    return redirect("/image.jpg");
+                case "/loop":
+                    return redirect("/loop");
+                case "/declared_too_large":
+                    // 只声明超出上限的长度，客户端应在读取之前拒绝
+                    return newFixedLengthResponse(Response.Status.OK, "image/jpeg",
+                            new ByteArrayInputStream(IMAGE), ImageFetcher.MAX_IMAGE_BYTES + 1L);
+                case "/chunked_too_large":
+                    return newChunkedResponse(Response.Status.OK, "image/jpeg",
+                            new ZeroStream(ImageFetcher.MAX_IMAGE_BYTES + 64 * 1024));
+                case "/slow":
+                    try {
+                        Thread.sleep(TIMEOUT_SECONDS * 3000L);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return newFixedLengthResponse(Response.Status.OK, "image/jpeg",
+                            new ByteArrayInputStream(IMAGE), IMAGE.length);
+                case "/page.html":
+                    return newFixedLengthResponse(Response.Status.OK, "text/html", "<html></html>");
+                default:
+                    return newFixedLengthResponse(Response.Status.NOT_FOUND, "text/plain", "not found");
+            }
+        }
+
+        private static Response redirect(String location) {
+            Response response = newFixedLengthResponse(Response.Status.REDIRECT, "text/plain", "");
+            response.addHeader("Location", location);
+            return response;
+        }
+
+        String url(String path) {
+            return "http://127.0.0.1:" + getListeningPort() + path;
+        }
+    }
+
+    /**
+     * 长度固定的全零流，不在内存中分配整块数据
+     */
+    private static class ZeroStream extends InputStream {
+        private long remaining;
+
+        ZeroStream(long length) {
+            remaining = length;
+        }
+
+        @Override
+        public int read() {
+            if (remaining <= 0) {
+                return -1;
+            }
+            remaining--;
+            return 0;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int count = (int) Math.min(length, remaining);
+            Arrays.fill(buffer, offset, offset + count, (byte) 0);
+            remaining -= count;
+            return count;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StandInServer();
+        server.start(NanoHTTPD.SOCKET_READ_TIMEOUT, true);
+        fetcher = new ImageFetcher(tmp.newFolder("http_cache"), TIMEOUT_SECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void fetchesImage() throws IOException {
+        assertArrayEquals(IMAGE, fetcher.fetch(server.url("/image.jpg")));
+    }
+
+    @Test
+    public void acceptsOctetStream() throws IOException {
+        assertArrayEquals(IMAGE, fetcher.fetch(server.url("/octet")));
+    }
+
+    @Test
+    public void followsRedirect() throws IOException {
+        assertArrayEquals(IMAGE, fetcher.fetch(server.url("/redirect")));
+    }
+
+    @Test
+    public void rejectsRedirectLoop() {
+        assertThrows(IOException.class, () -> fetcher.fetch(server.url("/loop")));
+    }
+
+    @Test
+    public void rejectsDeclaredLengthOverCap() {
+        assertThrows(ImageFetcher.ImageTooLargeException.class,
+                () -> fetcher.fetch(server.url("/declared_too_large")));
+    }
+
+    @Test
+    public void rejectsStreamOverCap() {
+        assertThrows(ImageFetcher.ImageTooLargeException.class,
+                () -> fetcher.fetch(server.url("/chunked_too_large")));
+    }
+
+    @Test
+    public void timesOut() {
+        long start = System.nanoTime();
+        assertThrows(IOException.class, () -> fetcher.fetch(server.url("/slow")));
+        // 读超时生效，不会等到服务端响应
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        assertTrue("took " + elapsedMs + " ms", elapsedMs < TIMEOUT_SECONDS * 3000L);
+    }
+
+    @Test
+    public void rejectsNonImageContentType() {
+        assertThrows(ImageFetcher.UnsupportedContentTypeException.class,
+                () -> fetcher.fetch(server.url("/page.html")));
+    }
+
+    @Test
+    public void rejectsErrorStatus() {
+        assertThrows(IOException.class, () -> fetcher.fetch(server.url("/missing.jpg")));
+    }
+}
@@ -31,6 +31,8 @@ class LlmConfig;
 class DiskEmbedding;
 class Sampler;
 class Prompt;
+class JsonGrammar;
+class TokenTrie;
 struct TimePerformance;
 
 using ChatMessage = std::pair<std::string, std::string>; // <role, content>
@@ -52,6 +54,7 @@ struct LlmContext {
     // perf
     int64_t load_us = 0;
     int64_t vision_us = 0;
+    int vision_cache_hits = 0;
     int64_t audio_us = 0;
     int64_t prefill_us = 0;
     int64_t decode_us = 0;
@@ -71,10 +74,19 @@ public:
         Prefill,
         Decode
     };
+    // called by load() with the step about to run and the fraction of model bytes read so far, returning false stops the load
+    using LoadCallback = std::function<bool(const std::string& step, float progress)>;
     static Llm* createLLM(const std::string& config_path);
     Llm(std::shared_ptr<LlmConfig> config);
     virtual ~Llm();
     virtual void load();
+    void set_load_callback(LoadCallback callback) {
+        mLoadCallback = callback;
+    }
+    // true when the last load() was stopped by the load callback, the llm is then unusable
+    bool load_cancelled() const {
+        return mLoadCancelled;
+    }
     virtual Express::VARP gen_attention_mask(int seq_len);
     virtual Express::VARP gen_position_ids(int seq_len);
     virtual Express::VARP embedding(const std::vector<int>& input_ids);
@@ -87,6 +99,8 @@ public:
     void setKVCacheInfo(size_t add, size_t remove, int* reserve = nullptr, int n_reserve = 0);
     size_t getCurrentHistory() const;
     void eraseHistory(size_t begin, size_t end);
+    // keep only the first `length` tokens of kv cache, a following response() with reuse_kv continues after them
+    void truncateHistory(size_t length);
     void response(const std::vector<int>& input_ids, std::ostream* os = &std::cout, const char* end_with = nullptr, int max_new_tokens = -1);
     void response(const std::string& user_content, std::ostream* os = &std::cout, const char* end_with = nullptr, int max_new_tokens = -1);
     void response(const ChatMessages& chat_prompts, std::ostream* os = &std::cout, const char* end_with = nullptr, int max_new_tokens = -1);
@@ -98,6 +112,11 @@ public:
     // config function
     std::string dump_config();
     bool set_config(const std::string& content);
+    // toggle kv reuse for the next response(), unlike set_config this keeps the cached samplers
+    void set_reuse_kv(bool reuse);
+    // rebuild the sampler from the config merged with `overrides` (json), an empty string restores the configured sampler
+    // {"response_format": "json"} additionally masks every token that would make the output invalid json
+    void set_sampler_config(const std::string& overrides);
     // lora function
     size_t apply_lora(const std::string& lora_path);
     Llm* create_lora(const std::string& lora_path);
@@ -107,12 +126,19 @@ public:
     bool is_stop(int token);
     std::string tokenizer_decode(int token);
     virtual std::vector<int> tokenizer_encode(const std::string& query);
+    std::string apply_chat_template(const ChatMessages& chat_prompts, bool add_generation_prompt = true) const;
     friend class Pipeline;
     const LlmContext* getContext() const {
         return mContext.get();
     }
 protected:
     void initRuntime();
+    Express::VARP constrain(Express::VARP logits);
+    // total bytes of the files read by load(), used to weight load progress
+    virtual int64_t load_bytes() const;
+    bool load_step(const std::string& step, int64_t done_bytes);
+    LoadCallback mLoadCallback;
+    bool mLoadCancelled = false;
     std::shared_ptr<LlmContext> mContext;
     std::shared_ptr<KVMeta> mMeta;
     std::shared_ptr<LlmConfig> mConfig;
@@ -120,6 +146,10 @@ protected:
     std::shared_ptr<Tokenizer> mTokenizer;
     std::shared_ptr<DiskEmbedding> mDiskEmbedding;
     std::shared_ptr<Sampler> mSampler;
+    // samplers built by set_sampler_config with the merged config they came from, keyed by the overrides
+    std::unordered_map<std::string, std::pair<std::shared_ptr<Sampler>, std::shared_ptr<LlmConfig>>> mSamplerCache;
+    std::shared_ptr<JsonGrammar> mGrammar;
+    std::shared_ptr<TokenTrie> mTokenTrie;
     std::shared_ptr<Express::Executor::RuntimeManager> mRuntimeManager, mProcessorRuntimeManager;
     std::vector<std::shared_ptr<Express::Module>> mModules, mPrefillModules, mDecodeModules, mCurrentModules;
     const Express::Module* mBaseModule = nullptr;
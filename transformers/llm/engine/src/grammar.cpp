@@ -0,0 +1,316 @@
+//
+//  grammar.cpp
+//
+//  Created by MNN on 2025/04/08.
+//
+
+#include <cstring>
+
+#include "grammar.hpp"
+
+namespace MNN {
+namespace Transformer {
+
+// bound the nesting and the runs of whitespace, otherwise a constrained model can loop without finishing
+static const int kMaxDepth = 64;
+static const int kMaxSpaces = 32;
+
+static bool isSpace(unsigned char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+}
+
+static bool isDigit(unsigned char c) {
+    return c >= '0' && c <= '9';
+}
+
+static bool isHex(unsigned char c) {
+    return isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+}
+
+JsonGrammar::JsonGrammar(const std::string& root) : mRoot(root) {
+}
+
+bool JsonGrammar::accept(unsigned char c) {
+    JsonGrammar next = *this;
+    if (!next.step(c)) {
+        return false;
+    }
+    *this = next;
+    return true;
+}
+
+bool JsonGrammar::accept(const std::string& text) {
+    JsonGrammar next = *this;
+    for (unsigned char c : text) {
+        if (!next.step(c)) {
+            return false;
+        }
+    }
+    *this = next;
+    return true;
+}
+
+bool JsonGrammar::complete() const {
+    if (mState == DONE) {
+        return true;
+    }
+    // a bare root number has no closing char
+    bool number = mState == NUMBER_ZERO || mState == NUMBER_INT || mState == NUMBER_FRAC || mState == NUMBER_EXP_INT;
+    return number && mStack.empty();
+}
+
+JsonGrammar::Checkpoint JsonGrammar::save() const {
+    return {mState, mLiteral, mIsKey, mUnicodeLeft, mSpaces, mStack.size(), mStack.empty() ? '\0' : mStack.back()};
+}
+
+void JsonGrammar::restore(const Checkpoint& checkpoint) {
+    if (mStack.size() > checkpoint.depth) {
+        mStack.pop_back();
+    } else if (mStack.size() < checkpoint.depth) {
+        mStack.push_back(checkpoint.top);
+    }
+    mState = checkpoint.state;
+    mLiteral = checkpoint.literal;
+    mIsKey = checkpoint.isKey;
+    mUnicodeLeft = checkpoint.unicodeLeft;
+    mSpaces = checkpoint.spaces;
+}
+
+void JsonGrammar::endValue() {
+    mState = mStack.empty() ? DONE : AFTER_VALUE;
+}
+
+bool JsonGrammar::endNumber(unsigned char c) {
+    endValue();
+    return step(c);
+}
+
+bool JsonGrammar::beginValue(unsigned char c) {
+    if (mStack.empty()) {
+        if (mRoot == "object" && c != '{') return false;
+        if (mRoot == "array" && c != '[') return false;
+    }
+    switch (c) {
+        case '{':
+        case '[':
+            if (mStack.size() >= kMaxDepth) return false;
+            mStack.push_back(c);
+            mState = (c == '{') ? OBJECT_FIRST : ARRAY_FIRST;
+            return true;
+        case '"':
+            mIsKey = false;
+            mState = STRING;
+            return true;
+        case '-':
+            mState = NUMBER_MINUS;
+            return true;
+        case '0':
+            mState = NUMBER_ZERO;
+            return true;
+        case 't':
+            mLiteral = "rue";
+            mState = LITERAL;
+            return true;
+        case 'f':
+            mLiteral = "alse";
+            mState = LITERAL;
+            return true;
+        case 'n':
+            mLiteral = "ull";
+            mState = LITERAL;
+            return true;
+        default:
+            break;
+    }
+    if (isDigit(c)) {
+        mState = NUMBER_INT;
+        return true;
+    }
+    return false;
+}
+
+bool JsonGrammar::step(unsigned char c) {
+    switch (mState) {
+        case STRING:
+            if (c == '"') {
+                if (mIsKey) {
+                    mIsKey = false;
+                    mState = COLON;
+                } else {
+                    endValue();
+                }
+                return true;
+            }
+            if (c == '\\') {
+                mState = STRING_ESCAPE;
+                return true;
+            }
+            return c >= 0x20;
+        case STRING_ESCAPE:
+            if (c == 'u') {
+                mUnicodeLeft = 4;
+                mState = STRING_UNICODE;
+                return true;
+            }
+            if (c != 0 && strchr("\"\\/bfnrt", c) != nullptr) {
+                mState = STRING;
+                return true;
+            }
+            return false;
+        case STRING_UNICODE:
+            if (!isHex(c)) return false;
+            if (--mUnicodeLeft == 0) mState = STRING;
+            return true;
+        case NUMBER_MINUS:
+            if (c == '0') {
+                mState = NUMBER_ZERO;
+                return true;
+            }
+            if (isDigit(c)) {
+                mState = NUMBER_INT;
+                return true;
+            }
+            return false;
+        case NUMBER_ZERO:
+        case NUMBER_INT:
+            if (mState == NUMBER_INT && isDigit(c)) return true;
+            if (c == '.') {
+                mState = NUMBER_DOT;
+                return true;
+            }
+            if (c == 'e' || c == 'E') {
+                mState = NUMBER_EXP;
+                return true;
+            }
+            return endNumber(c);
+        case NUMBER_DOT:
+            if (!isDigit(c)) return false;
+            mState = NUMBER_FRAC;
+            return true;
+        case NUMBER_FRAC:
+            if (isDigit(c)) return true;
+            if (c == 'e' || c == 'E') {
+                mState = NUMBER_EXP;
+                return true;
+            }
+            return endNumber(c);
+        case NUMBER_EXP:
+            if (c == '+' || c == '-') {
+                mState = NUMBER_EXP_SIGN;
+                return true;
+            }
+            if (!isDigit(c)) return false;
+            mState = NUMBER_EXP_INT;
+            return true;
+        case NUMBER_EXP_SIGN:
+            if (!isDigit(c)) return false;
+            mState = NUMBER_EXP_INT;
+            return true;
+        case NUMBER_EXP_INT:
+            if (isDigit(c)) return true;
+            return endNumber(c);
+        case LITERAL:
+            if (c != (unsigned char)*mLiteral) return false;
+            if (*(++mLiteral) == 0) endValue();
+            return true;
+        case DONE:
+            return false;
+        default:
+            break;
+    }
+    // structural states
+    if (isSpace(c)) {
+        if (mSpaces >= kMaxSpaces) return false;
+        mSpaces++;
+        return true;
+    }
+    mSpaces = 0;
+    switch (mState) {
+        case VALUE:
+            return beginValue(c);
+        case ARRAY_FIRST:
+            if (c == ']') {
+                mStack.pop_back();
+                endValue();
+                return true;
+            }
+            return beginValue(c);
+        case OBJECT_FIRST:
+        case OBJECT_KEY:
+            if (c == '}' && mState == OBJECT_FIRST) {
+                mStack.pop_back();
+                endValue();
+                return true;
+            }
+            if (c != '"') return false;
+            mIsKey = true;
+            mState = STRING;
+            return true;
+        case COLON:
+            if (c != ':') return false;
+            mState = VALUE;
+            return true;
+        case AFTER_VALUE:
+            if (c == ',') {
+                mState = (mStack.back() == '{') ? OBJECT_KEY : VALUE;
+                return true;
+            }
+            if ((c == '}' && mStack.back() == '{') || (c == ']' && mStack.back() == '[')) {
+                mStack.pop_back();
+                endValue();
+                return true;
+            }
+            return false;
+        default:
+            return false;
+    }
+}
+
+TokenTrie::TokenTrie(int vocab_size, const std::function<std::string(int)>& decode, const std::function<bool(int)>& skip) {
+    mNodes.emplace_back();
+    for (int id = 0; id < vocab_size; ++id) {
+        if (skip(id)) continue;
+        auto text = decode(id);
+        if (text.empty()) continue;
+        int node = 0;
+        for (unsigned char c : text) {
+            int next = -1;
+            for (auto& child : mNodes[node].children) {
+                if (child.first == c) {
+                    next = child.second;
+                    break;
+                }
+            }
+            if (next < 0) {
+                next = (int)mNodes.size();
+                mNodes[node].children.emplace_back(c, next);
+                mNodes.emplace_back();
+            }
+            node = next;
+        }
+        mNodes[node].tokens.push_back(id);
+    }
+}
+
+void TokenTrie::allowed(const JsonGrammar& grammar, std::vector<char>& mask) const {
+    JsonGrammar state = grammar;
+    walk(0, state, mask);
+}
+
+// tokens sharing a prefix share the grammar steps, a rejected byte prunes the whole subtree
+void TokenTrie::walk(int node, JsonGrammar& grammar, std::vector<char>& mask) const {
+    auto checkpoint = grammar.save();
+    for (auto& child : mNodes[node].children) {
+        // a rejected byte may have changed the state before failing
+        if (grammar.step(child.first)) {
+            for (int id : mNodes[child.second].tokens) {
+                if (id < (int)mask.size()) mask[id] = 1;
+            }
+            walk(child.second, grammar, mask);
+        }
+        grammar.restore(checkpoint);
+    }
+}
+
+} // Transformer
+} // MNN
@@ -0,0 +1,94 @@
+//
+//  grammar.hpp
+//
+//  Created by MNN on 2025/04/08.
+//
+
+#ifndef GRAMMAR_hpp
+#define GRAMMAR_hpp
+
+#include <vector>
+#include <memory>
+#include <string>
+#include <functional>
+
+namespace MNN {
+namespace Transformer {
+
+// byte level json recognizer, the token trie walk steps a single state and rolls each byte back with a checkpoint
+class JsonGrammar {
+public:
+    // root: "object", "array" or "any"
+    explicit JsonGrammar(const std::string& root = "object");
+    // feed one byte, returns false and keeps the state unchanged if the byte breaks the json syntax
+    bool accept(unsigned char c);
+    bool accept(const std::string& text);
+    // a complete root value has been generated, only a stop token may follow
+    bool complete() const;
+private:
+    friend class TokenTrie;
+    enum State : unsigned char {
+        VALUE,          // expect a value
+        ARRAY_FIRST,    // after '[', expect a value or ']'
+        OBJECT_FIRST,   // after '{', expect a key or '}'
+        OBJECT_KEY,     // after ',' in an object, expect a key
+        COLON,          // after a key
+        AFTER_VALUE,    // expect ',' or the closing bracket
+        STRING,
+        STRING_ESCAPE,
+        STRING_UNICODE,
+        NUMBER_MINUS,
+        NUMBER_ZERO,
+        NUMBER_INT,
+        NUMBER_DOT,
+        NUMBER_FRAC,
+        NUMBER_EXP,
+        NUMBER_EXP_SIGN,
+        NUMBER_EXP_INT,
+        LITERAL,
+        DONE
+    };
+    // a byte changes the scalar fields and pushes or pops at most one bracket
+    struct Checkpoint {
+        State state;
+        const char* literal;
+        bool isKey;
+        int unicodeLeft;
+        int spaces;
+        size_t depth;
+        char top;
+    };
+    Checkpoint save() const;
+    void restore(const Checkpoint& checkpoint);
+    bool step(unsigned char c);
+    bool endNumber(unsigned char c);
+    void endValue();
+    bool beginValue(unsigned char c);
+    State mState = VALUE;
+    std::string mStack;        // open '{' and '['
+    std::string mRoot;
+    const char* mLiteral = nullptr; // remaining chars of true / false / null
+    bool mIsKey = false;
+    int mUnicodeLeft = 0;
+    int mSpaces = 0;
+};
+
+// vocabulary as a byte trie, shared by every constrained generation of the model
+class TokenTrie {
+public:
+    TokenTrie(int vocab_size, const std::function<std::string(int)>& decode, const std::function<bool(int)>& skip);
+    // mark the tokens whose text keeps `grammar` valid
+    void allowed(const JsonGrammar& grammar, std::vector<char>& mask) const;
+private:
+    struct Node {
+        std::vector<std::pair<unsigned char, int>> children;
+        std::vector<int> tokens;
+    };
+    void walk(int node, JsonGrammar& grammar, std::vector<char>& mask) const;
+    std::vector<Node> mNodes;
+};
+
+} // Transformer
+} // MNN
+
+#endif // GRAMMAR_hpp
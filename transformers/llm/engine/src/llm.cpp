@@ -8,6 +8,8 @@
 
 #include <fstream>
 #include <iostream>
+#include <limits>
+#include <list>
 #include <regex>
 #include <sstream>
 #include <unordered_set>
@@ -20,6 +22,7 @@
 #include "llmconfig.hpp"
 #include "tokenizer.hpp"
 #include "sampler.hpp"
+#include "grammar.hpp"
 #include "prompt.hpp"
 // 0: no debug, 1: test op time, 2: print tensor info, 3: print tensor in output
 #define DEBUG_MODE 0
@@ -183,6 +186,138 @@ void DiskEmbedding::embedding(const std::vector<int>& input_ids, float* dst) {
     }
 }
 
+// vision encoder outputs keyed on (image content, encoder, input size), an LRU in memory
+// bounded by bytes; evicted entries are spilled to `dir` and loaded back on a later hit
+class VisionCache {
+public:
+    VisionCache(size_t max_bytes, const std::string& dir) : mMaxBytes(max_bytes), mDir(dir) {}
+    static std::string key(const std::string& file, const std::string& model, int height, int width);
+    VARP get(const std::string& key);
+    void put(const std::string& key, VARP embedding);
+private:
+    std::string path(const std::string& key) const {
+        return mDir + "/" + key + ".bin";
+    }
+    VARP load(const std::string& key);
+    void spill(const std::string& key, VARP embedding);
+    size_t mMaxBytes;
+    size_t mBytes = 0;
+    std::string mDir;
+    std::list<std::pair<std::string, VARP>> mEntries; // most recently used first
+    std::unordered_map<std::string, std::list<std::pair<std::string, VARP>>::iterator> mIndex;
+};
+
+static size_t varp_bytes(VARP var) {
+    return var->getInfo()->size * sizeof(float);
+}
+
+// fnv-1a over the file content, the same image saved under another path still hits
+std::string VisionCache::key(const std::string& file, const std::string& model, int height, int width) {
+    std::ifstream is(file, std::ios::binary);
+    if (!is.is_open()) {
+        return "";
+    }
+    uint64_t hash = 1469598103934665603ULL;
+    auto mix = [&hash](const char* data, size_t size) {
+        for (size_t i = 0; i < size; ++i) {
+            hash ^= (uint8_t)data[i];
+            hash *= 1099511628211ULL;
+        }
+    };
+    std::vector<char> buffer(64 * 1024);
+    while (is) {
+        is.read(buffer.data(), buffer.size());
+        mix(buffer.data(), is.gcount());
+    }
+    mix(model.data(), model.size());
+    char key[64];
+    snprintf(key, sizeof(key), "%016llx_%dx%d", (unsigned long long)hash, height, width);
+    return key;
+}
+
+VARP VisionCache::get(const std::string& key) {
+    auto iter = mIndex.find(key);
+    if (iter != mIndex.end()) {
+        mEntries.splice(mEntries.begin(), mEntries, iter->second);
+        return iter->second->second;
+    }
+    auto embedding = load(key);
+    if (nullptr != embedding) {
+        put(key, embedding);
+    }
+    return embedding;
+}
+
+void VisionCache::put(const std::string& key, VARP embedding) {
+    auto info = embedding->getInfo();
+    if (nullptr == info || info->type != halide_type_of<float>() || mIndex.count(key)) {
+        return;
+    }
+    // detach from the encoder graph so the cached value survives the next forward
+    auto copy = _Input(info->dim, info->order, halide_type_of<float>());
+    ::memcpy(copy->writeMap<float>(), embedding->readMap<float>(), varp_bytes(embedding));
+    mEntries.emplace_front(key, copy);
+    mIndex[key] = mEntries.begin();
+    mBytes += varp_bytes(copy);
+    while (mBytes > mMaxBytes && mEntries.size() > 1) {
+        auto& last = mEntries.back();
+        spill(last.first, last.second);
+        mBytes -= varp_bytes(last.second);
+        mIndex.erase(last.first);
+        mEntries.pop_back();
+    }
+}
+
+// file layout: int32 order, int32 ndim, int32 dims[ndim], float data
+void VisionCache::spill(const std::string& key, VARP embedding) {
+    if (mDir.empty()) {
+        return;
+    }
+    std::ifstream exist(path(key));
+    if (exist.good()) {
+        return;
+    }
+    auto info = embedding->getInfo();
+    std::ofstream os(path(key), std::ios::binary);
+    int32_t order = info->order;
+    int32_t ndim = (int32_t)info->dim.size();
+    os.write((const char*)&order, sizeof(order));
+    os.write((const char*)&ndim, sizeof(ndim));
+    for (int d : info->dim) {
+        int32_t dim = d;
+        os.write((const char*)&dim, sizeof(dim));
+    }
+    os.write((const char*)embedding->readMap<float>(), varp_bytes(embedding));
+}
+
+VARP VisionCache::load(const std::string& key) {
+    if (mDir.empty()) {
+        return nullptr;
+    }
+    std::ifstream is(path(key), std::ios::binary);
+    if (!is.is_open()) {
+        return nullptr;
+    }
+    int32_t order = 0, ndim = 0;
+    is.read((char*)&order, sizeof(order));
+    is.read((char*)&ndim, sizeof(ndim));
+    if (!is || ndim <= 0 || ndim > 8) {
+        return nullptr;
+    }
+    std::vector<int> dims(ndim);
+    for (int i = 0; i < ndim; ++i) {
+        int32_t dim = 0;
+        is.read((char*)&dim, sizeof(dim));
+        dims[i] = dim;
+    }
+    auto embedding = _Input(dims, (Dimensionformat)order, halide_type_of<float>());
+    is.read((char*)embedding->writeMap<float>(), varp_bytes(embedding));
+    if (!is) {
+        return nullptr;
+    }
+    return embedding;
+}
+
 class Mllm : public Llm {
 public:
     Mllm(std::shared_ptr<LlmConfig> config) : Llm(config) {
@@ -205,6 +340,9 @@ public:
     virtual std::vector<int> tokenizer_encode(const std::string& query) override;
     virtual Express::VARP embedding(const std::vector<int>& input_ids) override;
 
+protected:
+    virtual int64_t load_bytes() const override;
+
 private:
     int mVisionHeight = 448, mVisionWidth = 448, mVisionStart = 151857,
         mVisionEnd = 151858, mVisionPad = 151859, mAudioPad = 151646;
@@ -215,6 +353,7 @@ private:
     std::vector<int> audio_process(const std::string& file);
     std::shared_ptr<Module> mMulModule;
     std::vector<VARP> mMulEmbeddings;
+    std::unique_ptr<VisionCache> mVisionCache;
 };
 
 // Llm start
@@ -252,9 +391,66 @@ std::string Llm::dump_config() {
 }
 
 bool Llm::set_config(const std::string& content) {
+    // cached samplers were built from the previous config
+    mSamplerCache.clear();
     return mConfig->config_.merge(content.c_str());
 }
 
+void Llm::set_reuse_kv(bool reuse) {
+    mConfig->config_.merge(reuse ? R"({"reuse_kv":true})" : R"({"reuse_kv":false})");
+}
+
+void Llm::set_sampler_config(const std::string& overrides) {
+    constexpr size_t kMaxCachedSamplers = 16;
+    auto iter = mSamplerCache.find(overrides);
+    if (iter == mSamplerCache.end()) {
+        auto config = mConfig;
+        if (!overrides.empty()) {
+            config = std::make_shared<LlmConfig>(*mConfig);
+            config->config_.merge(overrides.c_str());
+        }
+        if (mSamplerCache.size() >= kMaxCachedSamplers) {
+            mSamplerCache.clear();
+        }
+        std::shared_ptr<Sampler> sampler(Sampler::createSampler(mContext, config));
+        iter = mSamplerCache.emplace(overrides, std::make_pair(sampler, config)).first;
+    } else {
+        iter->second.first->reseed();
+    }
+    mSampler = iter->second.first;
+    auto& config = iter->second.second;
+    if (config->response_format() == "json") {
+        mGrammar.reset(new JsonGrammar(config->json_root()));
+    } else {
+        mGrammar.reset();
+    }
+}
+
+// keep only the tokens that continue valid json, once the root value is closed only stop tokens remain
+VARP Llm::constrain(VARP logits) {
+    int size = logits->getInfo()->size;
+    if (nullptr == mTokenTrie) {
+        // built once per model, special and stop tokens are never part of the json text
+        mTokenTrie.reset(new TokenTrie(size, [this](int id) { return tokenizer_decode(id); },
+                                       [this](int id) { return mTokenizer->is_stop(id) || mTokenizer->is_special(id); }));
+    }
+    std::vector<char> mask(size, 0);
+    mTokenTrie->allowed(*mGrammar, mask);
+    bool any = std::find(mask.begin(), mask.end(), 1) != mask.end();
+    if (mGrammar->complete() || !any) {
+        for (int i = 0; i < size; ++i) {
+            if (mTokenizer->is_stop(i)) mask[i] = 1;
+        }
+    }
+    auto masked = _Input({size}, NHWC, halide_type_of<float>());
+    auto src = logits->readMap<float>();
+    auto dst = masked->writeMap<float>();
+    for (int i = 0; i < size; ++i) {
+        dst[i] = mask[i] ? src[i] : -std::numeric_limits<float>::infinity();
+    }
+    return masked;
+}
+
 int file_size_m(const std::string& filename) {
     std::ifstream file(filename, std::ios::binary | std::ios::ate);
     if (!file.is_open()) {
@@ -266,6 +462,28 @@ int file_size_m(const std::string& filename) {
     return fileSize / (1024 * 1024);
 }
 
+static int64_t file_bytes(const std::string& filename) {
+    std::ifstream file(filename, std::ios::binary | std::ios::ate);
+    if (!file.is_open()) {
+        return 0;
+    }
+    return file.tellg();
+}
+
+int64_t Llm::load_bytes() const {
+    return file_bytes(mConfig->tokenizer_file()) + file_bytes(mConfig->llm_weight());
+}
+
+bool Llm::load_step(const std::string& step, int64_t done_bytes) {
+    if (nullptr == mLoadCallback) {
+        return true;
+    }
+    int64_t total = load_bytes();
+    float progress = total > 0 ? std::min(1.0f, (float)done_bytes / total) : 0.0f;
+    mLoadCancelled = !mLoadCallback(step, progress);
+    return !mLoadCancelled;
+}
+
 void Llm::initRuntime() {
     ScheduleConfig config;
     BackendConfig cpuBackendConfig;
@@ -336,14 +554,25 @@ static inline VARP _var(std::vector<T> vec, const std::vector<int> &dims) {
 }
 
 void Llm::load() {
+    mLoadCancelled = false;
+    if (!load_step("runtime", 0)) {
+        return;
+    }
     initRuntime();
     // init module status
     // 1. load vocab
+    if (!load_step("tokenizer", 0)) {
+        return;
+    }
     mTokenizer.reset(Tokenizer::createTokenizer(mConfig->tokenizer_file()));
     mDiskEmbedding.reset(new DiskEmbedding(mConfig));
     mPrompt.reset(Prompt::createPrompt(mContext, mConfig));
     mSampler.reset(Sampler::createSampler(mContext, mConfig));
+    int64_t done_bytes = file_bytes(mConfig->tokenizer_file());
     // 3. load model
+    if (!load_step("model", done_bytes)) {
+        return;
+    }
     Module::Config module_config;
     if (mConfig->backend_type() == "opencl" || mConfig->backend_type() == "vulkan") {
         module_config.shapeMutable = false;
@@ -364,6 +593,10 @@ void Llm::load() {
     mModules[0].reset(Module::load({"input_ids", "attention_mask", "position_ids", "logits_index"},
                                    {"logits"}, model_path.c_str(), mRuntimeManager, &module_config));
     MNN_PRINT("Load Module Done!\n");
+    done_bytes += file_bytes(mConfig->llm_weight());
+    if (!load_step("decode", done_bytes)) {
+        return;
+    }
     mDecodeModules.resize(mModules.size());
     for (int v = 0; v < mModules.size(); ++v) {
         mDecodeModules[v].reset(Module::clone(mModules[v].get()));
@@ -518,7 +751,13 @@ int Llm::sample(VARP logits, int offset, int size) {
     if (offset && size) {
         logits = _Const(logits->readMap<float>() + offset, {size}, NHWC, halide_type_of<float>());
     }
+    if (nullptr != mGrammar) {
+        logits = constrain(logits);
+    }
     auto token_id = mSampler->sample(logits);
+    if (nullptr != mGrammar && !mTokenizer->is_stop(token_id)) {
+        mGrammar->accept(tokenizer_decode(token_id));
+    }
     mContext->history_tokens.push_back(token_id);
     mContext->output_tokens.push_back(token_id);
     return token_id;
@@ -576,6 +815,17 @@ void Llm::eraseHistory(size_t begin, size_t end) {
     }
 }
 
+void Llm::truncateHistory(size_t length) {
+    if (length >= mMeta->previous) {
+        return;
+    }
+    eraseHistory(length, 0);
+    mContext->all_seq_len = static_cast<int>(length);
+    if (mContext->history_tokens.size() > length) {
+        mContext->history_tokens.resize(length);
+    }
+}
+
 bool Llm::stoped() {
     return is_stop(mContext->current_token);
 }
@@ -636,6 +886,10 @@ std::vector<int> Llm::tokenizer_encode(const std::string& user_content) {
     return mTokenizer->encode(user_content);
 }
 
+std::string Llm::apply_chat_template(const ChatMessages& chat_prompts, bool add_generation_prompt) const {
+    return mPrompt->applyTemplate(chat_prompts, add_generation_prompt);
+}
+
 void Llm::response(const std::vector<int>& input_ids, std::ostream* os, const char* end_with, int max_new_tokens) {
     if (!end_with) { end_with = "\n"; }
     generate_init(os, end_with);
@@ -819,8 +1073,25 @@ bool Llm::is_stop(int token_id) {
     return mTokenizer->is_stop(token_id);
 }
 
+int64_t Mllm::load_bytes() const {
+    int64_t bytes = Llm::load_bytes();
+    if (mConfig->is_visual()) {
+        bytes += file_bytes(mConfig->visual_model() + ".weight");
+    }
+    if (mConfig->is_audio()) {
+        bytes += file_bytes(mConfig->audio_model() + ".weight");
+    }
+    return bytes;
+}
+
 void Mllm::load() {
     Llm::load();
+    if (mLoadCancelled) {
+        return;
+    }
+    if (!load_step(mConfig->is_visual() ? "vision" : "audio", Llm::load_bytes())) {
+        return;
+    }
     if (mConfig->mllm_config_.empty()) {
         mProcessorRuntimeManager = mRuntimeManager;
     } else {
@@ -863,6 +1134,9 @@ void Mllm::load() {
     if (mConfig->is_visual()) {
         mProcessorRuntimeManager->setExternalFile(mConfig->visual_model() + ".weight");
         mMulModule.reset(Module::load({}, {}, mConfig->visual_model().c_str(), mProcessorRuntimeManager, &module_config));
+        if (mConfig->vision_cache_mb() > 0) {
+            mVisionCache.reset(new VisionCache((size_t)mConfig->vision_cache_mb() * 1024 * 1024, mConfig->vision_cache_dir()));
+        }
     }
     if (mConfig->is_audio()) {
         mProcessorRuntimeManager->setExternalFile(mConfig->audio_model() + ".weight");
@@ -872,15 +1146,28 @@ void Mllm::load() {
 
 std::vector<int> Mllm::vision_process(const std::string& file) {
 #ifdef LLM_SUPPORT_VISION
-    VARP image = MNN::CV::imread(file);
-    if (image == nullptr) {
-        MNN_PRINT("Mllm Can't open image: %s\n", file.c_str());
-        return std::vector<int>(0);
-    }
     Timer _t;
     VARP image_embedding;
+    std::string cache_key;
+    if (nullptr != mVisionCache) {
+        cache_key = VisionCache::key(file, mConfig->visual_model(), mVisionHeight, mVisionWidth);
+        if (!cache_key.empty()) {
+            image_embedding = mVisionCache->get(cache_key);
+        }
+    }
+    VARP image;
+    if (nullptr == image_embedding) {
+        image = MNN::CV::imread(file);
+        if (image == nullptr) {
+            MNN_PRINT("Mllm Can't open image: %s\n", file.c_str());
+            return std::vector<int>(0);
+        }
+    }
 
-    if (mMulModule->getInfo()->inputNames[0] == "patches") {
+    if (nullptr != image_embedding) {
+        // same image and input size as an earlier request, skip the encoder
+        mContext->vision_cache_hits++;
+    } else if (mMulModule->getInfo()->inputNames[0] == "patches") {
         // Qwen2-VL
         mVisionHeight = round(mVisionHeight / 28.0) * 28;
         mVisionWidth = round(mVisionWidth / 28.0) * 28;
@@ -954,6 +1241,9 @@ std::vector<int> Mllm::vision_process(const std::string& file) {
         image           = Express::_Convert(image, NC4HW4);
         image_embedding = mMulModule->forward(image);
     }
+    if (nullptr != mVisionCache && !cache_key.empty()) {
+        mVisionCache->put(cache_key, image_embedding);
+    }
     mContext->vision_us = _t.durationInUs();
     mMulEmbeddings.push_back(image_embedding);
     int visual_len = image_embedding->getInfo()->dim[0];
@@ -1054,6 +1344,10 @@ std::vector<int> Mllm::multimode_process(const std::string& mode, std::string in
 }
 
 std::vector<int> Mllm::tokenizer_encode(const std::string& prompt) {
+    // per-response multimodal stats, encoding runs before generate_init
+    mContext->vision_us = 0;
+    mContext->vision_cache_hits = 0;
+    mContext->audio_us = 0;
     // split query
     std::regex multimode_regex("<(img|audio)>(.*?)</\\1>");
     std::string::const_iterator searchStart(prompt.cbegin());
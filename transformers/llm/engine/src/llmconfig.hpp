@@ -439,6 +439,29 @@ public:
         return config_.value("temperature", 1.0f);
     }
 
+    // negative means a random seed
+    int seed() const {
+        return config_.value("seed", -1);
+    }
+
+    // "json" constrains the output to valid json, json_root is "object", "array" or "any"
+    std::string response_format() const {
+        return config_.value("response_format", "");
+    }
+
+    std::string json_root() const {
+        return config_.value("json_root", "object");
+    }
+
+    // vision encoder output cache, 0 disables it; evicted entries are spilled to vision_cache_dir when set
+    int vision_cache_mb() const {
+        return config_.value("vision_cache_mb", 64);
+    }
+
+    std::string vision_cache_dir() const {
+        return config_.value("vision_cache_dir", "");
+    }
+
     int topK() const {
         return config_.value("topK", 40);
     }
@@ -109,9 +109,7 @@ int argmaxSelect(struct SubsetLogits superset) {
     return select(superset, token_id);
 }
 
-int randomSelect(float* probs, size_t size) {
-    std::random_device rd;
-    std::mt19937 generator(rd());
+int randomSelect(float* probs, size_t size, std::mt19937& generator) {
     std::uniform_real_distribution<float> distribution(0.0, 1.0);
     float target = distribution(generator);
     float cumulative = 0.0;
@@ -124,12 +122,12 @@ int randomSelect(float* probs, size_t size) {
     return size - 1;
 }
 
-int randomSelect(Express::VARP probs) {
-    return randomSelect((float*)(probs->readMap<float>()), probs->getInfo()->size);
+int randomSelect(Express::VARP probs, std::mt19937& generator) {
+    return randomSelect((float*)(probs->readMap<float>()), probs->getInfo()->size, generator);
 }
 
-int reSoftmaxSelect(struct SubsetLogits subset, float temperature) {
-    int token_index_id = randomSelect(_TempratureSoftmax(subset.logits, temperature));
+int reSoftmaxSelect(struct SubsetLogits subset, float temperature, std::mt19937& generator) {
+    int token_index_id = randomSelect(_TempratureSoftmax(subset.logits, temperature), generator);
     return ((subset.is_subset) ? subset.index[token_index_id] : token_index_id);
 }
 
@@ -159,7 +157,15 @@ Sampler::Sampler(std::shared_ptr<LlmContext> context, std::shared_ptr<LlmConfig>
     mConfig.max_new_tokens = config->max_new_tokens();
     mConfig.type = config->sampler_type();
     mConfig.configSampler(mConfig.type, config);
-    std::cout << "Sampler: " << mConfig.type << std::endl;
+    // one generator per sampler, seeded once instead of opening random_device for every token
+    mSeed = config->seed();
+    mGenerator.seed(mSeed >= 0 ? static_cast<std::mt19937::result_type>(mSeed) : std::random_device{}());
+}
+
+void Sampler::reseed() {
+    if (mSeed >= 0) {
+        mGenerator.seed(static_cast<std::mt19937::result_type>(mSeed));
+    }
 }
 
 /* ----------Sampler's members---------- */
@@ -462,7 +468,7 @@ int Sampler::handleSelect(struct SubsetLogits subset) {
     if (mConfig.select_type == "greedy") {
         return argmaxSelect(subset);
     } else if(mConfig.select_type =="temperature") {
-        return reSoftmaxSelect(subset, mConfig.temperature);
+        return reSoftmaxSelect(subset, mConfig.temperature, mGenerator);
     }
     return 0;
 }
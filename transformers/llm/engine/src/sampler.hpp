@@ -11,6 +11,7 @@
 #include <functional>
 #include <unordered_map>
 #include <utility>
+#include <random>
 
 #include <MNN/expr/Expr.hpp>
 #include <MNN/expr/Module.hpp>
@@ -60,9 +61,13 @@ public:
     static Sampler* createSampler(std::shared_ptr<LlmContext> context, std::shared_ptr<LlmConfig> config);
     Sampler(std::shared_ptr<LlmContext> context, std::shared_ptr<LlmConfig> config);
     int sample(MNN::Express::VARP logits);
+    // restart the random sequence, a fixed seed gives the same output again when the sampler is reused
+    void reseed();
 private:
     std::shared_ptr<LlmContext> mContext;
     SamplerConfig mConfig;
+    int mSeed = -1;
+    std::mt19937 mGenerator;
     struct SubsetLogits penalty(struct SubsetLogits superset);
     struct SubsetLogits topK(struct SubsetLogits superset);
     struct SubsetLogits topP(struct SubsetLogits superset);
@@ -411,6 +411,9 @@ void Sentencepiece::encode(const std::string& str, std::vector<int>& ids) {
 }
 
 std::string Sentencepiece::decode(int id) {
+    if (id >= sentence_pieces_.size()) {
+        return "";
+    }
     auto piece = sentence_pieces_[id].piece;
     int pos = piece.find("▁");
     if (pos != -1) {